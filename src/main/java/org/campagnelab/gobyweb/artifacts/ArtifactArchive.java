@@ -0,0 +1,577 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archive of installed artifacts. An archive holds, for each artifact, its metadata, the cached install script of
+ * its plugin and the content of its installation directory, so that the artifact can be unpacked in another
+ * repository instead of running the install script again.
+ * <p/>
+ * The archive is a gzip compressed stream, written and read sequentially. Each artifact section holds the absolute
+ * installation path of the artifact in the source repository. Files that contain this path (for instance
+ * configuration files written by install scripts) and symbolic links that point inside the installation
+ * directory are relocated to the installation path of the target repository when unpacked. Only files smaller
+ * than RELOCATION_SCAN_LIMIT are scanned for the path. Binary files (files that contain a NUL byte) are relocated
+ * only when both paths have the same length, since changing their length would corrupt the offsets they hold.
+ * <p/>
+ * Entries are extracted only inside the target directory: entries whose path leaves it, or goes through a symbolic
+ * link, are rejected.
+ */
+public class ArtifactArchive {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(ArtifactArchive.class);
+    private static final String MAGIC = "GOBYWEB-ARTIFACTS";
+    private static final int FORMAT_VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte END = 0;
+    private static final byte ARTIFACT = 1;
+    private static final byte DIRECTORY = 2;
+    private static final byte FILE = 3;
+    private static final byte SYMLINK = 4;
+    private static final byte END_OF_ARTIFACT = 5;
+
+    /**
+     * Files larger than this are not scanned for the installation path, and never relocated.
+     */
+    static final long RELOCATION_SCAN_LIMIT = 8 * 1024 * 1024;
+    /**
+     * Files are unpacked in chunks of this size, written in parallel.
+     */
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private ArtifactArchive() {
+    }
+
+    /**
+     * The metadata of an artifact read from an archive.
+     */
+    public static class Header {
+        private final Artifacts.Artifact artifact;
+        private final String installationPath;
+        private final byte[] installScript;
+
+        Header(Artifacts.Artifact artifact, String installationPath, byte[] installScript) {
+            this.artifact = artifact;
+            this.installationPath = installationPath;
+            this.installScript = installScript;
+        }
+
+        public Artifacts.Artifact getArtifact() {
+            return artifact;
+        }
+
+        /**
+         * @return the installation path of the artifact in the repository it was packed from.
+         */
+        public String getInstallationPath() {
+            return installationPath;
+        }
+
+        /**
+         * @return the content of the cached install script, or null when the archive has no install script for the
+         * artifact.
+         */
+        public byte[] getInstallScript() {
+            return installScript;
+        }
+    }
+
+    /**
+     * Writes artifacts to an archive.
+     */
+    public static class Writer {
+        private final DataOutputStream out;
+
+        public Writer(OutputStream output) throws IOException {
+            out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(output), 64 * 1024));
+            out.writeUTF(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+        }
+
+        /**
+         * Add an artifact to the archive.
+         *
+         * @param artifact      metadata of the artifact.
+         * @param installDir    installation directory of the artifact.
+         * @param installScript cached install script of the artifact, or null.
+         * @throws IOException
+         */
+        public void add(Artifacts.Artifact artifact, File installDir, File installScript) throws IOException {
+            final String installationPath = installDir.getAbsolutePath();
+            out.writeByte(ARTIFACT);
+            out.writeUTF(installationPath);
+            final byte[] metadata = artifact.toByteArray();
+            out.writeInt(metadata.length);
+            out.write(metadata);
+            if (installScript != null && installScript.exists()) {
+                out.writeBoolean(true);
+                final byte[] script = FileUtils.readFileToByteArray(installScript);
+                out.writeInt(script.length);
+                out.write(script);
+            } else {
+                out.writeBoolean(false);
+            }
+            addDirectory(installDir.toPath(), "", installationPath.getBytes(UTF8));
+            out.writeByte(END_OF_ARTIFACT);
+        }
+
+        private void addDirectory(Path dir, String relativePath, byte[] installationPath) throws IOException {
+            final File[] children = dir.toFile().listFiles();
+            if (children == null) {
+                throw new IOException("Unable to list directory " + dir);
+            }
+            for (File child : children) {
+                final Path path = child.toPath();
+                final String childPath = relativePath.isEmpty() ? child.getName() : relativePath + "/" + child.getName();
+                if (Files.isSymbolicLink(path)) {
+                    out.writeByte(SYMLINK);
+                    out.writeUTF(childPath);
+                    out.writeUTF(Files.readSymbolicLink(path).toString());
+                } else if (child.isDirectory()) {
+                    out.writeByte(DIRECTORY);
+                    out.writeUTF(childPath);
+                    out.writeInt(modeOf(path));
+                    addDirectory(path, childPath, installationPath);
+                } else {
+                    final long size = child.length();
+                    out.writeByte(FILE);
+                    out.writeUTF(childPath);
+                    out.writeInt(modeOf(path));
+                    out.writeLong(child.lastModified());
+                    out.writeBoolean(size <= RELOCATION_SCAN_LIMIT &&
+                            indexOf(FileUtils.readFileToByteArray(child), installationPath, 0) >= 0);
+                    out.writeLong(size);
+                    final InputStream input = new FileInputStream(child);
+                    try {
+                        if (IOUtils.copyLarge(input, out) != size) {
+                            throw new IOException("File changed while it was packed: " + child);
+                        }
+                    } finally {
+                        input.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Finish the archive and close the underlying stream.
+         */
+        public void close() throws IOException {
+            out.writeByte(END);
+            out.close();
+        }
+    }
+
+    /**
+     * Reads artifacts from an archive, one artifact at a time. The content of files is written by a pool of threads,
+     * while the calling thread decompresses the archive.
+     */
+    public static class Reader {
+        private final DataInputStream in;
+        private final ExecutorService writers;
+        /**
+         * Bounds the number of chunks read from the archive and not yet written.
+         */
+        private final Semaphore pendingChunks;
+        private Header current;
+
+        public Reader(InputStream input, int threads) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(input, 64 * 1024)));
+            if (!MAGIC.equals(in.readUTF())) {
+                throw new IOException("Not an artifact archive.");
+            }
+            final int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported artifact archive format version: " + version);
+            }
+            writers = Executors.newFixedThreadPool(Math.max(1, threads));
+            pendingChunks = new Semaphore(2 * Math.max(1, threads));
+        }
+
+        /**
+         * Read the metadata of the next artifact. The content of the artifact must be extracted or skipped before
+         * next() is called again.
+         *
+         * @return the header of the next artifact, or null at the end of the archive.
+         * @throws IOException
+         */
+        public Header next() throws IOException {
+            final byte tag = in.readByte();
+            if (tag == END) {
+                current = null;
+                return null;
+            }
+            expect(ARTIFACT, tag);
+            final String installationPath = in.readUTF();
+            final Artifacts.Artifact artifact = Artifacts.Artifact.parseFrom(readBytes());
+            final byte[] script = in.readBoolean() ? readBytes() : null;
+            current = new Header(artifact, installationPath, script);
+            return current;
+        }
+
+        /**
+         * Extract the content of the current artifact.
+         *
+         * @param targetDir  directory to extract the content to.
+         * @param finalDir   the directory the content will be installed in, which replaces the installation path
+         *                   of the source repository when files are relocated.
+         * @throws IOException
+         */
+        public void extract(File targetDir, File finalDir) throws IOException {
+            final byte[] from = current.getInstallationPath().getBytes(UTF8);
+            final byte[] to = finalDir.getAbsolutePath().getBytes(UTF8);
+            final List<Future<?>> writes = new ObjectArrayList<Future<?>>();
+            final List<Runnable> finish = new ObjectArrayList<Runnable>();
+            final Set<String> extracted = new ObjectOpenHashSet<String>();
+            targetDir.mkdirs();
+            final Path base = targetDir.getCanonicalFile().toPath();
+            try {
+                byte tag;
+                while ((tag = in.readByte()) != END_OF_ARTIFACT) {
+                    final File file = resolve(base, in.readUTF(), extracted);
+                    switch (tag) {
+                        case DIRECTORY:
+                            file.mkdirs();
+                            finish.add(setMode(file, in.readInt()));
+                            break;
+                        case SYMLINK:
+                            String target = in.readUTF();
+                            if (target.startsWith(current.getInstallationPath())) {
+                                target = finalDir.getAbsolutePath() + target.substring(current.getInstallationPath().length());
+                            }
+                            Files.deleteIfExists(file.toPath());
+                            Files.createSymbolicLink(file.toPath(), Paths.get(target));
+                            break;
+                        case FILE:
+                            final int mode = in.readInt();
+                            final long lastModified = in.readLong();
+                            final boolean relocate = in.readBoolean();
+                            final long size = in.readLong();
+                            if (size < 0 || (relocate && size > RELOCATION_SCAN_LIMIT)) {
+                                throw new IOException(String.format(
+                                        "Corrupted artifact archive, invalid size %d for file %s", size, file));
+                            }
+                            if (relocate) {
+                                final byte[] content = new byte[(int) size];
+                                in.readFully(content);
+                                FileUtils.writeByteArrayToFile(file, relocate(content, from, to));
+                            } else {
+                                extractFile(file, size, writes);
+                            }
+                            finish.add(setMode(file, mode));
+                            finish.add(setLastModified(file, lastModified));
+                            break;
+                        default:
+                            throw new IOException("Corrupted artifact archive, unexpected entry " + tag);
+                    }
+                }
+                waitFor(writes);
+            } finally {
+                // cancel the writes still pending when the archive is corrupted:
+                for (Future<?> write : writes) {
+                    write.cancel(false);
+                }
+            }
+            // directories are made read-only last, since their content is written first:
+            for (int i = finish.size() - 1; i >= 0; i--) {
+                finish.get(i).run();
+            }
+        }
+
+        /**
+         * Resolve the path of an entry in the target directory. A symbolic link left at the path, by an earlier
+         * extraction in the same directory, is removed so that it is not written through.
+         *
+         * @param base      canonical path of the target directory.
+         * @param name      path of the entry, relative to the installation directory.
+         * @param extracted paths already extracted for the artifact.
+         * @throws IOException when the entry leaves the target directory, goes through a symbolic link, or was
+         *                     already extracted.
+         */
+        private File resolve(Path base, String name, Set<String> extracted) throws IOException {
+            final Path relative = Paths.get(name);
+            final Path path = base.resolve(relative).normalize();
+            if (name.isEmpty() || relative.isAbsolute() || !path.startsWith(base) || path.equals(base)) {
+                throw new IOException("Corrupted artifact archive, entry outside of the installation directory: " +
+                        name);
+            }
+            if (!extracted.add(path.toString())) {
+                throw new IOException("Corrupted artifact archive, duplicate entry: " + name);
+            }
+            for (Path parent = path.getParent(); !parent.equals(base); parent = parent.getParent()) {
+                if (Files.isSymbolicLink(parent)) {
+                    throw new IOException(String.format("Corrupted artifact archive, entry %s is inside symbolic link %s",
+                            name, parent));
+                }
+            }
+            if (Files.isSymbolicLink(path)) {
+                Files.delete(path);
+            }
+            return path.toFile();
+        }
+
+        /**
+         * Skip the content of the current artifact.
+         */
+        public void skip() throws IOException {
+            byte tag;
+            while ((tag = in.readByte()) != END_OF_ARTIFACT) {
+                in.readUTF();
+                switch (tag) {
+                    case DIRECTORY:
+                        in.readInt();
+                        break;
+                    case SYMLINK:
+                        in.readUTF();
+                        break;
+                    case FILE:
+                        in.readInt();
+                        in.readLong();
+                        in.readBoolean();
+                        IOUtils.skipFully(in, in.readLong());
+                        break;
+                    default:
+                        throw new IOException("Corrupted artifact archive, unexpected entry " + tag);
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            writers.shutdownNow();
+            in.close();
+        }
+
+        private void extractFile(File file, long size, List<Future<?>> writes) throws IOException {
+            final RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                output.setLength(size);
+            } finally {
+                output.close();
+            }
+            long offset = 0;
+            while (offset < size) {
+                final byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, size - offset)];
+                in.readFully(chunk);
+                try {
+                    pendingChunks.acquire();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while unpacking " + file);
+                }
+                writes.add(writers.submit(new ChunkWrite(file, offset, chunk)));
+                offset += chunk.length;
+            }
+        }
+
+        private void waitFor(List<Future<?>> writes) throws IOException {
+            try {
+                for (Future<?> write : writes) {
+                    write.get();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while unpacking an artifact.");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+
+        private byte[] readBytes() throws IOException {
+            final byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        private static void expect(byte expected, byte tag) throws IOException {
+            if (tag != expected) {
+                throw new IOException("Corrupted artifact archive, unexpected entry " + tag);
+            }
+        }
+
+        private class ChunkWrite implements Callable<Void> {
+            private final File file;
+            private final long offset;
+            private final byte[] chunk;
+
+            ChunkWrite(File file, long offset, byte[] chunk) {
+                this.file = file;
+                this.offset = offset;
+                this.chunk = chunk;
+            }
+
+            @Override
+            public Void call() throws IOException {
+                try {
+                    final RandomAccessFile output = new RandomAccessFile(file, "rw");
+                    try {
+                        output.seek(offset);
+                        output.write(chunk);
+                    } finally {
+                        output.close();
+                    }
+                } finally {
+                    pendingChunks.release();
+                }
+                return null;
+            }
+        }
+    }
+
+    private static Runnable setMode(final File file, final int mode) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Files.setPosixFilePermissions(file.toPath(), permissionsOf(mode));
+                } catch (UnsupportedOperationException e) {
+                    file.setExecutable((mode & 0100) != 0);
+                } catch (IOException e) {
+                    LOG.warn("Unable to set the permissions of " + file, e);
+                }
+            }
+        };
+    }
+
+    private static Runnable setLastModified(final File file, final long lastModified) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(lastModified));
+                } catch (IOException e) {
+                    LOG.warn("Unable to set the modification time of " + file, e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Posix permissions, in the order of the bits of a unix mode, most significant first.
+     */
+    private static final PosixFilePermission[] PERMISSIONS = {
+            PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE,
+            PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_EXECUTE,
+            PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_EXECUTE};
+
+    static int modeOf(Path path) throws IOException {
+        try {
+            final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+            int mode = 0;
+            for (int i = 0; i < PERMISSIONS.length; i++) {
+                if (permissions.contains(PERMISSIONS[i])) {
+                    mode |= 1 << (PERMISSIONS.length - 1 - i);
+                }
+            }
+            return mode;
+        } catch (UnsupportedOperationException e) {
+            final File file = path.toFile();
+            return file.isDirectory() || file.canExecute() ? 0755 : 0644;
+        }
+    }
+
+    static Set<PosixFilePermission> permissionsOf(int mode) {
+        final Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        for (int i = 0; i < PERMISSIONS.length; i++) {
+            if ((mode & (1 << (PERMISSIONS.length - 1 - i))) != 0) {
+                permissions.add(PERMISSIONS[i]);
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * Replace an installation path by another in the content of a file. The content of binary files (that contain a
+     * NUL byte) is returned unchanged, unless both paths have the same length.
+     */
+    static byte[] relocate(byte[] content, byte[] from, byte[] to) {
+        if (from.length != to.length && indexOf(content, NUL, 0) >= 0) {
+            return content;
+        }
+        return replace(content, from, to);
+    }
+
+    private static final byte[] NUL = {0};
+
+    static byte[] replace(byte[] content, byte[] from, byte[] to) {
+        int match = indexOf(content, from, 0);
+        if (match < 0) {
+            return content;
+        }
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(content.length);
+        int start = 0;
+        while (match >= 0) {
+            result.write(content, start, match - start);
+            result.write(to, 0, to.length);
+            start = match + from.length;
+            match = indexOf(content, from, start);
+        }
+        result.write(content, start, content.length - start);
+        return result.toByteArray();
+    }
+
+    static int indexOf(byte[] content, byte[] pattern, int from) {
+        final int last = content.length - pattern.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (content[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -19,9 +19,15 @@ package org.campagnelab.gobyweb.artifacts;
 import com.martiansoftware.jsap.JSAP;
 import com.martiansoftware.jsap.JSAPException;
 import com.martiansoftware.jsap.JSAPResult;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.apache.log4j.Logger;
+import org.campagnelab.gobyweb.artifacts.locks.LockType;
+import org.campagnelab.gobyweb.artifacts.repositories.LocalTargetRepository;
+import org.campagnelab.gobyweb.artifacts.repositories.TargetRepository;
+import org.campagnelab.gobyweb.artifacts.store.MetadataStores;
 
 import java.io.*;
+import java.util.List;
 
 /**
  * Main class of the GobyWeb artifact manager.
@@ -37,8 +43,24 @@ public class ArtifactManager {
     }
 
     public ArtifactManager(File repoDir) throws IOException {
+        this(repoDir, false);
+    }
+
+    /**
+     * Create a manager for a repository.
+     *
+     * @param repoDir repository directory.
+     * @param lazily  when true, map the metadata index instead of loading every artifact. Suitable when the manager
+     *                only resolves the installation path of a few artifacts.
+     * @throws IOException
+     */
+    public ArtifactManager(File repoDir, boolean lazily) throws IOException {
         repo = new ArtifactRepo(repoDir);
-        repo.load(repoDir);
+        if (lazily) {
+            repo.loadLazily();
+        } else {
+            repo.load(repoDir);
+        }
     }
 
     public static JSAPResult loadJsapConfig(String commandLine) throws IOException, JSAPException {
@@ -75,7 +97,8 @@ public class ArtifactManager {
             System.exit(1);
         }
         File repoDir = config.getFile("repository");
-        ArtifactManager processor = new ArtifactManager(repoDir);
+        // process() loads the metadata needed by the command:
+        ArtifactManager processor = new ArtifactManager(repoDir, true);
         processor.process(config, repoDir);
         System.exit(0);
     }
@@ -83,7 +106,18 @@ public class ArtifactManager {
     private static boolean hasError(JSAPResult config) {
         return !(config.getBoolean("install") || config.getBoolean("remove") || config.getBoolean("get-path") ||
                 config.getBoolean("bash-exports") || config.getBoolean("show") || config.getBoolean("show-repo") ||
-                config.getBoolean("fail-installing"));
+                config.getBoolean("fail-installing") || config.userSpecified("convert-metadata") ||
+                config.userSpecified("lock-type") || config.userSpecified("pack") || config.userSpecified("unpack") ||
+                config.userSpecified("publish-to"));
+    }
+
+    /**
+     * Determine if the command line only resolves installation paths of artifacts listed on the command line.
+     * Such invocations can look up artifacts in the metadata index without loading the entire repository.
+     */
+    private static boolean isResolveOnly(JSAPResult config) {
+        return config.getBoolean("get-path") && config.getFile("ssh-requests") == null &&
+                !config.getBoolean("install") && !config.getBoolean("remove") && !config.getBoolean("show");
     }
 
     private void process(JSAPResult config, File repoDir) throws IOException {
@@ -92,22 +126,67 @@ public class ArtifactManager {
         repo.setStepLogDir(config.getFile("log-dir"));
         String[] artifacts = config.getStringArray("artifacts");
         File sshRequests = config.getFile("ssh-requests");
+        TargetRepository target = null;
         try {
+            if (config.userSpecified("lock-type")) {
+                repo.setLockType(LockType.parse(config.getString("lock-type")));
+            }
+            if (config.userSpecified("upstream-repository")) {
+                for (File tierDir : config.getFileArray("upstream-repository")) {
+                    repo.addUpstreamTier(tierDir);
+                }
+            }
+            repo.setPromoteFromUpstream(config.getBoolean("promote"), config.getInt("promote-threads"));
+            repo.setInstallTimeout(1000 * config.getLong("install-timeout"));
             if (config.getBoolean("fail-installing")) {
                 failInstalling();
                 return;
             }
-            repo.load(repoDir);
+            if (config.userSpecified("convert-metadata")) {
+                repo.convertMetadata(MetadataStores.Backend.parse(config.getString("convert-metadata")));
+                return;
+            }
+            if (isResolveOnly(config)) {
+                repo.loadLazily();
+            } else if (sshRequests == null) {
+                repo.load(repoDir);
+            }
+            if (config.userSpecified("publish-to")) {
+                target = new LocalTargetRepository(config.getFile("publish-to"), config.getInt("promote-threads"));
+                if (!config.getBoolean("install")) {
+                    // the repository may have been loaded lazily, or not at all with --ssh-requests. load() does
+                    // not parse the metadata again when it was already loaded:
+                    repo.load(repoDir);
+                    System.out.printf("Replicated %d artifacts to %s%n", target.replicate(repo),
+                            config.getFile("publish-to"));
+                    return;
+                }
+                repo.addTargetRepository(target);
+            }
+            if (config.userSpecified("pack")) {
+                pack(artifacts, config.getFile("pack"));
+                return;
+            }
+            if (config.userSpecified("unpack")) {
+                unpack(config.getFile("unpack"), config.getInt("unpack-threads"));
+                return;
+            }
             if (sshRequests != null) {
                 ArtifactRequestHelper helper = new ArtifactRequestHelper(sshRequests);
                 helper.setRepo(repo);
-                if (config.getBoolean("install")) {
+                helper.setParallelInstalls(config.getInt("parallel-installs"));
+                helper.setDefaultInstallTimeout(config.getLong("install-timeout"));
+                if (config.getInt("node-threads") > 0 || config.getLong("node-memory") > 0) {
+                    helper.setNodeResources(config.getInt("node-threads") > 0 ? config.getInt("node-threads") :
+                            Runtime.getRuntime().availableProcessors(), config.getLong("node-memory"));
+                }
+                final boolean onlyMandatory = config.userSpecified("installation-type")
+                        && config.getString("installation-type").equals("only-mandatory");
+                if (config.getBoolean("install") && config.getBoolean("dry-run")) {
+                    helper.plan(repoDir, onlyMandatory).print(new PrintWriter(new OutputStreamWriter(System.out)));
+                } else if (config.getBoolean("install")) {
 
-                    if (config.userSpecified("installation-type")
-                            && config.getString("installation-type").equals("only-mandatory")) {
-                        helper.install(repoDir,true);
-                    } else
-                        helper.install(repoDir, false);
+                    helper.install(repoDir, onlyMandatory);
                     if (helper.isEarlyStopRequested()) {
                         repo.writeLog();
                         System.exit(10);
@@ -156,23 +235,81 @@ public class ArtifactManager {
                 repo.save(repoDir);
             }
         } finally {
+            if (target != null) {
+                // wait for the artifacts installed by this command to be published:
+                target.close();
+            }
+            repo.closeAttributeWorker();
             repo.writeLog();
         }
     }
 
+    /**
+     * Write installed artifacts to an archive.
+     *
+     * @param artifacts artifacts in the format PLUGIN_ID:ARTIFACT_ID:VERSION.
+     * @param archive   the archive to write.
+     * @throws IOException
+     */
+    public void pack(String[] artifacts, File archive) throws IOException {
+        List<Artifacts.Artifact> toPack = new ObjectArrayList<Artifacts.Artifact>();
+        for (String a : artifacts == null ? new String[0] : artifacts) {
+            String tokens[] = a.split(":");
+            if (tokens.length < 3) {
+                throw new IOException("Error parsing artifact description, format must be PLUGIN_ID:ARTIFACT_ID:VERSION, instead got " + a);
+            }
+            List<Artifacts.Artifact> found = repo.findIgnoringAttributes(tokens[0], tokens[1], tokens[2]);
+            if (found.isEmpty()) {
+                throw new IOException("Artifact not found: " + a);
+            }
+            toPack.addAll(found);
+        }
+        OutputStream output = new FileOutputStream(archive);
+        try {
+            repo.pack(toPack, output);
+        } finally {
+            output.close();
+        }
+        System.out.printf("Packed %d artifacts to %s%n", toPack.size(), archive);
+    }
+
+    /**
+     * Install the artifacts of an archive.
+     *
+     * @param archive the archive to read.
+     * @param threads number of threads that write extracted files.
+     * @throws IOException
+     */
+    public void unpack(File archive, int threads) throws IOException {
+        InputStream input = new FileInputStream(archive);
+        try {
+            for (Artifacts.Artifact artifact : repo.unpack(input, threads)) {
+                System.out.println("unpacked: " + repo.toTextShort(artifact));
+            }
+        } finally {
+            input.close();
+        }
+    }
+
     public void failInstalling() throws IOException {
-        // do not update export statements upon loading, we are not installing:
-        repo.load(false);
-        for (Artifacts.Artifact artifact : repo.getArtifacts()) {
-            if (artifact.getState() == Artifacts.InstallationState.INSTALLING) {
-                try {
-                    final Artifacts.Artifact revisedArtifact = artifact.toBuilder().setState(Artifacts.InstallationState.FAILED).build();
-                    repo.updateArtifact(revisedArtifact);
-                    System.out.println("failed plugin: " + repo.toTextShort(artifact));
-                } catch (IOException e) {
-                    LOG.error("An IO exception occurred when failing " + repo.toText(artifact));
+        repo.beginBatch();
+        try {
+            // do not update export statements upon loading, we are not installing:
+            repo.load(false);
+            // copy the artifacts, since updating an artifact modifies the collection returned by getArtifacts():
+            for (Artifacts.Artifact artifact : new ObjectArrayList<Artifacts.Artifact>(repo.getArtifacts())) {
+                if (artifact.getState() == Artifacts.InstallationState.INSTALLING) {
+                    try {
+                        final Artifacts.Artifact revisedArtifact = artifact.toBuilder().setState(Artifacts.InstallationState.FAILED).build();
+                        repo.updateArtifact(revisedArtifact);
+                        System.out.println("failed plugin: " + repo.toTextShort(artifact));
+                    } catch (IOException e) {
+                        LOG.error("An IO exception occurred when failing " + repo.toText(artifact));
+                    }
                 }
             }
+        } finally {
+            repo.commit();
         }
     }
 
@@ -19,19 +19,29 @@ package org.campagnelab.gobyweb.artifacts;
 import com.google.common.io.Files;
 import com.google.protobuf.TextFormat;
 import edu.cornell.med.icb.net.SyncPipe;
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectAVLTreeSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectCollection;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
-import org.campagnelab.gobyweb.artifacts.locks.ExclusiveLockRequest;
-import org.campagnelab.gobyweb.artifacts.locks.ExclusiveLockRequestWithFile;
+import org.campagnelab.gobyweb.artifacts.locks.LockType;
+import org.campagnelab.gobyweb.artifacts.repositories.TargetRepository;
 import org.campagnelab.gobyweb.artifacts.scope.InstallationScope;
 import org.campagnelab.gobyweb.artifacts.scope.InstalledInRepoScope;
+import org.campagnelab.gobyweb.artifacts.store.MappedMetadataIndex;
+import org.campagnelab.gobyweb.artifacts.store.MetadataJournal;
+import org.campagnelab.gobyweb.artifacts.store.MetadataStore;
+import org.campagnelab.gobyweb.artifacts.store.MetadataStores;
+import org.campagnelab.gobyweb.artifacts.store.ProtobufMetadataStore;
+import org.campagnelab.gobyweb.artifacts.store.StoreLock;
 import org.campagnelab.stepslogger.FileStepsLogger;
 import org.campagnelab.stepslogger.RedirectStreams;
 import org.campagnelab.stepslogger.SilentStepsLogger;
@@ -39,8 +49,17 @@ import org.campagnelab.stepslogger.StepsLogger;
 import sun.rmi.runtime.Log;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The artifact repository. Provides methods to install and remove artifacts from the repository, and to
@@ -54,11 +73,19 @@ public class ArtifactRepo {
     private static final org.apache.log4j.Logger LOG = Logger.getLogger(ArtifactRepo.class);
     private static final long WAIT_FOR_INSTALLING_DELAY = 30 * 1000; // wait 30 secs.
     /**
-     * The number of locks acquired on the repository.  When >0, at least one lock has been granted.
-     * When 0, no lock has been granted.
+     * Interval between two heartbeats of a process that installs an artifact.
      */
-    int lockCount = 0;
-
+    private static final long HEARTBEAT_INTERVAL = 60 * 1000;
+    /**
+     * An installation is considered interrupted when its owner did not report a heartbeat for this long.
+     */
+    private static final long STALE_HEARTBEAT_DELAY = 5 * HEARTBEAT_INTERVAL;
+    /**
+     * Suffix of the directories install scripts install artifacts into, before they are published.
+     */
+    private static final String STAGING_SUFFIX = ".staging";
+    private static final Timer HEARTBEAT_TIMER = new Timer("installation-heartbeat", true);
+    private static final long CURRENT_PID = currentPid();
     File repoDir;
     /**
      * Sort artifacts by increasing installation date
@@ -87,6 +114,10 @@ public class ArtifactRepo {
     private boolean quiet = true;
     private Object2ObjectMap<String, String> pluginIdToInstallScriptPath = new Object2ObjectOpenHashMap<String, String>();
     private StepsLogger stepsLogger;
+    /**
+     * Directory of the steps log, or null when steps are not logged.
+     */
+    private File stepLogDir;
     private String jobDir = System.getenv("JOB_DIR");
     ;
 
@@ -104,6 +135,7 @@ public class ArtifactRepo {
      * artifact retention policies), starting oldest first.
      */
     public void prune() throws IOException {
+        ensureMaterialized();
         boolean done = false;
         while (!done) {
             spaceMaxAvailableInRepoDir = repoDir.getTotalSpace();
@@ -134,7 +166,10 @@ public class ArtifactRepo {
     }
 
     /**
-     * Remove the oldest artifact, returns true when an artifact was removed.
+     * Remove the oldest artifact, returns true when an artifact was removed. The age of an artifact is weighed by
+     * the time it takes to install it again: an artifact that takes an hour to rebuild is kept over an artifact
+     * installed in a minute, unless it is sixty times older. Artifacts whose installation time is unknown count as
+     * rebuilt in a minute.
      *
      * @return
      * @throws IOException
@@ -144,16 +179,37 @@ public class ArtifactRepo {
         Artifacts.Artifact[] sortedArtifacts = new Artifacts.Artifact[index.size()];
         sortedArtifacts = index.values().toArray(sortedArtifacts);
         Arrays.sort(sortedArtifacts, SORT_BY_INSTALLED_DATE);
+        final long now = new Date().getTime();
+        Artifacts.Artifact removable = null;
+        double bestScore = -1;
         for (Artifacts.Artifact artifact : sortedArtifacts) {
             switch (artifact.getRetention()) {
                 case REMOVE_OLDEST:
-                    remove(artifact);
-                    return true;
+                    final double score = (double) (now - artifact.getInstallationTime()) / rebuildMinutes(artifact);
+                    if (score > bestScore) {
+                        removable = artifact;
+                        bestScore = score;
+                    }
+                    break;
                 default:
                     // keep other artifacts.
             }
         }
-        return false;
+        if (removable == null) {
+            return false;
+        }
+        remove(removable);
+        return true;
+    }
+
+    /**
+     * @return the time it would take to install an artifact again, in minutes, and at least one minute.
+     */
+    private double rebuildMinutes(Artifacts.Artifact artifact) {
+        long duration = artifact.hasTimings() ? InstallationHistory.duration(artifact.getTimings()) :
+                getInstallationHistory().expectedDuration(artifact.getPluginId(), artifact.getId(),
+                        artifact.getVersion());
+        return Math.max(1.0, duration / 60000.0);
     }
 
     /**
@@ -162,9 +218,45 @@ public class ArtifactRepo {
      */
     private long spaceRepoDirQuota;
 
+    /**
+     * @return the process id of this JVM, or -1 when it cannot be determined.
+     */
+    private static long currentPid() {
+        // the runtime name is pid@hostname on the JVMs we run on:
+        final String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
     public ArtifactRepo(File repoDir) {
         this.repoDir = repoDir;
         stepsLogger = new SilentStepsLogger();
+        try {
+            lockType = LockType.of(repoDir);
+        } catch (IOException e) {
+            LOG.error("Unable to read the lock type of the repository, using file locks.", e);
+            lockType = LockType.FILE;
+        }
+    }
+
+    /**
+     * Record the lock implementation used by this repository. Every process that uses the repository must use
+     * the same implementation: only change it while no other process uses the repository.
+     *
+     * @param lockType the lock implementation.
+     * @throws IOException
+     */
+    public void setLockType(LockType lockType) throws IOException {
+        repoDir.mkdirs();
+        lockType.writeTo(repoDir);
+        this.lockType = lockType;
+    }
+
+    public LockType getLockType() {
+        return lockType;
     }
 
     /**
@@ -198,95 +290,390 @@ public class ArtifactRepo {
      */
 
     public void install(String pluginId, String artifactId, String pluginScript, String version, AttributeValuePair... avp) throws IOException {
+        ensureMaterialized();
         stepsLogger.step("Installing " + toText(pluginId, artifactId, version, avp));
         if (pluginScript != null && !new File(pluginScript).exists()) {
             throw new IOException("Install script not found: " + pluginScript);
         }
+        timings = Artifacts.InstallTimings.newBuilder().setFetchMs(scriptFetchTime);
+        scriptFetchTime = 0;
         // get attributes before anything else:
         if (hasUndefinedAttributes(avp)) {
+            final long start = System.currentTimeMillis();
             avp = getAttributeValues(null, artifactId, version, avp, pluginScript, pluginId);
+            timings.setAttributeProbeMs(System.currentTimeMillis() - start);
+        }
+        // installations of the same artifact are serialized by the lock of the artifact. The lock of the plugin
+        // shard is only held while metadata is read or written, so that other artifacts install concurrently:
+        final StoreLock artifactLock = artifactLock(makeKey(pluginId, artifactId, version, avp));
+        artifactLock.lock();
+        try {
+            // another process may have installed the artifact while we waited for its lock:
+            refreshShard(MetadataStores.shardName(pluginId));
+            installWithArtifactLock(pluginId, artifactId, pluginScript, version, avp);
+            // publish the metadata of the artifact before releasing its lock:
+            save();
+        } finally {
+            timings = null;
+            artifactLock.unlock();
+        }
+    }
+
+    /**
+     * Return the install lock of an artifact. Lock files are kept in the locks directory of the repository, one
+     * per artifact key.
+     *
+     * @param key key of the artifact.
+     * @return the lock.
+     */
+    private synchronized StoreLock artifactLock(MutableString key) {
+        final String filename = MetadataStores.shardName(key.toString()) + ".lock";
+        StoreLock lock = artifactLocks.get(filename);
+        if (lock == null) {
+            lock = new StoreLock(new File(repoDir, "locks"), filename, lockType);
+            artifactLocks.put(filename, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * Return the install lock of an artifact. Hold it shared while reading the files of the artifact, to prevent
+     * its reinstallation in the meantime.
+     *
+     * @param artifact the artifact.
+     * @return the lock.
+     */
+    public StoreLock artifactLock(Artifacts.Artifact artifact) {
+        return artifactLock(makeKey(artifact));
+    }
+
+    private void installWithArtifactLock(String pluginId, String artifactId, String pluginScript, String version, AttributeValuePair... avp) throws IOException {
+        Artifacts.Artifact artifact = findInstalled(pluginId, artifactId, version, avp);
+        if (artifact != null) {
+            //  LOG.info(String.format("Artifact %s was found and was installed.", toText(artifact)));
+            stepsLogger.step(String.format("Artifact %s was found and was installed.", toText(artifact)));
+            // even when already installed, scan for possible env script
+            registerPossibleEnvironmentCollection(artifact);
+            return;
+        }
+        final ArtifactRepo tier = findUpstreamTier(pluginId, artifactId, version, avp);
+        if (tier != null) {
+            if (promoteFromUpstream) {
+                promote(tier, tier.find(pluginId, artifactId, version, avp), avp);
+            } else {
+                stepsLogger.step(String.format("Artifact %s was found installed in upstream tier %s.",
+                        toText(pluginId, artifactId, version, avp), tier.repoDir));
+                registerPossibleEnvironmentCollection(tier.find(pluginId, artifactId, version, avp));
+            }
+            return;
+        }
+
+        LOG.info(String.format("Artifact %s was not found, proceeding    to install..", toText(pluginId, artifactId, version, avp)));
+
+        // create the new artifact, register in the index:
+        Artifacts.Artifact.Builder artifactBuilder = Artifacts.Artifact.newBuilder();
+        artifactBuilder.setId(artifactId);
+        artifactBuilder.setPluginId(pluginId);
+        artifactBuilder.setState(Artifacts.InstallationState.INSTALLING);
+        artifactBuilder.setInstallationTime(new Date().getTime());
+        final String installScriptDir = FilenameUtils.concat(FilenameUtils.concat(pluginId, artifactId), version);
+        artifactBuilder.setRelativePath(appendKeyValuePairs(installScriptDir, avp));
+        artifactBuilder.setVersion(version);
+
+        for (AttributeValuePair valuePair : avp) {
+            final Artifacts.AttributeValuePair.Builder avpBuilder = Artifacts.AttributeValuePair.newBuilder().setName(valuePair.name);
+            if (valuePair.value != null) {
+                avpBuilder.setValue(valuePair.value);
+            }
+            artifactBuilder.addAttributes(avpBuilder.build());
+        }
+        Artifacts.Host.Builder hostBuilder = Artifacts.Host.newBuilder();
+
+        hostBuilder.setHostName(InetAddress.getLocalHost().getHostName());
+        hostBuilder.setOsArchitecture(System.getProperty("os.arch"));
+        hostBuilder.setOsName(System.getProperty("os.name"));
+        hostBuilder.setOsVersion(System.getProperty("os.version"));
+        artifactBuilder.setInstallationHost(hostBuilder);
+        artifactBuilder.setRetention(Artifacts.RetentionPolicy.REMOVE_OLDEST);
+        artifactBuilder.setInstallationOwner(newInstallationOwner());
+        artifact = artifactBuilder.build();
+        putInIndex(artifact);
+
+        save();
+        try {
+
+            final InstallationHeartbeat heartbeat = new InstallationHeartbeat(artifact);
+            HEARTBEAT_TIMER.schedule(heartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL);
+            final long start = System.currentTimeMillis();
+            try {
+                runInstallScript(pluginId, artifactId, pluginScript, version, avp,
+                        failOnShutdown(artifact, heartbeat));
+            } finally {
+                heartbeat.stop();
+            }
+            timings.setInstallScriptMs(System.currentTimeMillis() - start);
+            artifact = publish(artifact, pluginScript, avp);
+            artifact = recordTimings(artifact, heartbeat.getPeakDiskBytes());
+            if (installationScope.isInScope(pluginId, artifactId, version)) {
+                updateExportStatements(artifact, avp, currentBashExports);
+            }
+            registerPossibleEnvironmentCollection(artifact);
+        } catch (InterruptedIOException e) {
+            // the install script was killed when the install timeout expired:
+            markInterrupted(artifact);
+        } catch (InterruptedException e) {
+            markInterrupted(artifact);
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            changeState(artifact, Artifacts.InstallationState.FAILED);
+        } catch (Exception e) {
+            changeState(artifact, Artifacts.InstallationState.FAILED);
+        } catch (Error e) {
+            changeState(artifact, Artifacts.InstallationState.FAILED);
+        }
+        LOG.debug("Exiting ArtifactRepo.install");
+        save();
+    }
+
+    /**
+     * Find an installed artifact. An artifact that another process is installing is waited for. Artifacts left
+     * INSTALLING by a process that is no longer alive, or whose installation failed, are removed so that they can
+     * be installed again. The staging directory is kept for the next attempt to resume from when the installation
+     * was interrupted (left INSTALLING, or FAILED because its install script was killed), and deleted when the
+     * install script failed. Must be called with the lock of the artifact held.
+     *
+     * @return the artifact if it is installed, null otherwise.
+     * @throws IOException
+     */
+    private Artifacts.Artifact findInstalled(String pluginId, String artifactId, String version, AttributeValuePair... avp) throws IOException {
+        Artifacts.Artifact artifact = findLocal(pluginId, artifactId, version, avp);
+        if (artifact != null && artifact.getState() == Artifacts.InstallationState.INSTALLING) {
+            // another process may still be installing the artifact, wait until it is done:
+            artifact = waitForInstallation(artifact);
         }
-        Artifacts.Artifact artifact = find(pluginId, artifactId, version, avp);
         if (artifact != null && artifact.getState() == Artifacts.InstallationState.INSTALLING) {
 
-            LOG.info("Found an artifact that failed to finished installing (was state=INSTALLING).. This likely results from the repo being killed/(or crash) during an installation. Removing the artifact to start installation over. ");
+            LOG.info("Found an artifact that failed to finished installing (was state=INSTALLING) and whose installing process is no longer alive. This likely results from the repo being killed/(or crash) during an installation. Removing the artifact to start installation over. ");
 
             remove(artifact);
             save();
             // reload the plugin info from disk:
-            load();
-            artifact = find(pluginId, artifactId, version, avp);
+            refreshShard(MetadataStores.shardName(pluginId));
+            artifact = findLocal(pluginId, artifactId, version, avp);
 
 
         }
 
         if (artifact != null && artifact.getState() == Artifacts.InstallationState.INSTALLED) {
-            //  LOG.info(String.format("Artifact %s was found and was installed.", toText(artifact)));
-            stepsLogger.step(String.format("Artifact %s was found and was installed.", toText(artifact)));
-            // even when already installed, scan for possible env script
-            registerPossibleEnvironmentCollection(artifact);
-            return;
+            return artifact;
         }
         if (artifact != null) {
             LOG.warn(String.format("Found artifact in state %s, removing and starting over.. ", artifact.getState()));
+            if (!artifact.getInterrupted()) {
+                // the install script failed, start from an empty staging directory:
+                FileUtils.deleteDirectory(getStagingDir(pluginId, artifactId, version, avp));
+            }
             remove(artifact);
             artifact = null;
         }
-        if (artifact == null) {
+        return null;
+    }
+
+    /**
+     * Return the action that marks an artifact FAILED, and interrupted, when the JVM shuts down while its install
+     * script runs.
+     */
+    private Runnable failOnShutdown(final Artifacts.Artifact artifact, final InstallationHeartbeat heartbeat) {
+        return new Runnable() {
+            public void run() {
+                heartbeat.stop();
+                final Artifacts.Artifact failed = interrupted(artifact);
+                try {
+                    // written directly to the store, since the index belongs to the installing thread:
+                    shard(artifact.getPluginId()).commit(Collections.singletonList(Artifacts.JournalEntry.newBuilder()
+                            .setOperation(Artifacts.JournalEntry.Operation.PUT)
+                            .setKey(makeKey(failed).toString())
+                            .setArtifact(failed).build()));
+                } catch (IOException e) {
+                    LOG.error("Unable to mark " + toText(artifact) + " FAILED at shutdown", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Mark an artifact FAILED because its install script was killed (at the install timeout, or because its thread
+     * was interrupted) rather than because the script failed. The next attempt resumes from its staging directory.
+     */
+    private void markInterrupted(Artifacts.Artifact artifact) throws IOException {
+        putInIndex(interrupted(index.get(makeKey(artifact))));
+        save();
+    }
+
+    private static Artifacts.Artifact interrupted(Artifacts.Artifact artifact) {
+        return artifact.toBuilder().setState(Artifacts.InstallationState.FAILED).setInterrupted(true)
+                .clearInstallationOwner().build();
+    }
 
-            LOG.info(String.format("Artifact %s was not found, proceeding    to install..", toText(pluginId, artifactId, version, avp)));
+    /**
+     * Store the timings of the installation that just completed on the artifact, and add them to the installation
+     * history of the artifact.
+     *
+     * @param peakDiskBytes the disk space used while the install script ran, in bytes.
+     * @return the artifact, with its timings.
+     */
+    private Artifacts.Artifact recordTimings(Artifacts.Artifact artifact, long peakDiskBytes) throws IOException {
+        timings.setPeakDiskBytes(Math.max(peakDiskBytes, artifact.getInstalledSize()));
+        timings.setCompletionTime(new Date().getTime());
+        final Artifacts.InstallTimings completed = timings.build();
+        LOG.debug(String.format("Installed %s in %d ms: %s", toText(artifact),
+                InstallationHistory.duration(completed), completed));
+        artifact = artifact.toBuilder().setTimings(completed).build();
+        putInIndex(artifact);
+        try {
+            getInstallationHistory().record(artifact.getPluginId(), artifact.getId(), artifact.getVersion(), completed);
+        } catch (IOException e) {
+            LOG.warn("Unable to record the installation history of " + toText(artifact), e);
+        }
+        return artifact;
+    }
 
-            // create the new artifact, register in the index:
-            Artifacts.Artifact.Builder artifactBuilder = Artifacts.Artifact.newBuilder();
-            artifactBuilder.setId(artifactId);
-            artifactBuilder.setPluginId(pluginId);
-            artifactBuilder.setState(Artifacts.InstallationState.INSTALLING);
-            artifactBuilder.setInstallationTime(new Date().getTime());
-            final String installScriptDir = FilenameUtils.concat(FilenameUtils.concat(pluginId, artifactId), version);
-            artifactBuilder.setRelativePath(appendKeyValuePairs(installScriptDir, avp));
-            artifactBuilder.setVersion(version);
+    private Artifacts.InstallationOwner.Builder newInstallationOwner() throws IOException {
+        return Artifacts.InstallationOwner.newBuilder()
+                .setHostName(InetAddress.getLocalHost().getHostName())
+                .setPid(CURRENT_PID)
+                .setHeartbeatTime(new Date().getTime());
+    }
 
-            for (AttributeValuePair valuePair : avp) {
-                final Artifacts.AttributeValuePair.Builder avpBuilder = Artifacts.AttributeValuePair.newBuilder().setName(valuePair.name);
-                if (valuePair.value != null) {
-                    avpBuilder.setValue(valuePair.value);
+    /**
+     * Wait for another process to finish installing an artifact. The shard directory is watched for changes, and
+     * the metadata of the artifact is read again when the shard changes, or every WAIT_FOR_INSTALLING_DELAY since
+     * change notifications are not delivered for changes made on other hosts of a network file system.
+     *
+     * @param artifact the artifact found in state INSTALLING.
+     * @return the artifact, once it is no longer INSTALLING or its installing process is no longer alive, or null
+     * when it was removed.
+     * @throws IOException
+     */
+    private Artifacts.Artifact waitForInstallation(Artifacts.Artifact artifact) throws IOException {
+        final String shardName = MetadataStores.shardName(artifact.getPluginId());
+        final MutableString key = makeKey(artifact);
+        WatchService watcher = null;
+        try {
+            try {
+                watcher = FileSystems.getDefault().newWatchService();
+                Paths.get(getShardsDirectory(), shardName).register(watcher,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException e) {
+                LOG.debug("Unable to watch the metadata shard, polling instead.", e);
+            }
+            while (artifact != null && artifact.getState() == Artifacts.InstallationState.INSTALLING &&
+                    isInstallationAlive(artifact)) {
+                final Artifacts.InstallationOwner owner = artifact.getInstallationOwner();
+                stepsLogger.step(String.format("Waiting for %s to be installed by process %d on %s",
+                        toText(artifact), owner.getPid(), owner.getHostName()));
+                try {
+                    if (watcher != null) {
+                        WatchKey watchKey = watcher.poll(WAIT_FOR_INSTALLING_DELAY, TimeUnit.MILLISECONDS);
+                        if (watchKey != null) {
+                            watchKey.pollEvents();
+                            watchKey.reset();
+                        }
+                    } else {
+                        Thread.sleep(WAIT_FOR_INSTALLING_DELAY);
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for " + toText(artifact));
                 }
-                artifactBuilder.addAttributes(avpBuilder.build());
+                refreshShard(shardName);
+                artifact = index.get(key);
+            }
+            return artifact;
+        } finally {
+            if (watcher != null) {
+                watcher.close();
             }
-            Artifacts.Host.Builder hostBuilder = Artifacts.Host.newBuilder();
+        }
+    }
+
+    /**
+     * Determine if the process that installs an artifact is still alive. The process is alive when it reported a
+     * heartbeat recently, and, when it runs on this host, its process id still exists.
+     *
+     * @param artifact an artifact in state INSTALLING.
+     * @return True when the installation is still in progress.
+     */
+    private boolean isInstallationAlive(Artifacts.Artifact artifact) throws IOException {
+        if (!artifact.hasInstallationOwner()) {
+            // written by an earlier version, which did not record the owner:
+            return false;
+        }
+        final Artifacts.InstallationOwner owner = artifact.getInstallationOwner();
+        if (new Date().getTime() - owner.getHeartbeatTime() > STALE_HEARTBEAT_DELAY) {
+            return false;
+        }
+        if (owner.getHostName().equals(InetAddress.getLocalHost().getHostName()) && owner.hasPid() &&
+                new File("/proc/self").exists()) {
+            return new File("/proc/" + owner.getPid()).exists();
+        }
+        return true;
+    }
 
-            hostBuilder.setHostName(InetAddress.getLocalHost().getHostName());
-            hostBuilder.setOsArchitecture(System.getProperty("os.arch"));
-            hostBuilder.setOsName(System.getProperty("os.name"));
-            hostBuilder.setOsVersion(System.getProperty("os.version"));
-            artifactBuilder.setInstallationHost(hostBuilder);
-            artifactBuilder.setRetention(Artifacts.RetentionPolicy.REMOVE_OLDEST);
-            artifact = artifactBuilder.build();
-            index.put(makeKey(artifact), artifact);
+    /**
+     * Periodically records that the current process is still installing an artifact.
+     */
+    private class InstallationHeartbeat extends TimerTask {
+        private final Artifacts.Artifact artifact;
+        private boolean stopped;
+        /**
+         * Free space in the repository file system when the installation started, and the least free space seen
+         * since.
+         */
+        private final long startUsableSpace;
+        private long minUsableSpace;
+
+        InstallationHeartbeat(Artifacts.Artifact artifact) {
+            this.artifact = artifact;
+            startUsableSpace = repoDir.getUsableSpace();
+            minUsableSpace = startUsableSpace;
+        }
 
-            save();
+        @Override
+        public synchronized void run() {
+            if (stopped) {
+                return;
+            }
+            minUsableSpace = Math.min(minUsableSpace, repoDir.getUsableSpace());
+            final Artifacts.Artifact beat = artifact.toBuilder().setInstallationOwner(
+                    artifact.getInstallationOwner().toBuilder().setHeartbeatTime(new Date().getTime())).build();
             try {
+                // written directly to the store, since the index belongs to the installing thread:
+                shard(artifact.getPluginId()).commit(Collections.singletonList(Artifacts.JournalEntry.newBuilder()
+                        .setOperation(Artifacts.JournalEntry.Operation.PUT)
+                        .setKey(makeKey(beat).toString())
+                        .setArtifact(beat).build()));
+            } catch (IOException e) {
+                LOG.warn("Unable to record installation heartbeat for " + toText(artifact), e);
+            }
+        }
 
-                runInstallScript(pluginId, artifactId, pluginScript, version, avp);
-                updateInstalledSize(artifact);
-
-                updateInstallScriptLocation(artifact, pluginScript);
-                artifact = changeState(artifact, Artifacts.InstallationState.INSTALLED);
-                if (installationScope.isInScope(pluginId, artifactId, version)) {
-                    updateExportStatements(artifact, avp, currentBashExports);
-                }
-                registerPossibleEnvironmentCollection(artifact);
-            } catch (InterruptedException e) {
-                changeState(artifact, Artifacts.InstallationState.FAILED);
-            } catch (RuntimeException e) {
-                changeState(artifact, Artifacts.InstallationState.FAILED);
-            } catch (Exception e) {
-                changeState(artifact, Artifacts.InstallationState.FAILED);
-            } catch (Error e) {
-                changeState(artifact, Artifacts.InstallationState.FAILED);
+        /**
+         * Stop the heartbeat. Once this method returns, no more heartbeat is written.
+         */
+        public synchronized void stop() {
+            if (!stopped) {
+                minUsableSpace = Math.min(minUsableSpace, repoDir.getUsableSpace());
             }
-            LOG.debug("Exiting ArtifactRepo.install");
-            save();
+            stopped = true;
+            cancel();
+        }
+
+        /**
+         * @return the largest decrease of free space in the repository file system seen during the installation,
+         * in bytes. Other processes that write to the file system add to it.
+         */
+        public synchronized long getPeakDiskBytes() {
+            return Math.max(0, startUsableSpace - minUsableSpace);
         }
     }
 
@@ -301,6 +688,10 @@ public class ArtifactRepo {
     protected void registerPossibleEnvironmentCollection(Artifacts.Artifact artifact) {
         if (artifact.getPluginId().startsWith(BuildArtifactRequest.ARTIFACTS_ENVIRONMENT_COLLECTION_SCRIPT)) {
             String cachedInstallationScript = getCachedInstallationScript(artifact.getPluginId(),artifact.getVersion());
+            if (cachedInstallationScript == null) {
+                LOG.warn("No cached install script for environment collection artifact " + toText(artifact));
+                return;
+            }
             // LOG.info(String.format("Registering environment script %s", cachedInstallationScript));
             stepsLogger.step(String.format("Registering environment script %s", cachedInstallationScript));
             if (!environmentCollectionScripts.contains(cachedInstallationScript)) {
@@ -347,7 +738,7 @@ public class ArtifactRepo {
             stepsLogger.step("Copied install script to " + installInRepoAbsolute);
 
             artifact = artifactBuilder.setInstallScriptRelativePath(installScriptFinalLocation.getPath()).build();
-            index.put(makeKey(artifact), artifact);
+            putInIndex(artifact);
             pluginIdToInstallScriptPath.put(buildCacheKey(artifact),
                     absolutePathInRepo("scripts", artifactBuilder.getInstallScriptRelativePath()));
 
@@ -459,26 +850,43 @@ public class ArtifactRepo {
     private Properties readAttributeValues(String pluginId, String artifactId, String version, AttributeValuePair[] avp, String pluginInstallScript) {
         File attributeFile = null;
         try {
-            attributeFile = runAttributeValuesFunction(pluginId, artifactId, version, avp, pluginInstallScript);
-            LOG.info("Returned attributes file path: " + attributeFile.getAbsolutePath());
-            if (attributeFile != null) {
-                // parse properties and value attributes that were not defined:
-                Properties p = new Properties();
-                p.load(new FileReader(attributeFile));
-                for (AttributeValuePair attributeValuePair : avp) {
-                    if (attributeValuePair.value == null) {
-                        final String scriptValue = p.getProperty(attributeValuePair.name);
-                        if (scriptValue == null) {
-                            LOG.error("Could not obtain attribute value from install script for attribute=" + attributeValuePair.name);
-                            return null;
-                        }
-                        attributeValuePair.value = normalize(scriptValue);
+            final String cacheKey = attributeCacheKey(pluginId, artifactId, pluginInstallScript);
+            Properties p = cacheKey == null ? null : getAttributeCache().get(cacheKey);
+            if (p != null) {
+                stepsLogger.step(String.format("Attribute values of %s:%s found in cache", pluginId, artifactId));
+            } else {
+                attributeFile = runAttributeValuesFunction(pluginId, artifactId, version, avp, pluginInstallScript);
+                LOG.info("Returned attributes file path: " + attributeFile.getAbsolutePath());
+                p = new Properties();
+                final FileReader reader = new FileReader(attributeFile);
+                try {
+                    p.load(reader);
+                } finally {
+                    reader.close();
+                }
+                if (cacheKey != null) {
+                    try {
+                        getAttributeCache().put(cacheKey, p);
+                    } catch (IOException e) {
+                        // read-only repositories (upstream tiers) do not cache results:
+                        LOG.debug("Unable to cache attribute values of " + pluginId + ":" + artifactId, e);
                     }
                 }
-                LOG.debug("readAttributeValues() returned: " + ObjectArrayList.wrap(avp).toString());
-
-                return p;
             }
+            // parse properties and value attributes that were not defined:
+            for (AttributeValuePair attributeValuePair : avp) {
+                if (attributeValuePair.value == null) {
+                    final String scriptValue = p.getProperty(attributeValuePair.name);
+                    if (scriptValue == null) {
+                        LOG.error("Could not obtain attribute value from install script for attribute=" + attributeValuePair.name);
+                        return null;
+                    }
+                    attributeValuePair.value = normalize(scriptValue);
+                }
+            }
+            LOG.debug("readAttributeValues() returned: " + ObjectArrayList.wrap(avp).toString());
+
+            return p;
         } catch (InterruptedException e) {
             return null;
         } catch (RuntimeException e) {
@@ -497,7 +905,133 @@ public class ArtifactRepo {
                 }
             }
         }
-        return null;
+    }
+
+    /**
+     * Return the key of the result of get_attribute_values in the attribute cache, see AttributeCache.
+     *
+     * @return the key, or null when the result must not be cached: values provided in the JOB_DIR by the plugins
+     * SDK are read directly, since they change with every job.
+     */
+    private String attributeCacheKey(String pluginId, String artifactId, String pluginScript) {
+        if (new File(this.jobDir + File.separator + "artifacts-values", pluginId + "." + artifactId +
+                ".properties").exists()) {
+            return null;
+        }
+        try {
+            return AttributeCache.key(pluginId, artifactId, new File(pluginScript), environmentCollectionScripts);
+        } catch (IOException e) {
+            LOG.debug("Unable to compute the attribute cache key of " + pluginId + ":" + artifactId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Evaluate get_attribute_values for the queries of a batch with a single bash program, and store the results in
+     * the attribute cache, where readAttributeValues() finds them. Queries whose result is already cached are
+     * skipped. Queries that fail are not cached, so that they run again on their own and log their output.
+     *
+     * @param batch the queries.
+     */
+    public void evaluate(AttributeBatch batch) {
+        final MutableString prelude = getEnvCollectionSourceStatements();
+        final AttributeBatch pending = new AttributeBatch();
+        final List<String> keys = new ObjectArrayList<String>();
+        for (AttributeBatch.Query query : batch.getQueries()) {
+            final String key = attributeCacheKey(query.getPluginId(), query.getArtifactId(), query.getPluginScript());
+            if (key != null && !keys.contains(key) && getAttributeCache().get(key) == null) {
+                pending.add(query.getPluginId(), query.getArtifactId(), query.getPluginScript());
+                keys.add(key);
+            }
+        }
+        if (pending.size() < 2) {
+            // a single query costs the same in the attribute worker:
+            return;
+        }
+        File workDir = null;
+        try {
+            workDir = Files.createTempDir();
+            final File program = new File(workDir, "get_attribute_values.sh");
+            final String text = pending.program(prelude.toString(), workDir);
+            FileUtils.write(program, text);
+            RedirectStreams redirect = stepsLogger.stepProcess(String.format(
+                    "Run get_attribute_values for %d artifacts", pending.size()), text);
+            final ProcessTree tree = ProcessTree.start(new String[]{"/bin/bash", program.getAbsolutePath()});
+            final Process pr = tree.getProcess();
+            new Thread(new SyncPipe(pr.getErrorStream(), redirect.getStandardError(), LOG)).start();
+            final Properties[][] results = new Properties[1][];
+            final Thread reader = new Thread("get_attribute_values-batch") {
+                @Override
+                public void run() {
+                    try {
+                        results[0] = pending.parse(new BufferedReader(new InputStreamReader(pr.getInputStream())));
+                    } catch (IOException e) {
+                        LOG.warn("Unable to read the output of the get_attribute_values batch", e);
+                    }
+                }
+            };
+            reader.start();
+            final int exitVal = waitFor(tree, String.format("get_attribute_values for %d artifacts",
+                    pending.size()));
+            stepsLogger.processReturned(exitVal);
+            reader.join();
+            if (results[0] == null) {
+                return;
+            }
+            int cached = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                if (results[0][i] != null) {
+                    try {
+                        getAttributeCache().put(keys.get(i), results[0][i]);
+                    } catch (IOException e) {
+                        LOG.debug("Unable to write cached attribute values, keeping them in memory.", e);
+                    }
+                    cached++;
+                }
+            }
+            LOG.info(String.format("Evaluated get_attribute_values for %d of %d artifacts in one process.", cached,
+                    pending.size()));
+        } catch (IOException e) {
+            LOG.warn("Unable to evaluate get_attribute_values in batch, evaluating artifacts one at a time.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (workDir != null) {
+                FileUtils.deleteQuietly(workDir);
+            }
+        }
+    }
+
+    /**
+     * Resolve the attributes of an artifact that a request left undefined without fetching its install script: from
+     * the attribute cache, or by running get_attribute_values of the install script cached in the repository. Takes
+     * no lock and does not write the metadata.
+     *
+     * @param avp the attributes of the request, some possibly undefined. Not modified.
+     * @return the attributes with every value defined, or null when the install script of the plugin is not cached
+     * or get_attribute_values failed.
+     */
+    public AttributeValuePair[] resolveAttributes(String pluginId, String artifactId, String version,
+                                                  AttributeValuePair[] avp) {
+        if (!hasUndefinedAttributes(avp)) {
+            return avp;
+        }
+        final String script = getCachedInstallationScript(pluginId, version);
+        if (script == null || !new File(script).exists()) {
+            return null;
+        }
+        final AttributeValuePair[] resolved = new AttributeValuePair[avp.length];
+        for (int i = 0; i < avp.length; i++) {
+            resolved[i] = new AttributeValuePair(avp[i].name, avp[i].value);
+        }
+        return readAttributeValues(pluginId, artifactId, version, resolved, script) == null ? null : resolved;
+    }
+
+    public synchronized AttributeCache getAttributeCache() {
+        if (attributeCache == null) {
+            attributeCache = new AttributeCache(repoDir);
+        }
+        return attributeCache;
     }
 
     protected AttributeValuePair[] getAttributeValues(Artifacts.Artifact artifact,
@@ -541,6 +1075,10 @@ public class ArtifactRepo {
 
             MutableString sourceEnvCollectionScripts = getEnvCollectionSourceStatements();
             File result = new File(String.format("%s/%s-%s-%d/artifact.properties", tmpDir, pluginId, artifactId, time));
+            if (USE_ATTRIBUTE_WORKER &&
+                    runInAttributeWorker(sourceEnvCollectionScripts.toString(), pluginScript, artifactId, result)) {
+                return result;
+            }
             String wrapperTemplate = "( set -e ; set +xv ; DIR=%s/%s-%s-%d ; script=%s; echo $DIR; mkdir -p ${DIR}; %s  " +
                     " chmod +x $script ;  . $script ; get_attribute_values %s $DIR/artifact.properties ; cat $DIR/artifact.properties; set -xv )%n";
 
@@ -552,12 +1090,12 @@ public class ArtifactRepo {
             )};
             RedirectStreams redirect = stepsLogger.stepProcess("Run runAttributeValuesFunction", wrapperTemplate);
 
-            Runtime rt = Runtime.getRuntime();
-            Process pr = rt.exec(cmds);
+            ProcessTree tree = ProcessTree.start(cmds);
+            Process pr = tree.getProcess();
             new Thread(new SyncPipe(pr.getErrorStream(), redirect.getStandardError(), LOG)).start();
             new Thread(new SyncPipe(quiet, pr.getInputStream(), redirect.getStandardOut(), LOG)).start();
 
-            int exitVal = pr.waitFor();
+            int exitVal = waitFor(tree, "get_attribute_values for " + pluginId + ":" + artifactId);
             stepsLogger.processReturned(exitVal);
             LOG.debug("Install script get_attribute_values() exited with error code " + exitVal);
             if (exitVal != 0) {
@@ -570,6 +1108,60 @@ public class ArtifactRepo {
 
     }
 
+    /**
+     * Run get_attribute_values in the attribute worker of this repository object, starting the worker when needed.
+     * The worker is started again when environment collection scripts were registered since it started.
+     *
+     * @return True when get_attribute_values succeeded. False when it failed, or the worker is not available: the
+     * caller then runs get_attribute_values in its own process, which logs its output to the steps log.
+     * @throws InterruptedIOException when get_attribute_values did not complete within the install timeout.
+     */
+    private synchronized boolean runInAttributeWorker(String prelude, String pluginScript, String artifactId,
+                                                      File result) throws InterruptedIOException {
+        try {
+            if (attributeWorker != null && (!attributeWorker.isAlive() ||
+                    !attributeWorker.getPrelude().equals(prelude))) {
+                attributeWorker.close();
+                attributeWorker = null;
+            }
+            if (attributeWorker == null) {
+                attributeWorker = AttributeWorker.start(prelude);
+            }
+            stepsLogger.step(String.format("Run get_attribute_values %s in attribute worker", artifactId));
+            final int exitVal = attributeWorker.evaluate(pluginScript, artifactId, result, installTimeout);
+            if (exitVal == 0) {
+                return true;
+            }
+            LOG.info(String.format("get_attribute_values %s exited with error code %d, running it again in its own " +
+                    "process to log its output.", artifactId, exitVal));
+        } catch (InterruptedIOException e) {
+            final String reason = String.format("Killed get_attribute_values %s: %s", artifactId, e.getMessage());
+            LOG.error(reason);
+            stepsLogger.step(reason);
+            attributeWorker = null;
+            throw e;
+        } catch (IOException e) {
+            LOG.warn("The attribute worker is not available, running get_attribute_values in its own process.", e);
+            if (attributeWorker != null) {
+                attributeWorker.close();
+                attributeWorker = null;
+            }
+        }
+        // the script may have written part of the properties before failing:
+        result.delete();
+        return false;
+    }
+
+    /**
+     * Stop the attribute worker of this repository object, if one is running.
+     */
+    public synchronized void closeAttributeWorker() {
+        if (attributeWorker != null) {
+            attributeWorker.close();
+            attributeWorker = null;
+        }
+    }
+
     private MutableString getEnvCollectionSourceStatements() {
         String jobDir = System.getenv("JOB_DIR");
         MutableString sourceEnvCollectionScripts = new MutableString();
@@ -603,19 +1195,21 @@ public class ArtifactRepo {
     private Artifacts.Artifact changeState(Artifacts.Artifact artifact, Artifacts.InstallationState newState) throws IOException {
         artifact = index.get(makeKey(artifact));
         Artifacts.Artifact.Builder artifactBuilder = artifact.toBuilder().setState(newState);
+        if (newState != Artifacts.InstallationState.INSTALLING) {
+            artifactBuilder.clearInstallationOwner();
+        }
         artifact = artifactBuilder.build();
-        index.put(makeKey(artifact), artifact);
+        putInIndex(artifact);
         save();
         return artifact;
     }
 
-    private void updateInstalledSize(Artifacts.Artifact artifact) throws IOException {
+    private void updateInstalledSize(Artifacts.Artifact artifact, long artifactInstalledSize) throws IOException {
         artifact = index.get(makeKey(artifact));
         Artifacts.Artifact.Builder artifactBuilder = artifact.toBuilder();
-        final long artifactInstalledSize = FileUtils.sizeOfDirectory(new File(getPluginInstallDir(artifact)));
         artifactBuilder.setInstalledSize(artifactInstalledSize);
         artifact = artifactBuilder.build();
-        index.put(makeKey(artifact), artifact);
+        putInIndex(artifact);
         save();
     }
 
@@ -631,8 +1225,8 @@ public class ArtifactRepo {
      * @param artifactId
      */
     public void remove(String pluginId, String artifactId, String version, AttributeValuePair... avp) throws IOException {
-
-        Artifacts.Artifact artifact = find(pluginId, artifactId, version, avp);
+        ensureMaterialized();
+        Artifacts.Artifact artifact = findLocal(pluginId, artifactId, version, avp);
         if (artifact == null) {
             LOG.warn(String.format("Could not find artifact %s:%s with attributes, removing while ignoring attributes.",
                     pluginId, artifactId));
@@ -656,7 +1250,7 @@ public class ArtifactRepo {
         FileUtils.deleteDirectory(getArtifactDir(pluginId, artifactId, version, avp));
         LOG.info(String.format("Removing artifact %s:%s.",
                 pluginId, artifactId));
-        index.remove(makeKey(artifact));
+        removeFromIndex(artifact);
     }
 
     private String appendKeyValuePairs(String artifactInstallDir, AttributeValuePair... avp) {
@@ -684,13 +1278,314 @@ public class ArtifactRepo {
         ));
     }
 
-    private void runInstallScript(String pluginId, String artifactId, String pluginScript, String version, AttributeValuePair[] avp)
-            throws IOException, InterruptedException {
-
-        String installationPath = mkDirs(repoDir, pluginId, artifactId, version, avp);
-        if (pluginScript == null) {
-            return;
-        }
+    /**
+     * Move the staging directory of an artifact to its installation directory and mark the artifact INSTALLED. The
+     * lock of the plugin shard is held while the directory is renamed and until the new state is written, so that
+     * readers either see the artifact INSTALLING without its directory, or INSTALLED with its complete directory.
+     * The size of the staging directory is measured before the lock is taken, since the scan may take long.
+     *
+     * @return the artifact, INSTALLED.
+     */
+    private Artifacts.Artifact publish(Artifacts.Artifact artifact, String pluginScript, AttributeValuePair[] avp)
+            throws IOException {
+        final File stagingDir = getStagingDir(artifact.getPluginId(), artifact.getId(), artifact.getVersion(), avp);
+        final File installDir = getArtifactDir(artifact.getPluginId(), artifact.getId(), artifact.getVersion(), avp);
+        final long scanStart = System.currentTimeMillis();
+        final long installedSize = FileUtils.sizeOfDirectory(stagingDir);
+        if (timings != null) {
+            timings.setSizeScanMs(System.currentTimeMillis() - scanStart);
+        }
+        beginBatch(Collections.singleton(artifact.getPluginId()));
+        try {
+            if (installDir.exists()) {
+                // left behind by an installation that did not complete:
+                FileUtils.deleteDirectory(installDir);
+            }
+            java.nio.file.Files.move(stagingDir.toPath(), installDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            updateInstalledSize(artifact, installedSize);
+            updateInstallScriptLocation(artifact, pluginScript);
+            artifact = changeState(artifact, Artifacts.InstallationState.INSTALLED);
+        } finally {
+            final long start = System.currentTimeMillis();
+            commit();
+            if (timings != null) {
+                timings.setMetadataCommitMs(System.currentTimeMillis() - start);
+            }
+        }
+        for (TargetRepository target : targetRepositories) {
+            target.publish(this, artifact);
+        }
+        return artifact;
+    }
+
+    /**
+     * Publish the artifacts installed in this repository from now on to a target repository.
+     *
+     * @param target the target repository.
+     */
+    public void addTargetRepository(TargetRepository target) {
+        targetRepositories.add(target);
+    }
+
+    /**
+     * Write installed artifacts to an archive, with their metadata and the cached install scripts of their plugins.
+     * See ArtifactArchive.
+     *
+     * @param artifacts the artifacts to pack, which must be INSTALLED.
+     * @param output    where to write the archive.
+     * @throws IOException
+     */
+    public void pack(Collection<Artifacts.Artifact> artifacts, OutputStream output) throws IOException {
+        final ArtifactArchive.Writer writer = new ArtifactArchive.Writer(output);
+        for (Artifacts.Artifact artifact : artifacts) {
+            if (artifact.getState() != Artifacts.InstallationState.INSTALLED) {
+                throw new IOException("Only installed artifacts can be packed: " + toText(artifact));
+            }
+            // prevents reinstallations of the artifact while it is packed:
+            final StoreLock artifactLock = artifactLock(makeKey(artifact));
+            artifactLock.lockShared();
+            try {
+                final String script = getCachedInstallationScript(artifact.getPluginId(), artifact.getVersion());
+                writer.add(artifact, new File(getPluginInstallDir(artifact)), script == null ? null : new File(script));
+                stepsLogger.step("Packed " + toText(artifact));
+            } finally {
+                artifactLock.unlock();
+            }
+        }
+        writer.close();
+    }
+
+    /**
+     * Install the artifacts of an archive written by pack(). Each artifact is extracted to its staging directory and
+     * published as INSTALLED, like after a successful install script. Artifacts already installed in this
+     * repository are skipped.
+     *
+     * @param input   the archive.
+     * @param threads number of threads that write the content of extracted files.
+     * @return the artifacts unpacked.
+     * @throws IOException
+     */
+    public List<Artifacts.Artifact> unpack(InputStream input, int threads) throws IOException {
+        ensureMaterialized();
+        final List<Artifacts.Artifact> unpacked = new ObjectArrayList<Artifacts.Artifact>();
+        final ArtifactArchive.Reader reader = new ArtifactArchive.Reader(input, threads);
+        try {
+            ArtifactArchive.Header header;
+            while ((header = reader.next()) != null) {
+                final Artifacts.Artifact artifact = unpack(reader, header);
+                if (artifact != null) {
+                    unpacked.add(artifact);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return unpacked;
+    }
+
+    private Artifacts.Artifact unpack(ArtifactArchive.Reader reader, ArtifactArchive.Header header) throws IOException {
+        final Artifacts.Artifact packed = header.getArtifact();
+        final String pluginId = packed.getPluginId();
+        final String artifactId = packed.getId();
+        final String version = packed.getVersion();
+        final AttributeValuePair[] avp = convert(packed.getAttributesList());
+        // the identifiers come from the archive, and name the directories the artifact is extracted to:
+        checkPathSegment(pluginId);
+        checkPathSegment(artifactId);
+        checkPathSegment(version);
+        for (AttributeValuePair valuePair : avp) {
+            if (valuePair.value != null) {
+                checkPathSegment(normalize(valuePair.value));
+            }
+        }
+        checkInArtifactsDirectory(getStagingDir(pluginId, artifactId, version, avp));
+        checkInArtifactsDirectory(getArtifactDir(pluginId, artifactId, version, avp));
+        final StoreLock artifactLock = artifactLock(makeKey(packed));
+        artifactLock.lock();
+        try {
+            refreshShard(MetadataStores.shardName(pluginId));
+            if (findInstalled(pluginId, artifactId, version, avp) != null) {
+                stepsLogger.step(String.format("Artifact %s was found and was installed.", toText(packed)));
+                reader.skip();
+                return null;
+            }
+            Artifacts.Artifact artifact = packed.toBuilder()
+                    .setState(Artifacts.InstallationState.INSTALLING)
+                    .setInstallationOwner(newInstallationOwner())
+                    .setRelativePath(appendKeyValuePairs(
+                            FilenameUtils.concat(FilenameUtils.concat(pluginId, artifactId), version), avp))
+                    .clearInstallScriptRelativePath()
+                    .build();
+            putInIndex(artifact);
+            save();
+            File script = null;
+            try {
+                final InstallationHeartbeat heartbeat = new InstallationHeartbeat(artifact);
+                HEARTBEAT_TIMER.schedule(heartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL);
+                try {
+                    reader.extract(getStagingDir(pluginId, artifactId, version, avp),
+                            getArtifactDir(pluginId, artifactId, version, avp));
+                } finally {
+                    heartbeat.stop();
+                }
+                if (header.getInstallScript() != null) {
+                    script = File.createTempFile("install", ".sh");
+                    FileUtils.writeByteArrayToFile(script, header.getInstallScript());
+                }
+                artifact = publish(artifact, script == null ? null : script.getAbsolutePath(), avp);
+                registerPossibleEnvironmentCollection(artifact);
+                stepsLogger.step("Unpacked " + toText(artifact));
+                return artifact;
+            } catch (IOException e) {
+                changeState(artifact, Artifacts.InstallationState.FAILED);
+                throw e;
+            } catch (RuntimeException e) {
+                changeState(artifact, Artifacts.InstallationState.FAILED);
+                throw e;
+            } finally {
+                if (script != null) {
+                    script.delete();
+                }
+                save();
+            }
+        } finally {
+            artifactLock.unlock();
+        }
+    }
+
+    /**
+     * Check that an identifier read from an archive names a single directory.
+     *
+     * @throws IOException when the identifier is empty, . or .., or contains a path separator.
+     */
+    private static void checkPathSegment(String identifier) throws IOException {
+        if (identifier == null || identifier.length() == 0 || ".".equals(identifier) || "..".equals(identifier) ||
+                identifier.indexOf('/') >= 0 || identifier.indexOf('\\') >= 0 || identifier.indexOf('\0') >= 0) {
+            throw new IOException("Corrupted artifact archive, invalid identifier: " + identifier);
+        }
+    }
+
+    /**
+     * Check that a directory of an artifact is inside the artifacts directory of the repository, once symbolic
+     * links are resolved.
+     *
+     * @throws IOException when the directory is outside of the artifacts directory.
+     */
+    private void checkInArtifactsDirectory(File dir) throws IOException {
+        final File artifactsDir = new File(repoDir, "artifacts").getCanonicalFile();
+        final File canonical = dir.getCanonicalFile();
+        if (canonical.equals(artifactsDir) || !canonical.toPath().startsWith(artifactsDir.toPath())) {
+            throw new IOException(String.format("Directory %s is outside of the artifacts directory %s", dir,
+                    artifactsDir));
+        }
+    }
+
+    /**
+     * Copy an artifact installed in an upstream tier to this repository. Must be called with the lock of the
+     * artifact held.
+     */
+    private void promote(ArtifactRepo tier, Artifacts.Artifact upstream, AttributeValuePair[] avp) throws IOException {
+        LOG.info(String.format("Promoting artifact %s from upstream tier %s", toText(upstream), tier.repoDir));
+        final Artifacts.Artifact artifact = copyInstalled(upstream, new File(tier.getPluginInstallDir(upstream)),
+                tier.getCachedInstallationScript(upstream.getPluginId(), upstream.getVersion()), avp, promotionThreads);
+        if (artifact.getState() == Artifacts.InstallationState.INSTALLED) {
+            if (installationScope.isInScope(upstream.getPluginId(), upstream.getId(), upstream.getVersion())) {
+                updateExportStatements(artifact, avp, currentBashExports);
+            }
+            registerPossibleEnvironmentCollection(artifact);
+            stepsLogger.step("Promoted " + toText(artifact));
+        }
+    }
+
+    /**
+     * Install an artifact by copying it from the installation directory of another repository. Artifacts already
+     * installed in this repository are left as they are, even when the other repository holds a newer installation:
+     * other processes may use the installation directory, for instance through this repository as an upstream tier
+     * (which does not lock the artifacts it serves), and replacing it would remove files they read. See
+     * TargetRepository.
+     *
+     * @param source        the metadata of the artifact in the other repository.
+     * @param sourceDir     the installation directory of the artifact in the other repository.
+     * @param installScript the cached install script of the artifact in the other repository, or null.
+     * @param threads       number of threads that copy files.
+     * @return the artifact in this repository.
+     * @throws IOException
+     */
+    public Artifacts.Artifact importArtifact(Artifacts.Artifact source, File sourceDir, String installScript,
+                                             int threads) throws IOException {
+        ensureMaterialized();
+        final AttributeValuePair[] avp = convert(source.getAttributesList());
+        final StoreLock artifactLock = artifactLock(makeKey(source));
+        artifactLock.lock();
+        try {
+            refreshShard(MetadataStores.shardName(source.getPluginId()));
+            final Artifacts.Artifact installed = findInstalled(source.getPluginId(), source.getId(),
+                    source.getVersion(), avp);
+            if (installed != null) {
+                if (installed.getInstallationTime() != source.getInstallationTime()) {
+                    LOG.info(String.format("Artifact %s is already installed, the newer installation is not imported.",
+                            toText(installed)));
+                }
+                return installed;
+            }
+            final Artifacts.Artifact artifact = copyInstalled(source, sourceDir, installScript, avp, threads);
+            if (artifact.getState() != Artifacts.InstallationState.INSTALLED) {
+                throw new IOException("Unable to import artifact " + toText(source));
+            }
+            return artifact;
+        } finally {
+            artifactLock.unlock();
+        }
+    }
+
+    /**
+     * Copy an installed artifact to the staging directory of the artifact in this repository, and publish it.
+     * Files already present in the staging directory, from an interrupted copy, are not copied again when they did
+     * not change. Must be called with the lock of the artifact held.
+     *
+     * @return the artifact, INSTALLED, or FAILED when the copy failed.
+     */
+    private Artifacts.Artifact copyInstalled(Artifacts.Artifact source, File sourceDir, String installScript,
+                                             AttributeValuePair[] avp, int threads) throws IOException {
+        final String pluginId = source.getPluginId();
+        final String artifactId = source.getId();
+        final String version = source.getVersion();
+        Artifacts.Artifact artifact = source.toBuilder()
+                .setState(Artifacts.InstallationState.INSTALLING)
+                .setInstallationOwner(newInstallationOwner())
+                .clearInstallScriptRelativePath()
+                .build();
+        putInIndex(artifact);
+        save();
+        try {
+            final InstallationHeartbeat heartbeat = new InstallationHeartbeat(artifact);
+            HEARTBEAT_TIMER.schedule(heartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL);
+            try {
+                new ParallelTreeCopy(threads).copy(sourceDir, getStagingDir(pluginId, artifactId, version, avp),
+                        getArtifactDir(pluginId, artifactId, version, avp));
+            } finally {
+                heartbeat.stop();
+            }
+            artifact = publish(artifact, installScript, avp);
+        } catch (IOException e) {
+            LOG.error("Unable to copy artifact " + toText(source), e);
+            artifact = changeState(artifact, Artifacts.InstallationState.FAILED);
+        } catch (RuntimeException e) {
+            LOG.error("Unable to copy artifact " + toText(source), e);
+            artifact = changeState(artifact, Artifacts.InstallationState.FAILED);
+        }
+        save();
+        return artifact;
+    }
+
+    private void runInstallScript(String pluginId, String artifactId, String pluginScript, String version,
+                                  AttributeValuePair[] avp, Runnable onShutdown)
+            throws IOException, InterruptedException {
+
+        String installationPath = mkStagingDir(pluginId, artifactId, version, avp);
+        if (pluginScript == null) {
+            return;
+        }
         pluginScript = new File(pluginScript).getAbsolutePath();
         File tmpExports = File.createTempFile("exports", ".sh");
         MutableString exportString = add(preInstalledPluginExports, currentBashExports);
@@ -706,25 +1601,27 @@ public class ArtifactRepo {
                             "    exit $S; \n" +
                             " fi \n" +
                             "} \n" +
-                            "( set -e ; set -x ; exports=%s ; cat $exports ; DIR=%s/%d ; script=%s; echo $DIR; mkdir -p ${DIR}; cd ${DIR}; ls -l ; " +
+                            "( set -e ; set -x ; %s exports=%s ; cat $exports ; DIR=%s/%d ; script=%s; echo $DIR; mkdir -p ${DIR}; cd ${DIR}; ls -l ; " +
                             " chmod +x $script ; %s . $exports; . $script ; dieIfError; plugin_install_artifact %s %s %s; dieIfError; ls -l ; rm -fr ${DIR}); %n";
             RedirectStreams redirect = stepsLogger.stepProcess("Run install script", wrapperTemplate);
 
             MutableString sourceEnvCollectionScripts = getEnvCollectionSourceStatements();
-            String cmds[] = {"/bin/bash", "-c", String.format(wrapperTemplate, tmpExports.getCanonicalPath(),
+            String cmds[] = {"/bin/bash", "-c", String.format(wrapperTemplate, getResourceExports(),
+                    tmpExports.getCanonicalPath(),
                     tmpDir, time,
                     pluginScript,
                     sourceEnvCollectionScripts,
                     artifactId,
                     installationPath, formatForCommandLine(avp))};
 
-            Runtime rt = Runtime.getRuntime();
-            Process pr = rt.exec(cmds);
+            ProcessTree tree = ProcessTree.start(cmds);
+            tree.setOnShutdown(onShutdown);
+            Process pr = tree.getProcess();
 
             new Thread(new SyncPipe(pr.getErrorStream(), redirect.getStandardError(), LOG)).start();
             new Thread(new SyncPipe(pr.getInputStream(), redirect.getStandardOut(), LOG)).start();
 
-            int exitVal = pr.waitFor();
+            int exitVal = waitFor(tree, "install script of " + pluginId + ":" + artifactId + ":" + version);
             stepsLogger.processReturned(exitVal);
             // System.out.println("Install script exited with error code " + exitVal);
             tmpExports.delete();
@@ -741,6 +1638,39 @@ public class ArtifactRepo {
 
     }
 
+    /**
+     * @return the export statements of the resources granted to install scripts.
+     */
+    private MutableString getResourceExports() {
+        MutableString exports = new MutableString();
+        if (installResources != null) {
+            exports.append(String.format("export ARTIFACT_THREADS=%d ; ", installResources.getThreads()));
+            if (installResources.getMemoryMb() > 0) {
+                exports.append(String.format("export ARTIFACT_MEMORY_MB=%d ; ", installResources.getMemoryMb()));
+            }
+        }
+        return exports;
+    }
+
+    /**
+     * Wait for a script to finish, within the install timeout. When the timeout expires, the processes of the
+     * script are killed and the reason is written to the steps log.
+     *
+     * @return the exit value of the script.
+     * @throws InterruptedIOException when the timeout expired.
+     */
+    private int waitFor(ProcessTree tree, String description) throws InterruptedIOException, InterruptedException {
+        try {
+            return tree.waitFor(installTimeout);
+        } catch (InterruptedIOException e) {
+            final String reason = String.format("Killed %s: %s (install timeout is %d seconds)", description,
+                    e.getMessage(), installTimeout / 1000);
+            LOG.error(reason);
+            stepsLogger.step(reason);
+            throw new InterruptedIOException(reason);
+        }
+    }
+
     private MutableString add(MutableString preInstalledPluginExports, MutableString currentBashExports) {
         MutableString result = new MutableString();
         result.append(preInstalledPluginExports);
@@ -759,19 +1689,31 @@ public class ArtifactRepo {
     }
 
 
-    private String mkDirs(File repoDir, String pluginId, String artifactId, String version, AttributeValuePair... avp) {
-        final File dir = getArtifactDir(pluginId, artifactId, version, avp);
-
-        dir.mkdirs();
-        try {
-            FileUtils.cleanDirectory(dir);
-        } catch (IOException e) {
-            LOG.warn(String.format("An exception was encountered when cleaning the installation directory %s before installation ",
-                    dir.getPath()),e);
+    /**
+     * Create the directory the install script installs the artifact into. A staging directory left behind by an
+     * interrupted installation is kept, so that install scripts able to resume can continue from its content.
+     *
+     * @return the path of the staging directory.
+     */
+    private String mkStagingDir(String pluginId, String artifactId, String version, AttributeValuePair... avp) {
+        final File dir = getStagingDir(pluginId, artifactId, version, avp);
+        final String[] content = dir.list();
+        if (content != null && content.length > 0) {
+            LOG.info(String.format("Resuming installation from staging directory %s", dir.getPath()));
         }
+        dir.mkdirs();
         return dir.getAbsolutePath();
     }
 
+    /**
+     * The staging directory of an artifact is a sibling of its installation directory, so that it can be renamed
+     * into place atomically.
+     */
+    private File getStagingDir(String pluginId, String artifactId, String version, AttributeValuePair... avp) {
+        final File dir = getArtifactDir(pluginId, artifactId, version, avp);
+        return new File(dir.getParentFile(), "." + dir.getName() + STAGING_SUFFIX);
+    }
+
     public Artifacts.Artifact find(String pluginId, String artifactId, AttributeValuePair[] avp) {
         return find(pluginId, artifactId, "VERSION", avp);
     }
@@ -786,11 +1728,59 @@ public class ArtifactRepo {
         return find(pluginId, artifactId, version, new AttributeValuePair[0]);
     }
 
+    /**
+     * Find an artifact. When the artifact is not installed in this repository, the upstream tiers are searched in
+     * order, and the first installed artifact found is returned.
+     *
+     * @return the artifact, or null when neither this repository nor its upstream tiers have it.
+     */
     public Artifacts.Artifact find(String pluginId, String artifactId, String version, AttributeValuePair... avp) {
+        final Artifacts.Artifact artifact = findLocal(pluginId, artifactId, version, avp);
+        if (artifact != null && artifact.getState() == Artifacts.InstallationState.INSTALLED) {
+            return artifact;
+        }
+        final ArtifactRepo tier = findUpstreamTier(pluginId, artifactId, version, avp);
+        return tier == null ? artifact : tier.find(pluginId, artifactId, version, avp);
+    }
 
+    /**
+     * Find an artifact in this repository only, ignoring the upstream tiers.
+     */
+    public Artifacts.Artifact findLocal(String pluginId, String artifactId, String version, AttributeValuePair... avp) {
+        if (lazy) {
+            return findLazily(pluginId, makeKey(pluginId, artifactId, version, avp).toString());
+        }
+        ensureShardLoaded(pluginId);
         return index.get(makeKey(pluginId, artifactId, version, avp));
     }
 
+    /**
+     * Find an artifact in a lazily loaded repository. The artifact is read from the store of the plugin shard
+     * without loading the rest of the shard. Changes not yet saved take precedence over the store. Artifacts
+     * read from the store are cached.
+     */
+    private synchronized Artifacts.Artifact findLazily(String pluginId, String key) {
+        if (lazyArtifacts.containsKey(key)) {
+            return lazyArtifacts.get(key);
+        }
+        try {
+            final Object2ObjectLinkedOpenHashMap<String, Artifacts.JournalEntry> pending =
+                    pendingChanges.get(MetadataStores.shardName(pluginId));
+            final Artifacts.Artifact artifact;
+            if (pending != null && pending.containsKey(key)) {
+                final Artifacts.JournalEntry entry = pending.get(key);
+                artifact = entry.getOperation() == Artifacts.JournalEntry.Operation.PUT ? entry.getArtifact() : null;
+            } else {
+                artifact = shard(pluginId).get(key);
+            }
+            lazyArtifacts.put(key, artifact);
+            return artifact;
+        } catch (IOException e) {
+            LOG.error("Unable to read artifact from metadata shard, key=" + key, e);
+            return null;
+        }
+    }
+
     /**
      * Find artifacts, ignoring any possible attributes.
      *
@@ -800,6 +1790,40 @@ public class ArtifactRepo {
      * @return list of attributes with suitable pluginId, artifactIds and version.
      */
     public List<Artifacts.Artifact> findIgnoringAttributes(String pluginId, String artifactId, String version) {
+        checkNotLazy();
+        return scanIgnoringAttributes(pluginId, artifactId, version);
+    }
+
+    /**
+     * Find installed artifacts, ignoring any possible attributes, in this repository and in its upstream tiers. An
+     * artifact of an upstream tier is only returned when this repository has no installed artifact with the same
+     * attributes.
+     *
+     * @return list of installed artifacts with suitable pluginId, artifactIds and version.
+     */
+    public List<Artifacts.Artifact> findInstalledIgnoringAttributes(String pluginId, String artifactId, String version)
+            throws IOException {
+        List<Artifacts.Artifact> result = new ObjectArrayList<Artifacts.Artifact>();
+        ObjectOpenHashSet<MutableString> keys = new ObjectOpenHashSet<MutableString>();
+        for (Artifacts.Artifact artifact : findIgnoringAttributes(pluginId, artifactId, version)) {
+            if (artifact.getState() == Artifacts.InstallationState.INSTALLED) {
+                result.add(artifact);
+                keys.add(makeKey(artifact));
+            }
+        }
+        for (ArtifactRepo tier : upstreamTiers) {
+            tier.refreshShard(MetadataStores.shardName(pluginId));
+            for (Artifacts.Artifact artifact : tier.scanIgnoringAttributes(pluginId, artifactId, version)) {
+                if (artifact.getState() == Artifacts.InstallationState.INSTALLED && keys.add(makeKey(artifact))) {
+                    result.add(artifact);
+                }
+            }
+        }
+        return result;
+    }
+
+    private synchronized List<Artifacts.Artifact> scanIgnoringAttributes(String pluginId, String artifactId, String version) {
+        ensureShardLoaded(pluginId);
         List<Artifacts.Artifact> result = new ObjectArrayList<Artifacts.Artifact>();
         for (MutableString key : index.keySet()) {
             String prefix = makeKey(pluginId, artifactId, version).toString();
@@ -827,6 +1851,39 @@ public class ArtifactRepo {
 
     private InstallationScope installationScope = new InstalledInRepoScope(this);
 
+    /**
+     * Create another repository object on the same directory and with the same configuration, for use by another
+     * thread. ArtifactRepo instances are not thread-safe, but instances on the same directory coordinate through
+     * their locks and the metadata they save. The new instance must be loaded before use. It has its own upstream
+     * tier objects, and its own steps log in the log directory of this repository.
+     *
+     * @return the new repository object.
+     * @throws IOException
+     */
+    public ArtifactRepo fork() throws IOException {
+        ArtifactRepo fork = new ArtifactRepo(repoDir);
+        fork.lockType = lockType;
+        fork.metadataBackend = metadataBackend;
+        fork.spaceRepoDirQuota = spaceRepoDirQuota;
+        if (stepLogDir != null) {
+            fork.setStepLogDir(stepLogDir);
+        }
+        fork.quiet = quiet;
+        fork.installationScope = installationScope instanceof InstalledInRepoScope ?
+                new InstalledInRepoScope(fork) : installationScope;
+        fork.environmentCollectionScripts.addAll(environmentCollectionScripts);
+        for (ArtifactRepo tier : upstreamTiers) {
+            fork.addUpstreamTier(tier.repoDir);
+        }
+        fork.promoteFromUpstream = promoteFromUpstream;
+        fork.promotionThreads = promotionThreads;
+        fork.targetRepositories.addAll(targetRepositories);
+        fork.installTimeout = installTimeout;
+        fork.installationHistory = getInstallationHistory();
+        fork.attributeCache = getAttributeCache();
+        return fork;
+    }
+
     /**
      * Load a repository.
      *
@@ -842,62 +1899,442 @@ public class ArtifactRepo {
     }
 
     public synchronized void load(File repoDir, boolean updateExportStatements) throws IOException {
-        FileInputStream input = null;
-        try {
-            acquireExclusiveLock();
+        load((Collection<String>) null, updateExportStatements);
+    }
 
-            File repoFile = new File(getMetaDataFilename());
-            Artifacts.Repository repo;
-            if (repoFile.exists() && FileUtils.sizeOf(repoFile) != 0) {
-                LOG.trace(String.format("Loading from %s%n", repoDir.getAbsolutePath()));
-                input = new FileInputStream(getMetaDataFilename());
-                repo = Artifacts.Repository.parseDelimitedFrom(input);
-                LOG.trace(String.format("Loaded repo with %d artifacts. %n", repo.getArtifactsCount()));
-            } else {
-                // creating new repo:
-                repo = Artifacts.Repository.getDefaultInstance();
-
-            }
-            scan(repo);
-            preInstalledPluginExports.setLength(0);
-            currentBashExports.setLength(0);
-            if (updateExportStatements) {
-                // pre-set export statements with exports for all pre-installed tools:
-                for (Artifacts.Artifact installedArtifact : this.index.values()) {
-                    if (installedArtifact.getState() == Artifacts.InstallationState.INSTALLED) {
-                        registerPossibleEnvironmentCollection(installedArtifact);
-                        if (installationScope.isInScope(installedArtifact.getPluginId(), installedArtifact.getId(), installedArtifact.getVersion())) {
-                            updateExportStatements(installedArtifact, convert(installedArtifact.getAttributesList()),
-                                    preInstalledPluginExports);
-                        }
-                    }
+    /**
+     * Load the metadata shards of some plugins. Shards of environment collection plugins are always loaded, since
+     * their scripts are sourced before calculating export statements. Loading the shards needed by a request,
+     * rather than the entire repository, avoids waiting for processes that hold the lock of unrelated plugins.
+     *
+     * @param pluginIds              ids of the plugins to load, or null to load every shard in the repository.
+     * @param updateExportStatements when true, calculate the export statements of the installed artifacts.
+     * @throws IOException
+     */
+    public synchronized void load(Collection<String> pluginIds, boolean updateExportStatements) throws IOException {
+        migrateSingleFileMetadata();
+        lazy = false;
+        lazyArtifacts.clear();
+        ObjectArrayList<String> shardNames = new ObjectArrayList<String>();
+        for (String shardName : listShards()) {
+            if (pluginIds == null ||
+                    shardName.startsWith(MetadataStores.shardName(BuildArtifactRequest.ARTIFACTS_ENVIRONMENT_COLLECTION_SCRIPT))) {
+                shardNames.add(shardName);
+            }
+        }
+        if (pluginIds != null) {
+            for (String pluginId : pluginIds) {
+                shardNames.add(MetadataStores.shardName(pluginId));
+            }
+        }
+        int changed = 0;
+        for (String shardName : new ObjectAVLTreeSet<String>(shardNames)) {
+            if (refreshShard(shardName)) {
+                changed++;
+            }
+        }
+        LOG.trace(String.format("Loaded repo with %d artifacts (%d shards changed). %n", index.size(), changed));
+        preInstalledPluginExports.setLength(0);
+        currentBashExports.setLength(0);
+        if (updateExportStatements) {
+            for (Artifacts.Artifact installedArtifact : this.index.values()) {
+                if (installedArtifact.getState() == Artifacts.InstallationState.INSTALLED) {
+                    registerPossibleEnvironmentCollection(installedArtifact);
                 }
             }
+            // pre-set export statements with exports for all pre-installed tools:
+            updateCachedExports();
+            for (String exports : exportsByKey.values()) {
+                preInstalledPluginExports.append(exports);
+            }
+        }
+    }
+
+    /**
+     * Read the changes made to a shard since it was last read into the index.
+     *
+     * @param shardName name of the shard.
+     * @return True when the shard changed.
+     * @throws IOException
+     */
+    private boolean refreshShard(String shardName) throws IOException {
+        final boolean changed = shard(shardName, true).refresh(shardListener);
+        // changes not yet saved by this instance remain visible after reloading:
+        final Object2ObjectLinkedOpenHashMap<String, Artifacts.JournalEntry> pending = pendingChanges.get(shardName);
+        if (changed && pending != null) {
+            for (Artifacts.JournalEntry entry : pending.values()) {
+                applyToIndex(entry);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Read the shard of a plugin into the index, if it was not read yet. Shards are read on first access, so that
+     * looking up an artifact does not require loading the entire repository.
+     *
+     * @param pluginId id of the plugin.
+     */
+    private synchronized void ensureShardLoaded(String pluginId) {
+        final MetadataStore shard = shard(pluginId);
+        if (!shard.isLoaded()) {
+            try {
+                migrateSingleFileMetadata();
+                refreshShard(shard.getName());
+            } catch (IOException e) {
+                LOG.error("Unable to load metadata of plugin " + pluginId, e);
+            }
+        }
+    }
+
+    /**
+     * @return the names of the shards present in the repository.
+     */
+    private List<String> listShards() {
+        ObjectArrayList<String> result = new ObjectArrayList<String>();
+        File[] directories = new File(getShardsDirectory()).listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                if (directory.isDirectory()) {
+                    result.add(directory.getName());
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private MetadataStore shard(String pluginId) {
+        return shard(MetadataStores.shardName(pluginId), true);
+    }
+
+    private synchronized MetadataStore shard(String shardName, boolean create) {
+        MetadataStore shard = shards.get(shardName);
+        if (shard == null && create) {
+            if (legacyShard != null) {
+                shard = legacyShard;
+            } else if (readOnly) {
+                shard = MetadataStores.openReadOnly(new File(getShardsDirectory(), shardName), keyFunction);
+            } else {
+                shard = MetadataStores.open(new File(getShardsDirectory(), shardName), keyFunction, metadataBackend,
+                        lockType);
+            }
+            shards.put(shardName, shard);
+        }
+        return shard;
+    }
+
+    /**
+     * Set the metadata store implementation used for the shards created from now on. Existing shards keep the
+     * implementation that wrote them, see convertMetadata().
+     *
+     * @param backend the store implementation.
+     */
+    public void setMetadataBackend(MetadataStores.Backend backend) {
+        this.metadataBackend = backend;
+    }
+
+    /**
+     * Convert the metadata of every shard of the repository to a store implementation. Repositories written by
+     * earlier versions (a single metadata.pb) are split into shards first. New shards will also use the
+     * implementation.
+     *
+     * @param backend the store implementation to convert to.
+     * @throws IOException
+     */
+    public synchronized void convertMetadata(MetadataStores.Backend backend) throws IOException {
+        migrateSingleFileMetadata();
+        save();
+        setMetadataBackend(backend);
+        for (String shardName : listShards()) {
+            final MetadataStore shard = shard(shardName, true);
+            final MetadataStore converted = MetadataStores.convert(shard,
+                    new File(getShardsDirectory(), shardName), keyFunction, backend);
+            shards.put(shardName, converted);
+        }
+        // the index is read again from the converted stores:
+        load(false);
+    }
+
+    /**
+     * Split the metadata of repositories written by earlier versions (a single metadata.pb and metadata.journal
+     * in the repository directory) into per-plugin shards. The single-file metadata is renamed to
+     * metadata.pb.migrated once every shard has been written, and replaced by SHARDED_MARKER. An interrupted
+     * migration is simply repeated. Read-only repositories are not migrated: their single-file metadata is read in
+     * place by legacyShard, so that the earlier versions that write to them can still load them.
+     *
+     * @throws IOException
+     */
+    private void migrateSingleFileMetadata() throws IOException {
+        final File legacyCheckpoint = new File(getMetaDataFilename());
+        final File legacyJournal = new File(FilenameUtils.concat(repoDir.getAbsolutePath(), "metadata.journal"));
+        if (!isLegacyCheckpoint(legacyCheckpoint) && !legacyJournal.exists()) {
+            return;
+        }
+        if (readOnly) {
+            if (legacyShard == null) {
+                legacyShard = MetadataStores.openReadOnly(repoDir, keyFunction);
+                shards.clear();
+            }
+            return;
+        }
+        try {
+            acquireExclusiveLock();
+            if (!isLegacyCheckpoint(legacyCheckpoint) && !legacyJournal.exists()) {
+                // migrated by another process while we waited for the lock:
+                return;
+            }
+            Object2ObjectOpenHashMap<String, Object2ObjectLinkedOpenHashMap<String, Artifacts.JournalEntry>> byShard =
+                    new Object2ObjectOpenHashMap<String, Object2ObjectLinkedOpenHashMap<String, Artifacts.JournalEntry>>();
+            final List<Artifacts.Artifact> legacyArtifacts = isLegacyCheckpoint(legacyCheckpoint) ?
+                    ProtobufMetadataStore.readCheckpoint(legacyCheckpoint).getArtifactsList() :
+                    Collections.<Artifacts.Artifact>emptyList();
+            for (Artifacts.Artifact artifact : legacyArtifacts) {
+                addChange(byShard, artifact.getPluginId(), Artifacts.JournalEntry.newBuilder()
+                        .setOperation(Artifacts.JournalEntry.Operation.PUT)
+                        .setKey(makeKey(artifact).toString())
+                        .setArtifact(artifact).build());
+            }
+            for (Artifacts.JournalEntry entry : new MetadataJournal(legacyJournal).replay(0)) {
+                final String pluginId = entry.hasArtifact() ? entry.getArtifact().getPluginId() :
+                        entry.getKey().substring(0, entry.getKey().indexOf('$'));
+                addChange(byShard, pluginId, entry);
+            }
+            for (String shardName : byShard.keySet()) {
+                final MetadataStore shard = shard(shardName, true);
+                shard.commit(new ObjectArrayList<Artifacts.JournalEntry>(byShard.get(shardName).values()));
+                shard.compact();
+            }
+            if (isLegacyCheckpoint(legacyCheckpoint)) {
+                java.nio.file.Files.move(legacyCheckpoint.toPath(), new File(getMetaDataFilename() + ".migrated").toPath(),
+                        java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            }
+            final File marker = new File(getMetaDataFilename() + ".tmp");
+            FileUtils.writeByteArrayToFile(marker, SHARDED_MARKER);
+            java.nio.file.Files.move(marker.toPath(), legacyCheckpoint.toPath(),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            legacyJournal.delete();
+            new File(FilenameUtils.concat(repoDir.getAbsolutePath(), "metadata.idx")).delete();
+            LOG.info(String.format("Migrated the repository metadata to %d plugin shards.", byShard.size()));
         } finally {
             releaseLock();
-            if (input != null) {
-                input.close();
-            }
         }
     }
 
     /**
-     * scan and index a freshly loaded repo
+     * Content of metadata.pb in the repository directory once the metadata was split into shards. Versions before
+     * 2.4.0 fail to load it (a message that starts with the invalid field number zero), instead of reading an
+     * empty repository and installing artifacts again over the ones recorded in the shards.
+     */
+    private static final byte[] SHARDED_MARKER = shardedMarker();
+
+    private static byte[] shardedMarker() {
+        final byte[] text = ("\0This repository keeps its metadata in per-plugin shards (metadata/), which requires " +
+                "version 2.4.0 or later of the artifact manager.\n").getBytes(Charset.forName("UTF-8"));
+        final ByteArrayOutputStream marker = new ByteArrayOutputStream();
+        // varint length prefix, as read by Repository.parseDelimitedFrom():
+        int length = text.length;
+        while ((length & ~0x7F) != 0) {
+            marker.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        marker.write(length);
+        marker.write(text, 0, text.length);
+        return marker.toByteArray();
+    }
+
+    /**
+     * @return True when the file is the metadata of a repository written by an earlier version, rather than
+     * SHARDED_MARKER.
      */
+    private static boolean isLegacyCheckpoint(File file) throws IOException {
+        return file.exists() && !(file.length() == SHARDED_MARKER.length &&
+                Arrays.equals(FileUtils.readFileToByteArray(file), SHARDED_MARKER));
+    }
+
+    private void addChange(Object2ObjectOpenHashMap<String, Object2ObjectLinkedOpenHashMap<String, Artifacts.JournalEntry>> changes,
+                           String pluginId, Artifacts.JournalEntry entry) {
+        final String shardName = MetadataStores.shardName(pluginId);
+        Object2ObjectLinkedOpenHashMap<String, Artifacts.JournalEntry> shardChanges = changes.get(shardName);
+        if (shardChanges == null) {
+            shardChanges = new Object2ObjectLinkedOpenHashMap<String, Artifacts.JournalEntry>();
+            changes.put(shardName, shardChanges);
+        }
+        // keep only the last change to each artifact:
+        shardChanges.remove(entry.getKey());
+        shardChanges.put(entry.getKey(), entry);
+    }
 
-    private void scan(Artifacts.Repository repo) {
+    /**
+     * Load the repository lazily. Instead of reading every plugin shard, find(), isInstalled() and getInstalledPath()
+     * read only the artifacts they look up from the store of the shard they need. Export statements are not calculated. Methods that need every
+     * artifact require a call to load(), which materializes the repository.
+     *
+     * @throws IOException
+     */
+    public synchronized void loadLazily() throws IOException {
+        migrateSingleFileMetadata();
         index.clear();
-        for (Artifacts.Artifact artifact : repo.getArtifactsList()) {
-            final MutableString key;
-            key = makeKey(artifact);
-            index.put(key, artifact);
-            if (artifact.hasInstallScriptRelativePath()) {
-                String cachedPath = absolutePathInRepo("scripts", artifact.getInstallScriptRelativePath());
-                pluginIdToInstallScriptPath.put(buildCacheKey(artifact), cachedPath);
+        for (MetadataStore shard : shards.values()) {
+            shard.forget();
+        }
+        lazyArtifacts.clear();
+        lazy = true;
+    }
+
+    /**
+     * Load the entire repository if it was loaded lazily.
+     *
+     * @throws IOException
+     */
+    private void ensureMaterialized() throws IOException {
+        if (lazy) {
+            load();
+        }
+    }
+
+    private void checkNotLazy() {
+        if (lazy) {
+            throw new IllegalStateException("The repository was loaded lazily, call load() before listing artifacts.");
+        }
+    }
+
+    /**
+     * Recalculate the export statements of the artifacts that changed since the exports were last calculated.
+     * Export statements depend on the installation scope and on the environment collection scripts, so all
+     * exports are recalculated when either changed.
+     *
+     * @throws IOException
+     */
+    private void updateCachedExports() throws IOException {
+        if (installationScope != exportsScope || !environmentCollectionScripts.equals(exportsEnvironmentScripts)) {
+            invalidateAllExports();
+        }
+        if (allExportsStale) {
+            exportsByKey.clear();
+            staleExportKeys.clear();
+            staleExportKeys.addAll(index.keySet());
+            allExportsStale = false;
+        }
+        evaluateAttributesOfStaleExports();
+        for (MutableString key : staleExportKeys) {
+            exportsByKey.remove(key);
+            final Artifacts.Artifact installedArtifact = index.get(key);
+            if (installedArtifact != null && installedArtifact.getState() == Artifacts.InstallationState.INSTALLED &&
+                    installationScope.isInScope(installedArtifact.getPluginId(), installedArtifact.getId(), installedArtifact.getVersion())) {
+                MutableString exports = new MutableString();
+                updateExportStatements(installedArtifact, convert(installedArtifact.getAttributesList()), exports);
+                if (exports.length() > 0) {
+                    exportsByKey.put(key, exports.toString());
+                }
+            }
+        }
+        staleExportKeys.clear();
+        exportsScope = installationScope;
+        exportsEnvironmentScripts = new ObjectArrayList<String>(environmentCollectionScripts);
+    }
+
+    /**
+     * Evaluate get_attribute_values for the installed artifacts whose exports are recalculated, in one process.
+     */
+    private void evaluateAttributesOfStaleExports() {
+        final AttributeBatch batch = new AttributeBatch();
+        for (MutableString key : staleExportKeys) {
+            final Artifacts.Artifact installedArtifact = index.get(key);
+            if (installedArtifact != null && installedArtifact.getState() == Artifacts.InstallationState.INSTALLED &&
+                    installedArtifact.getAttributesCount() > 0 && hasCachedInstallationScript(installedArtifact) &&
+                    installationScope.isInScope(installedArtifact.getPluginId(), installedArtifact.getId(),
+                            installedArtifact.getVersion())) {
+                batch.add(installedArtifact.getPluginId(), installedArtifact.getId(),
+                        getCachedInstallationScript(installedArtifact.getPluginId(), installedArtifact.getVersion()));
             }
         }
+        evaluate(batch);
     }
 
+    private void invalidateAllExports() {
+        allExportsStale = true;
+    }
+
+    /**
+     * Apply a journal entry to the in-memory index.
+     *
+     * @param entry the mutation to apply.
+     */
+    private void applyToIndex(Artifacts.JournalEntry entry) {
+        switch (entry.getOperation()) {
+            case PUT:
+                final Artifacts.Artifact artifact = entry.getArtifact();
+                final MutableString key = makeKey(artifact);
+                index.put(key, artifact);
+                staleExportKeys.add(key);
+                if (artifact.hasInstallScriptRelativePath()) {
+                    pluginIdToInstallScriptPath.put(buildCacheKey(artifact),
+                            absolutePathInRepo("scripts", artifact.getInstallScriptRelativePath()));
+                }
+                break;
+            case REMOVE:
+                final MutableString removedKey = new MutableString(entry.getKey()).compact();
+                index.remove(removedKey);
+                staleExportKeys.add(removedKey);
+                break;
+        }
+    }
+
+    /**
+     * Store an artifact in the index and record the change so that the next save appends it to the journal.
+     *
+     * @param artifact the new or revised artifact.
+     */
+    private void putInIndex(Artifacts.Artifact artifact) {
+        final MutableString key = makeKey(artifact);
+        index.put(key, artifact);
+        staleExportKeys.add(key);
+        final String keyString = key.toString();
+        addChange(pendingChanges, artifact.getPluginId(), Artifacts.JournalEntry.newBuilder()
+                .setOperation(Artifacts.JournalEntry.Operation.PUT)
+                .setKey(keyString)
+                .setArtifact(artifact).build());
+    }
+
+    /**
+     * Remove an artifact from the index and record the change so that the next save appends it to the journal.
+     *
+     * @param artifact the artifact to remove.
+     */
+    private void removeFromIndex(Artifacts.Artifact artifact) {
+        final MutableString key = makeKey(artifact);
+        index.remove(key);
+        staleExportKeys.add(key);
+        final String keyString = key.toString();
+        addChange(pendingChanges, artifact.getPluginId(), Artifacts.JournalEntry.newBuilder()
+                .setOperation(Artifacts.JournalEntry.Operation.REMOVE)
+                .setKey(keyString).build());
+    }
+
+    /**
+     * Forget the artifacts of a shard that is about to be read from scratch.
+     */
+    private final MetadataStore.Listener shardListener = new MetadataStore.Listener() {
+        @Override
+        public void reset(MetadataStore shard) {
+            ObjectIterator<Object2ObjectMap.Entry<MutableString, Artifacts.Artifact>> iterator = index.object2ObjectEntrySet().iterator();
+            while (iterator.hasNext()) {
+                final Object2ObjectMap.Entry<MutableString, Artifacts.Artifact> entry = iterator.next();
+                if (shard == legacyShard ||
+                        MetadataStores.shardName(entry.getValue().getPluginId()).equals(shard.getName())) {
+                    staleExportKeys.add(entry.getKey());
+                    iterator.remove();
+                }
+            }
+        }
+
+        @Override
+        public void apply(Artifacts.JournalEntry entry) {
+            applyToIndex(entry);
+        }
+    };
+
     private String buildCacheKey(Artifacts.Artifact artifact) {
        return buildCacheKey(artifact.getPluginId(), artifact.getVersion());
     }
@@ -926,7 +2363,20 @@ public class ArtifactRepo {
      * @return Absolute path of the cached installation script.
      */
     public String getCachedInstallationScript(String pluginId, String version) {
-        return pluginIdToInstallScriptPath.get(buildCacheKey(pluginId,version));
+        if (!lazy) {
+            ensureShardLoaded(pluginId);
+        }
+        final String script = pluginIdToInstallScriptPath.get(buildCacheKey(pluginId, version));
+        if (script == null) {
+            // the plugin may only be installed in an upstream tier:
+            for (ArtifactRepo tier : upstreamTiers) {
+                final String upstreamScript = tier.getCachedInstallationScript(pluginId, version);
+                if (upstreamScript != null) {
+                    return upstreamScript;
+                }
+            }
+        }
+        return script;
     }
 
     /**
@@ -1024,80 +2474,256 @@ public class ArtifactRepo {
     }
 
     private Object2ObjectOpenHashMap<MutableString, Artifacts.Artifact> index = new Object2ObjectOpenHashMap<MutableString, Artifacts.Artifact>();
+    /**
+     * Changes made to the index since the last save, grouped by shard name and keyed by artifact key. Only the last
+     * change to each artifact is kept.
+     */
+    private Object2ObjectOpenHashMap<String, Object2ObjectLinkedOpenHashMap<String, Artifacts.JournalEntry>> pendingChanges =
+            new Object2ObjectOpenHashMap<String, Object2ObjectLinkedOpenHashMap<String, Artifacts.JournalEntry>>();
+    /**
+     * Metadata shards of this repository, keyed by shard name. Shards are created on first access.
+     */
+    private Object2ObjectOpenHashMap<String, MetadataStore> shards = new Object2ObjectOpenHashMap<String, MetadataStore>();
+    /**
+     * Lock implementation of the repository, recorded in the repository directory (see LockType.of()). Upstream
+     * tiers are read without locks.
+     */
+    private LockType lockType;
+    /**
+     * True for upstream tiers: the metadata is read without locks and never written to, see addUpstreamTier().
+     */
+    private boolean readOnly;
+    /**
+     * Store that reads the single-file metadata of a read-only repository written by an earlier version in place,
+     * instead of migrating it to shards. Serves every plugin. Null when the repository has shards.
+     */
+    private MetadataStore legacyShard;
+    /**
+     * Read-only repositories consulted for artifacts not installed in this repository, see addUpstreamTier().
+     */
+    private final List<ArtifactRepo> upstreamTiers = new ObjectArrayList<ArtifactRepo>();
+    private boolean promoteFromUpstream;
+    /**
+     * Repositories that artifacts installed in this repository are published to, see addTargetRepository().
+     */
+    private final List<TargetRepository> targetRepositories = new ObjectArrayList<TargetRepository>();
+    private int promotionThreads = 4;
+    /**
+     * Maximum time install scripts and get_attribute_values may run, in milliseconds. Zero for no limit.
+     */
+    private long installTimeout;
+    /**
+     * Resources granted to the next install script, exported to it, or null when none were granted.
+     */
+    private ResourceBudget.Grant installResources;
+    /**
+     * Time it took to fetch the install script of the next installation, in milliseconds.
+     */
+    private long scriptFetchTime;
+    /**
+     * Timings of the installation in progress, null when no installation is in progress.
+     */
+    private Artifacts.InstallTimings.Builder timings;
+    private InstallationHistory installationHistory;
+    /**
+     * Evaluates get_attribute_values without starting a process per artifact, see runInAttributeWorker().
+     */
+    private AttributeWorker attributeWorker;
+    private AttributeCache attributeCache;
+    /**
+     * Set the system property artifacts.attributes.worker to false to run get_attribute_values in its own process
+     * for every artifact.
+     */
+    private static final boolean USE_ATTRIBUTE_WORKER =
+            !"false".equals(System.getProperty("artifacts.attributes.worker"));
+    /**
+     * Store implementation used for new shards. Defaults to the value of the artifacts.metadata.backend system
+     * property (protobuf or key-value), or protobuf.
+     */
+    private MetadataStores.Backend metadataBackend =
+            MetadataStores.Backend.parse(System.getProperty("artifacts.metadata.backend", "protobuf"));
+    /**
+     * Shards locked by the current batch, in the order they were locked.
+     */
+    private ObjectArrayList<MetadataStore> batchShards = new ObjectArrayList<MetadataStore>();
+    /**
+     * Install locks of the artifacts, keyed by lock file name.
+     */
+    private Object2ObjectOpenHashMap<String, StoreLock> artifactLocks = new Object2ObjectOpenHashMap<String, StoreLock>();
+    /**
+     * True when the repository was loaded lazily, see loadLazily().
+     */
+    private boolean lazy;
+    /**
+     * Artifacts of a lazily loaded repository that were already read from the shard stores. A null value indicates
+     * that no artifact exists with the key.
+     */
+    private Object2ObjectOpenHashMap<String, Artifacts.Artifact> lazyArtifacts = new Object2ObjectOpenHashMap<String, Artifacts.Artifact>();
+    private final MappedMetadataIndex.KeyFunction keyFunction = new MappedMetadataIndex.KeyFunction() {
+        @Override
+        public String key(Artifacts.Artifact artifact) {
+            return makeKey(artifact).toString();
+        }
+    };
+    /**
+     * Export statements of the installed artifacts in scope, keyed by artifact key. Calculating exports may run
+     * the get_attribute_values function of plugins, so exports are only recalculated for the artifacts that changed.
+     */
+    private Object2ObjectLinkedOpenHashMap<MutableString, String> exportsByKey = new Object2ObjectLinkedOpenHashMap<MutableString, String>();
+    /**
+     * Keys of the artifacts that changed since their exports were last calculated.
+     */
+    private ObjectOpenHashSet<MutableString> staleExportKeys = new ObjectOpenHashSet<MutableString>();
+    private boolean allExportsStale = true;
+    private InstallationScope exportsScope;
+    private ObjectArrayList<String> exportsEnvironmentScripts = new ObjectArrayList<String>();
 
     public void save() throws IOException {
         save(repoDir);
 
     }
 
-    public synchronized void save(File repoDir) throws IOException {
+    /**
+     * Number of nested batches currently open on this repository. Saves are deferred while a batch is open.
+     */
+    private int batchDepth = 0;
 
-        FileOutputStream output = null;
-        try {
-            acquireExclusiveLock();
+    /**
+     * Start a batch of metadata changes that may touch every plugin of the repository. The lock of every existing
+     * shard is held for the duration of the batch. See beginBatch(Collection).
+     *
+     * @throws IOException
+     */
+    public synchronized void beginBatch() throws IOException {
+        migrateSingleFileMetadata();
+        beginBatch(listShards());
+    }
 
-            LOG.debug(String.format("Saving to %s %n", repoDir.getAbsolutePath()));
-            output = new FileOutputStream(getMetaDataFilename());
-            // recreate the ProtoBuf repo from the index:
-            Artifacts.Repository.Builder repoBuilder = Artifacts.Repository.newBuilder();
-            repoBuilder.addAllArtifacts(index.values());
-            Artifacts.Repository repo = repoBuilder.build();
+    /**
+     * Start a batch of metadata changes. Until the matching commit(), changes to the index are kept in memory and
+     * calls to save() do not write to disk. The locks of the shards of the given plugins are acquired in a fixed
+     * order and held for the duration of the batch. Shards of other plugins are locked when first modified.
+     * Batches may be nested, in which case changes are written when the outermost batch commits. Changes made in
+     * a batch are lost if the process dies before the batch is committed. Do not install artifacts in a batch:
+     * install() acquires the lock of the artifact before the lock of its shard, and another process installing the
+     * same artifact would wait for the shard locks held by the batch.
+     *
+     * @param pluginIds ids of the plugins the batch will modify.
+     * @throws IOException
+     */
+    public synchronized void beginBatch(Collection<String> pluginIds) throws IOException {
+        ObjectAVLTreeSet<String> shardNames = new ObjectAVLTreeSet<String>();
+        for (String pluginId : pluginIds) {
+            shardNames.add(MetadataStores.shardName(pluginId));
+        }
+        batchDepth++;
+        for (String shardName : shardNames) {
+            lockForBatch(shard(shardName, true));
+        }
+    }
 
-            repo.writeDelimitedTo(output);
-            LOG.debug(String.format("Wrote repo with %d artifacts.%n", repo.getArtifactsCount()));
+    private void lockForBatch(MetadataStore shard) throws IOException {
+        shard.lock();
+        batchShards.add(shard);
+    }
 
+    /**
+     * Commit the current batch. When the outermost batch is committed, the changes gathered since beginBatch()
+     * are appended to the journal of each modified shard, and the shard locks are released.
+     *
+     * @throws IOException
+     */
+    public synchronized void commit() throws IOException {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("commit() must be called after beginBatch()");
+        }
+        batchDepth--;
+        if (batchDepth > 0) {
+            return;
+        }
+        try {
+            save();
         } finally {
-            if (output != null) {
-                output.close();
+            for (int i = batchShards.size() - 1; i >= 0; i--) {
+                batchShards.get(i).unlock();
             }
-            releaseLock();
-
+            batchShards.clear();
         }
     }
 
-    private ExclusiveLockRequest request;
+    /**
+     * Determine if a batch of metadata changes is open.
+     *
+     * @return True when save() calls are currently deferred until commit().
+     */
+    public boolean isInBatch() {
+        return batchDepth > 0;
+    }
 
-    public synchronized void acquireExclusiveLock() throws IOException {
-        if (lockCount > 0) {
-            // already locked, simply increment lock count and return:
-            lockCount++;
+    /**
+     * Save the changes made to the repository since the last save. The changes of each plugin are appended to the
+     * journal of the plugin shard, one record per modified artifact. Shards that did not change are not written.
+     * This method does nothing while a batch is open, see beginBatch().
+     *
+     * @param repoDir the repository directory.
+     * @throws IOException
+     */
+    public synchronized void save(File repoDir) throws IOException {
+        if (pendingChanges.isEmpty()) {
             return;
         }
-        LOG.debug("acquireExclusiveLock()");
-        request = new ExclusiveLockRequestWithFile(metaDataFilename + ".lock", repoDir);
-        boolean done = false;
-        do {
-            request.waitAndLock();
-
-            if (request.granted()) {
-                done = true;
-
-            } else {
-                // wait a bit.
-                try {
-                    Thread.currentThread().sleep(500);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+        if (batchDepth > 0) {
+            // make sure the shards modified in the batch stay locked until commit:
+            for (String shardName : pendingChanges.keySet()) {
+                final MetadataStore shard = shard(shardName, true);
+                if (!batchShards.contains(shard)) {
+                    lockForBatch(shard);
                 }
             }
-        } while (!done);
-        lockCount++;
+            return;
+        }
+        LOG.debug(String.format("Saving to %s %n", repoDir.getAbsolutePath()));
+        for (String shardName : new ObjectAVLTreeSet<String>(pendingChanges.keySet())) {
+            shard(shardName, true).commit(new ObjectArrayList<Artifacts.JournalEntry>(pendingChanges.get(shardName).values()));
+            pendingChanges.remove(shardName);
+        }
+    }
+
+    /**
+     * Fold the journal of every shard into its checkpoint. Compaction happens in the background as journals grow,
+     * calling this method is only needed to force it.
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        for (String shardName : listShards()) {
+            shard(shardName, true).compact();
+        }
+    }
+
+    /**
+     * Acquire the exclusive lock of the repository. The lock is held by the calling thread and is re-entrant:
+     * each call must be matched by a call to releaseLock() from the same thread. Repositories on the same directory
+     * share the lock through the LockRegistry, so they exclude each other within the JVM as well.
+     *
+     * @throws IOException
+     */
+    public void acquireExclusiveLock() throws IOException {
+        LOG.debug("acquireExclusiveLock()");
+        repoLock().lock();
     }
 
     public RandomAccessFile getLockedRepoFile() {
-        return request.getLockedFile();
+        return repoLock().getLockedFile();
     }
 
-    public synchronized void releaseLock() throws IOException {
-        if ((lockCount - 1) > 0) {
-            // still locked after releasing this lock:  simply decrement lock count and return:
-            lockCount--;
-            return;
-        }
+    public void releaseLock() throws IOException {
         LOG.debug("releaseLock()");
-        request.release();
-        request = null;
-        lockCount--;
+        repoLock().unlock();
+    }
+
+    private StoreLock repoLock() {
+        return new StoreLock(repoDir, metaDataFilename + ".lock", lockType);
     }
 
     public void load() throws IOException {
@@ -1118,7 +2744,13 @@ public class ArtifactRepo {
     }
 
     public String getInstalledPath(String pluginId, String artifactId, String version, AttributeValuePair... avp) {
-        Artifacts.Artifact artifact = find(pluginId, artifactId, version, avp);
+        Artifacts.Artifact artifact = findLocal(pluginId, artifactId, version, avp);
+        if (artifact == null || artifact.getState() != Artifacts.InstallationState.INSTALLED) {
+            final ArtifactRepo tier = findUpstreamTier(pluginId, artifactId, version, avp);
+            if (tier != null) {
+                return tier.getInstalledPath(pluginId, artifactId, version, avp);
+            }
+        }
         if (artifact == null) {
             System.err.printf("Artifact %s:%s:%s could not be found. %n ", pluginId, artifactId, version, avp);
             return null;
@@ -1127,6 +2759,111 @@ public class ArtifactRepo {
         }
     }
 
+    /**
+     * Add a read-only upstream tier, typically a repository on a shared file system where artifacts are installed
+     * once for a whole cluster. find(), isInstalled() and getInstalledPath() consult the upstream tiers, in the order
+     * they were added, for the artifacts that are not installed in this repository, and artifacts installed in an
+     * upstream tier are not installed again in this repository (see setPromoteFromUpstream()). Upstream tiers are
+     * read without locks and never written to: a tier written by an earlier version is not migrated, and missing
+     * or stale metadata indexes are not rebuilt, so tiers can be mounted read-only.
+     *
+     * @param tierDir the directory of the upstream repository.
+     * @throws IOException
+     */
+    public void addUpstreamTier(File tierDir) throws IOException {
+        ArtifactRepo tier = new ArtifactRepo(tierDir);
+        tier.lockType = LockType.NONE;
+        tier.readOnly = true;
+        tier.loadLazily();
+        upstreamTiers.add(tier);
+    }
+
+    public List<ArtifactRepo> getUpstreamTiers() {
+        return upstreamTiers;
+    }
+
+    /**
+     * Copy artifacts installed in an upstream tier to this repository when they are installed, instead of using
+     * them from the upstream tier. Use this for artifacts read often by jobs, when the local file system is faster
+     * than the shared one.
+     *
+     * @param promote True to copy artifacts from the upstream tiers.
+     * @param threads number of threads that copy files.
+     */
+    public void setPromoteFromUpstream(boolean promote, int threads) {
+        this.promoteFromUpstream = promote;
+        this.promotionThreads = threads;
+    }
+
+    public long getInstallTimeout() {
+        return installTimeout;
+    }
+
+    /**
+     * Limit the time install scripts may run. When an install script runs longer, its processes are killed and
+     * the artifact is marked FAILED. Its staging directory is kept, so that the next installation can resume from it.
+     *
+     * @param installTimeout maximum wall-clock time, in milliseconds. Zero for no limit.
+     */
+    public void setInstallTimeout(long installTimeout) {
+        this.installTimeout = installTimeout;
+    }
+
+    /**
+     * Set the resources granted to the install scripts run by this repository object. The number of threads is
+     * exported to install scripts as ARTIFACT_THREADS, and the memory, when known, as ARTIFACT_MEMORY_MB.
+     *
+     * @param grant the resources granted, or null to export nothing.
+     */
+    public void setInstallResources(ResourceBudget.Grant grant) {
+        this.installResources = grant;
+    }
+
+    /**
+     * Record how long it took to fetch the install script of the next artifact installed by this repository object.
+     *
+     * @param millis fetch time, in milliseconds. Zero when the script was cached.
+     */
+    public void setScriptFetchTime(long millis) {
+        this.scriptFetchTime = millis;
+    }
+
+    /**
+     * @return the timings of the last installations of the artifacts of this repository.
+     */
+    public synchronized InstallationHistory getInstallationHistory() {
+        if (installationHistory == null) {
+            installationHistory = new InstallationHistory(repoDir);
+        }
+        return installationHistory;
+    }
+
+    /**
+     * Determine whether installing an artifact would do anything: the artifact is not installed in this repository,
+     * and either no upstream tier has it or artifacts are promoted from the upstream tiers.
+     *
+     * @return True when the artifact must be installed, or promoted.
+     */
+    public boolean needsInstall(String pluginId, String artifactId, String version, AttributeValuePair... avp) {
+        final Artifacts.Artifact artifact = findLocal(pluginId, artifactId, version, avp);
+        if (artifact != null && artifact.getState() == Artifacts.InstallationState.INSTALLED) {
+            return false;
+        }
+        return promoteFromUpstream || findUpstreamTier(pluginId, artifactId, version, avp) == null;
+    }
+
+    /**
+     * @return the first upstream tier where the artifact is installed, or null.
+     */
+    private ArtifactRepo findUpstreamTier(String pluginId, String artifactId, String version, AttributeValuePair... avp) {
+        for (ArtifactRepo tier : upstreamTiers) {
+            if (tier.isInstalled(pluginId, artifactId, version, avp)) {
+                return tier;
+            }
+        }
+        return null;
+    }
+
     public void show() throws IOException {
         load();
         Artifacts.Repository.Builder repoBuilder = Artifacts.Repository.newBuilder();
@@ -1136,10 +2873,10 @@ public class ArtifactRepo {
     }
 
     public void setRetention(String pluginId, String artifactId, String version, AttributeValuePair[] avp, Artifacts.RetentionPolicy retention) {
-        Artifacts.Artifact artifact = find(pluginId, artifactId, version, avp);
+        Artifacts.Artifact artifact = findLocal(pluginId, artifactId, version, avp);
         if (artifact != null) {
             // update retention and store back:
-            index.put(makeKey(artifact), artifact.toBuilder().setRetention(retention).build());
+            putInIndex(artifact.toBuilder().setRetention(retention).build());
         }
     }
 
@@ -1149,11 +2886,13 @@ public class ArtifactRepo {
      * @param revisedArtifact
      */
     public void updateArtifact(Artifacts.Artifact revisedArtifact) throws IOException {
-
+        ensureMaterialized();
         // update retention and store back:
-        index.put(makeKey(revisedArtifact), revisedArtifact);
-        save();
-        load();
+        putInIndex(revisedArtifact);
+        if (batchDepth == 0) {
+            save();
+            load();
+        }
     }
 
     /**
@@ -1208,6 +2947,7 @@ public class ArtifactRepo {
 
 
     public ObjectCollection<Artifacts.Artifact> getArtifacts() {
+        checkNotLazy();
         return index.values();
     }
 
@@ -1219,8 +2959,16 @@ public class ArtifactRepo {
         return FilenameUtils.concat(repoDir.getAbsolutePath(), "metadata.pb");
     }
 
+    /**
+     * @return the directory that holds one sub-directory per plugin shard.
+     */
+    public String getShardsDirectory() {
+        return FilenameUtils.concat(repoDir.getAbsolutePath(), "metadata");
+    }
+
     public void setStepLogDir(File stepLogDir) {
         stepLogDir.mkdir();
+        this.stepLogDir = stepLogDir;
         stepsLogger = new FileStepsLogger(stepLogDir);
 
     }
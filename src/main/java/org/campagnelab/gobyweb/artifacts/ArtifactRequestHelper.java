@@ -16,6 +16,12 @@
 
 package org.campagnelab.gobyweb.artifacts;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Logger;
 import org.campagnelab.gobyweb.artifacts.repositories.LocalSourceRepository;
@@ -26,8 +32,20 @@ import org.campagnelab.gobyweb.artifacts.scope.RequestInstallScope;
 import java.io.*;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Helps execute artifact requests against a repository.
@@ -46,7 +64,43 @@ public class ArtifactRequestHelper {
      * The repository quota. This field is used when a new repo is created, but not if you set a repo directly.
      */
     private long spaceRepoDirQuota;
-    private boolean earlyStopRequested;
+    private volatile boolean earlyStopRequested;
+    private int parallelInstalls = 1;
+    /**
+     * Install timeout of the requests that do not specify one, in seconds. Zero for no limit.
+     */
+    private long defaultInstallTimeout;
+    /**
+     * Threads and memory (in megabytes) of the node that install scripts may use. Zero memory for no limit.
+     */
+    private int nodeThreads = Runtime.getRuntime().availableProcessors();
+    private long nodeMemoryMb;
+    /**
+     * Admits installations against the resources of the node, during install().
+     */
+    private ResourceBudget budget;
+    /**
+     * Install scripts are fetched by a few threads, to overlap the latency of the ssh transfers.
+     */
+    private static final int PREFETCH_THREADS = 4;
+    private ExecutorService prefetchExecutor;
+    /**
+     * Scripts being fetched to temporary files, by plugin id and version.
+     */
+    private final Object2ObjectOpenHashMap<String, Future<File>> prefetchedScripts =
+            new Object2ObjectOpenHashMap<String, Future<File>>();
+    /**
+     * Scripts fetched to temporary files without prefetching.
+     */
+    private final List<File> fetchedScripts = new ObjectArrayList<File>();
+    /**
+     * Time it took to fetch install scripts, in milliseconds, by plugin id and version.
+     */
+    private final Object2LongOpenHashMap<String> fetchTimes = new Object2LongOpenHashMap<String>();
+    /**
+     * Number of install scripts fetched to temporary files since this helper was created.
+     */
+    private final AtomicInteger scriptFetches = new AtomicInteger();
 
     public ArtifactRequestHelper(File pbRequestFile) throws IOException {
         requests = Artifacts.InstallationSet.parseDelimitedFrom(new FileInputStream(pbRequestFile));
@@ -77,120 +131,715 @@ public class ArtifactRequestHelper {
         final String message1 = "Preparing to install from request: " + getPluginNames(requests);
         repo.getStepsLogger().step(message1);
         LOG.info(message1);
+        final InstallPlan plan = plan(repoDir, onlyMandatory);
+        if (!plan.hasWork()) {
+            // the common case once a node is provisioned: no exclusive lock, no script fetch and no write.
+            for (InstallPlan.Step step : plan.getSteps()) {
+                if (step.getAction() == InstallPlan.Action.ALREADY_INSTALLED) {
+                    repo.registerPossibleEnvironmentCollection(step.getArtifact());
+                }
+            }
+            LOG.info("All requested artifacts are already installed.");
+            repo.getStepsLogger().step("All requested artifacts are already installed.");
+            return;
+        }
+        // each artifact is installed under its own lock and its metadata is written as soon as it is installed.
+        // No batch is opened, since a batch would hold the shard locks while install scripts run:
+        final List<String> pluginIds = getPluginIds();
+        // restricts exports used during installation to the artifacts that are part of this request:
+        repo.setInstallationScope(new RequestInstallScope(requests));
+        // disk space is reserved in the file system of the repository, as it is when the install starts:
+        budget = new ResourceBudget(nodeThreads, nodeMemoryMb, repo.repoDir.getUsableSpace() / (1024 * 1024));
+        startPrefetch(repo, pluginIds, onlyMandatory);
         try {
-            repo.acquireExclusiveLock();
-            // restricts exports used during installation to the artifacts that are part of this request:
-            repo.setInstallationScope(new RequestInstallScope(requests));
+            evaluateAttributes(repo, plan);
+            if (InstallationGraph.hasDependencies(requests)) {
+                installWithDependencies(repo, pluginIds, onlyMandatory);
+                return;
+            }
+            if (parallelInstalls > 1) {
+                installConcurrently(repo, pluginIds, onlyMandatory);
+                return;
+            }
             for (Artifacts.ArtifactDetails request : requests.getArtifactsList()) {
-                repo.load();
-                //LOG.info("Processing install request: " + request.toString());
-                repo.getStepsLogger().step("Processing install request: " + request.toString());
-                if (onlyMandatory && !request.getMandatory()) {
-                    repo.getStepsLogger().step("Skipping non-mandatory install request: " + request.toString());
-                    continue;
+                if (!installRequest(repo, pluginIds, request, onlyMandatory)) {
+                    return;
                 }
-                String username = request.hasSshWebAppUserName() ? request.getSshWebAppUserName() :
-                        System.getProperty("user.name");
-                final String remoteScriptInstallPath = request.getScriptInstallPath();
-                File tmpLocalInstallScript = null;
-                try {
-                    tmpLocalInstallScript = getCachedInstallFile(remoteScriptInstallPath, request.getPluginId(), request.getVersion(),
-                            username, request.getSshWebAppHost(), useLocalSourceRepo(request) );
-
-                } catch (InterruptedException e) {
+            }
+        } finally {
+            stopPrefetch();
+        }
+    }
 
-                    final String message = "Unable to retrieve cached install file for plugin: " + repo.toText(request.getPluginId(), request.getArtifactId(),
-                            request.getVersion(), repo.convert(request.getAttributesList()));
-                    LOG.error(message);
-                    repo.getStepsLogger().error(message);
-                    tmpLocalInstallScript = null;
+    /**
+     * Determine which artifacts of the request need to be installed. The metadata of the repository is read under
+     * shared locks only, and nothing is written to it. Attributes the request leaves undefined are resolved from
+     * the attribute cache or the cached install script of the plugin (see ArtifactRepo.resolveAttributes()); an
+     * artifact whose attributes cannot be resolved this way is planned for installation, where they are resolved
+     * with the fetched script.
+     *
+     * @param repoDir       Repository directory.
+     * @param onlyMandatory if true, only mandatory artifacts are installed.
+     * @return the plan.
+     */
+    public InstallPlan plan(File repoDir, boolean onlyMandatory) {
+        ArtifactRepo repo = getRepo(repoDir);
+        InstallPlan plan = new InstallPlan();
+        // get_attribute_values sees the environment of the environment collection artifacts installed before it:
+        boolean environmentChanges = false;
+        for (Artifacts.ArtifactDetails request : requests.getArtifactsList()) {
+            final boolean collection =
+                    request.getPluginId().startsWith(BuildArtifactRequest.ARTIFACTS_ENVIRONMENT_COLLECTION_SCRIPT);
+            final AttributeValuePair[] avp = repo.convert(request.getAttributesList());
+            final AttributeValuePair[] resolved = (onlyMandatory && !request.getMandatory()) || environmentChanges ?
+                    null : repo.resolveAttributes(request.getPluginId(), request.getArtifactId(),
+                    request.getVersion(), avp);
+            final Artifacts.Artifact artifact = repo.find(request.getPluginId(), request.getArtifactId(),
+                    request.getVersion(), resolved == null ? avp : resolved);
+            if (onlyMandatory && !request.getMandatory()) {
+                plan.add(request, InstallPlan.Action.SKIP_NOT_MANDATORY, artifact);
+            } else if (resolved != null &&
+                    !repo.needsInstall(request.getPluginId(), request.getArtifactId(), request.getVersion(), resolved)) {
+                plan.add(request, InstallPlan.Action.ALREADY_INSTALLED, artifact);
+                if (collection) {
+                    repo.registerPossibleEnvironmentCollection(artifact);
                 }
-                final AttributeValuePair[] avp = repo.convert(request.getAttributesList());
-                Artifacts.Artifact artifact = repo.find(request.getPluginId(), request.getArtifactId(), request.getVersion(),
-                        avp);
-                if (artifact != null && artifact.getState() == Artifacts.InstallationState.INSTALLED) {
+            } else {
+                plan.add(request, InstallPlan.Action.INSTALL, artifact);
+                environmentChanges |= collection;
+            }
+        }
+        return plan;
+    }
 
-                    LOG.info(String.format("Artifact already installed, skipping %s:%s:%s ",
-                            request.getPluginId(), request.getArtifactId(), request.getVersion()));
-                    // even when already installed, scan for possible env script
-                    repo.registerPossibleEnvironmentCollection(artifact);
-                    continue;
+    /**
+     * Evaluate get_attribute_values for the artifacts to install whose attributes are not all defined by the
+     * request, with a single process (see ArtifactRepo.evaluate()). This is only done when no environment collection
+     * artifact must be installed, since the environment of get_attribute_values changes when they are installed.
+     * Only the artifacts whose install script is already available are evaluated, so that installations do not
+     * wait for the prefetch of every script; the others are evaluated when they are installed.
+     */
+    private void evaluateAttributes(ArtifactRepo repo, InstallPlan plan) throws IOException {
+        for (InstallPlan.Step step : plan.getSteps()) {
+            if (step.getRequest().getPluginId().startsWith(BuildArtifactRequest.ARTIFACTS_ENVIRONMENT_COLLECTION_SCRIPT)) {
+                if (step.getAction() == InstallPlan.Action.INSTALL) {
+                    return;
+                }
+                if (step.getAction() == InstallPlan.Action.ALREADY_INSTALLED) {
+                    // registered in the order of the request, as the installation would:
+                    repo.registerPossibleEnvironmentCollection(step.getArtifact());
+                }
+            }
+        }
+        final AttributeBatch batch = new AttributeBatch();
+        for (InstallPlan.Step step : plan.getSteps()) {
+            if (step.getAction() != InstallPlan.Action.INSTALL) {
+                continue;
+            }
+            final Artifacts.ArtifactDetails request = step.getRequest();
+            boolean undefined = false;
+            for (Artifacts.AttributeValuePair attribute : request.getAttributesList()) {
+                undefined |= !attribute.hasValue();
+            }
+            if (undefined) {
+                try {
+                    final File script = availableInstallScriptOf(repo, request);
+                    if (script != null) {
+                        batch.add(request.getPluginId(), request.getArtifactId(), script.getAbsolutePath());
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while fetching install scripts.");
+                } catch (IOException e) {
+                    // reported when the artifact is installed.
+                    LOG.debug("Unable to fetch install script of " + InstallationGraph.toText(request), e);
                 }
+            }
+        }
+        repo.evaluate(batch);
+    }
 
+    /**
+     * Start fetching the install scripts of the artifacts that need to be installed, concurrently. Scripts are
+     * fetched once per plugin and version, and installations wait only for their own script, so they start as soon
+     * as it is fetched.
+     */
+    private synchronized void startPrefetch(ArtifactRepo repo, List<String> pluginIds, boolean onlyMandatory)
+            throws IOException {
+        repo.load(pluginIds, true);
+        prefetchExecutor = Executors.newFixedThreadPool(PREFETCH_THREADS);
+        for (final Artifacts.ArtifactDetails request : requests.getArtifactsList()) {
+            if (onlyMandatory && !request.getMandatory()) {
+                continue;
+            }
+            if (!repo.needsInstall(request.getPluginId(), request.getArtifactId(), request.getVersion(),
+                    repo.convert(request.getAttributesList()))) {
+                continue;
+            }
+            final String key = request.getPluginId() + "\t" + request.getVersion();
+            if (!prefetchedScripts.containsKey(key) &&
+                    !repo.hasCachedInstallationScript(request.getPluginId(), request.getVersion())) {
+                prefetchedScripts.put(key, prefetchExecutor.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        final long start = System.currentTimeMillis();
+                        final File script = fetchToTemporaryFile(request.getScriptInstallPath(),
+                                request.getPluginId(), userNameOf(request), request.getSshWebAppHost(),
+                                useLocalSourceRepo(request));
+                        recordFetchTime(key, System.currentTimeMillis() - start);
+                        return script;
+                    }
+                }));
+            }
+        }
+    }
 
-                try {
+    /**
+     * Return the install script of a request, waiting for its prefetch to complete.
+     */
+    private File installScriptOf(Artifacts.ArtifactDetails request) throws IOException, InterruptedException {
+        final String key = request.getPluginId() + "\t" + request.getVersion();
+        final Future<File> prefetched;
+        synchronized (this) {
+            prefetched = prefetchedScripts.get(key);
+        }
+        if (prefetched == null) {
+            // not prefetched: a cached script, or an artifact that was installed when the prefetch started.
+            if (repo.hasCachedInstallationScript(request.getPluginId(), request.getVersion())) {
+                return new File(repo.getCachedInstallationScript(request.getPluginId(), request.getVersion()));
+            }
+            // fetched without holding the monitor, which other workers and the prefetch threads need:
+            final long start = System.currentTimeMillis();
+            final File script = fetchToTemporaryFile(request.getScriptInstallPath(), request.getPluginId(),
+                    userNameOf(request), request.getSshWebAppHost(), useLocalSourceRepo(request));
+            synchronized (this) {
+                fetchedScripts.add(script);
+                recordFetchTime(key, System.currentTimeMillis() - start);
+            }
+            return script;
+        }
+        try {
+            return prefetched.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to fetch install script of plugin " + request.getPluginId(), e.getCause());
+        }
+    }
 
+    /**
+     * Return the install script of a request if it is available without waiting: cached in the repository, or
+     * already fetched by the prefetch.
+     *
+     * @return the script, or null when it is not cached and still being fetched.
+     */
+    private File availableInstallScriptOf(ArtifactRepo repo, Artifacts.ArtifactDetails request)
+            throws IOException, InterruptedException {
+        final Future<File> prefetched;
+        synchronized (this) {
+            prefetched = prefetchedScripts.get(request.getPluginId() + "\t" + request.getVersion());
+        }
+        if (prefetched == null ? !repo.hasCachedInstallationScript(request.getPluginId(), request.getVersion()) :
+                !prefetched.isDone()) {
+            return null;
+        }
+        return installScriptOf(request);
+    }
 
-                    final String localFilename = tmpLocalInstallScript.getAbsolutePath();
-                    repo.install(request.getPluginId(), request.getArtifactId(), localFilename, request.getVersion(), avp);
-                    repo.setRetention(request.getPluginId(), request.getArtifactId(), request.getVersion(),
-                            avp, request.getRetention());
+    private synchronized void recordFetchTime(String key, long millis) {
+        fetchTimes.put(key, millis);
+    }
 
-                    repo.save();
+    /**
+     * @return the time it took to fetch the install script of a request, in milliseconds, or zero when the script
+     * was cached in the repository. The fetch time is only counted for the first artifact of the plugin installed.
+     */
+    private synchronized long fetchTimeOf(Artifacts.ArtifactDetails request) {
+        return fetchTimes.removeLong(request.getPluginId() + "\t" + request.getVersion());
+    }
 
-                    final String text = repo.toText(request.getPluginId(), request.getArtifactId(), request.getVersion(), avp);
+    private static String userNameOf(Artifacts.ArtifactDetails request) {
+        return request.hasSshWebAppUserName() ? request.getSshWebAppUserName() : System.getProperty("user.name");
+    }
 
-                    Artifacts.Artifact installedArtifact = repo.find(request.getPluginId(), request.getArtifactId(), request.getVersion(), avp);
-                    repo.updateArtifact(installedArtifact.toBuilder().setInstallationRequest(request).build());
+    /**
+     * Stop fetching install scripts and delete the scripts that were fetched to temporary files. Scripts cached in
+     * the repository are kept.
+     */
+    private synchronized void stopPrefetch() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+            prefetchExecutor = null;
+        }
+        for (Future<File> prefetched : prefetchedScripts.values()) {
+            try {
+                if (prefetched.isDone() && !prefetched.isCancelled()) {
+                    prefetched.get().delete();
+                }
+            } catch (Exception e) {
+                // the script was not fetched.
+            }
+        }
+        for (File script : fetchedScripts) {
+            script.delete();
+        }
+        prefetchedScripts.clear();
+        fetchedScripts.clear();
+        fetchTimes.clear();
+    }
 
-                    if (installedArtifact.getState() != Artifacts.InstallationState.INSTALLED) {
-                        LOG.error("Early stop: unable to install previous artifact: " +
-                                text);
-                        earlyStopRequested = true;
+    /**
+     * Install the artifacts of the request with a pool of parallelInstalls workers. Environment collection
+     * artifacts are installed first, since every other install script runs with the environment they collect.
+     * The other artifacts are then installed concurrently, each by a worker that uses its own repository object,
+     * and the metadata of each artifact is saved as soon as it is installed. The artifacts of the request must be
+     * independent of each other: an install script may not see the exports of artifacts installed concurrently.
+     * The artifacts that took longest to install in the past start first. No new installation starts once an
+     * installation failed.
+     */
+    private void installConcurrently(ArtifactRepo repo, final List<String> pluginIds, final boolean onlyMandatory)
+            throws IOException {
+        final List<Artifacts.ArtifactDetails> independent = installEnvironmentCollection(repo, pluginIds, onlyMandatory);
+        if (independent == null) {
+            return;
+        }
+        sortLongestFirst(repo, independent);
+        final int numWorkers = Math.min(parallelInstalls, Math.max(1, independent.size()));
+        final BlockingQueue<ArtifactRepo> workerRepos = forkWorkers(repo, numWorkers);
+        repo.getStepsLogger().step(String.format("Installing %d artifacts with %d workers", independent.size(),
+                numWorkers));
+        final ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+        try {
+            final List<Future<Boolean>> results = new ObjectArrayList<Future<Boolean>>();
+            for (final Artifacts.ArtifactDetails request : independent) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        if (earlyStopRequested) {
+                            return false;
+                        }
+                        final ArtifactRepo workerRepo = workerRepos.take();
+                        try {
+                            return installRequest(workerRepo, pluginIds, request, onlyMandatory);
+                        } finally {
+                            workerRepos.add(workerRepo);
+                        }
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                try {
+                    result.get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for installations to complete.");
+                } catch (ExecutionException e) {
+                    earlyStopRequested = true;
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Installation failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            closeWorkers(workerRepos);
+        }
+        // read the metadata written by the workers:
+        repo.load(pluginIds, true);
+    }
 
-                        return;
-                    } else {
-                        LOG.info("Artifact successfully installed: " + text);
-                        repo.getStepsLogger().step("Artifact successfully installed: " + text);
+    /**
+     * Install the artifacts of the request in the order of their dependencies (ArtifactDetails.depends_on), with a
+     * pool of parallelInstalls workers. Environment collection artifacts are installed first. Every other artifact
+     * starts as soon as the artifacts it depends on are installed, and its install script sees the exports of its
+     * dependencies only. Among the artifacts ready to install, those on the longest chain of expected installation
+     * times start first. When an artifact fails to install, only the artifacts that depend on it are skipped, and
+     * early stop is requested once the other artifacts are installed. With onlyMandatory, the artifacts that depend
+     * on a non-mandatory artifact that is not installed are skipped as well.
+     *
+     * @throws IOException when the dependencies contain a cycle, or an installation failed with an exception.
+     */
+    private void installWithDependencies(ArtifactRepo repo, final List<String> pluginIds, final boolean onlyMandatory)
+            throws IOException {
+        final List<Artifacts.ArtifactDetails> others = installEnvironmentCollection(repo, pluginIds, onlyMandatory);
+        if (others == null) {
+            return;
+        }
+        final InstallationGraph graph = new InstallationGraph(others);
+        final int numWorkers = Math.min(Math.max(1, parallelInstalls), Math.max(1, graph.size()));
+        final BlockingQueue<ArtifactRepo> workerRepos = forkWorkers(repo, numWorkers);
+        final ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+        final CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(executor);
+        final Object2IntMap<Future<Boolean>> running = new Object2IntOpenHashMap<Future<Boolean>>();
+        final int[] pendingDependencies = new int[graph.size()];
+        final long[] priorities = criticalPaths(repo, graph);
+        IOException failure = null;
+        try {
+            final IntArrayList ready = new IntArrayList();
+            for (int i = 0; i < graph.size(); i++) {
+                pendingDependencies[i] = graph.getDependencies(i).size();
+                if (pendingDependencies[i] == 0) {
+                    ready.add(i);
+                }
+            }
+            for (int i : sortByPriority(ready, priorities)) {
+                running.put(submit(completion, workerRepos, graph, i, pluginIds, onlyMandatory), i);
+            }
+            while (!running.isEmpty()) {
+                final Future<Boolean> done;
+                try {
+                    done = completion.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for installations to complete.");
+                }
+                final int index = running.removeInt(done);
+                boolean installed;
+                try {
+                    installed = done.get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for installations to complete.");
+                } catch (ExecutionException e) {
+                    installed = false;
+                    LOG.error("Unable to install " + InstallationGraph.toText(graph.get(index)), e.getCause());
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() :
+                                new IOException("Installation failed", e.getCause());
+                    }
+                }
+                final Artifacts.ArtifactDetails request = graph.get(index);
+                if (installed && onlyMandatory && !request.getMandatory() && !repo.isInstalled(request.getPluginId(),
+                        request.getArtifactId(), request.getVersion(), repo.convert(request.getAttributesList()))) {
+                    // skipped, the artifacts that depend on it cannot be installed either:
+                    for (int dependent : graph.getTransitiveDependents(index)) {
+                        final String message = String.format("Skipping %s, since %s is not mandatory and is not installed.",
+                                InstallationGraph.toText(graph.get(dependent)), InstallationGraph.toText(request));
+                        LOG.warn(message);
+                        repo.getStepsLogger().step(message);
                     }
+                } else if (installed) {
+                    ready.clear();
+                    for (int dependent : graph.getDependents(index)) {
+                        if (--pendingDependencies[dependent] == 0) {
+                            ready.add(dependent);
+                        }
+                    }
+                    for (int dependent : sortByPriority(ready, priorities)) {
+                        running.put(submit(completion, workerRepos, graph, dependent, pluginIds, onlyMandatory),
+                                dependent);
+                    }
+                } else {
+                    earlyStopRequested = true;
+                    for (int dependent : graph.getTransitiveDependents(index)) {
+                        final String message = String.format("Skipping %s, since %s could not be installed.",
+                                InstallationGraph.toText(graph.get(dependent)),
+                                InstallationGraph.toText(graph.get(index)));
+                        LOG.error(message);
+                        repo.getStepsLogger().error(message);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            closeWorkers(workerRepos);
+        }
+        // read the metadata written by the workers:
+        repo.load(pluginIds, true);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Sort requests by decreasing expected installation time (see InstallationHistory). Artifacts never installed
+     * keep their order, after the others.
+     */
+    private static void sortLongestFirst(ArtifactRepo repo, List<Artifacts.ArtifactDetails> requests) {
+        final Object2LongOpenHashMap<Artifacts.ArtifactDetails> expected =
+                new Object2LongOpenHashMap<Artifacts.ArtifactDetails>();
+        for (Artifacts.ArtifactDetails request : requests) {
+            expected.put(request, repo.getInstallationHistory().expectedDuration(request.getPluginId(),
+                    request.getArtifactId(), request.getVersion()));
+        }
+        Collections.sort(requests, new Comparator<Artifacts.ArtifactDetails>() {
+            @Override
+            public int compare(Artifacts.ArtifactDetails first, Artifacts.ArtifactDetails second) {
+                return Long.compare(expected.getLong(second), expected.getLong(first));
+            }
+        });
+    }
+
+    /**
+     * Compute, for each artifact of the graph, the expected time to install the artifact and the longest chain of
+     * artifacts that depend on it. Artifacts never installed count for zero.
+     */
+    private static long[] criticalPaths(ArtifactRepo repo, InstallationGraph graph) {
+        final long[] paths = new long[graph.size()];
+        Arrays.fill(paths, -1);
+        for (int i = 0; i < graph.size(); i++) {
+            criticalPath(repo, graph, i, paths);
+        }
+        return paths;
+    }
+
+    private static long criticalPath(ArtifactRepo repo, InstallationGraph graph, int index, long[] paths) {
+        if (paths[index] >= 0) {
+            return paths[index];
+        }
+        final Artifacts.ArtifactDetails request = graph.get(index);
+        long longestDependent = 0;
+        for (int dependent : graph.getDependents(index)) {
+            longestDependent = Math.max(longestDependent, criticalPath(repo, graph, dependent, paths));
+        }
+        paths[index] = Math.max(0, repo.getInstallationHistory().expectedDuration(request.getPluginId(),
+                request.getArtifactId(), request.getVersion())) + longestDependent;
+        return paths[index];
+    }
+
+    /**
+     * @return the artifacts, by decreasing priority.
+     */
+    private static int[] sortByPriority(IntArrayList indices, final long[] priorities) {
+        final Integer[] sorted = new Integer[indices.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = indices.getInt(i);
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return Long.compare(priorities[second], priorities[first]);
+            }
+        });
+        final int[] result = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            result[i] = sorted[i];
+        }
+        return result;
+    }
 
+    private Future<Boolean> submit(CompletionService<Boolean> completion, final BlockingQueue<ArtifactRepo> workerRepos,
+                                   final InstallationGraph graph, final int index, final List<String> pluginIds,
+                                   final boolean onlyMandatory) {
+        return completion.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                final ArtifactRepo workerRepo = workerRepos.take();
+                try {
+                    workerRepo.setInstallationScope(graph.scopeOf(index));
+                    return installRequest(workerRepo, pluginIds, graph.get(index), onlyMandatory);
                 } finally {
-                    if (tmpLocalInstallScript != null) {
-                        tmpLocalInstallScript.delete();
-                    }
+                    workerRepos.add(workerRepo);
+                }
+            }
+        });
+    }
+
+    /**
+     * Install the environment collection artifacts of the request, in order. Every other install script runs with
+     * the environment they collect, so they must be installed first.
+     *
+     * @return the other artifacts of the request, or null when an environment collection artifact failed to install.
+     * @throws IOException
+     */
+    private List<Artifacts.ArtifactDetails> installEnvironmentCollection(ArtifactRepo repo, List<String> pluginIds,
+                                                                         boolean onlyMandatory) throws IOException {
+        final List<Artifacts.ArtifactDetails> others = new ObjectArrayList<Artifacts.ArtifactDetails>();
+        for (Artifacts.ArtifactDetails request : requests.getArtifactsList()) {
+            if (request.getPluginId().startsWith(BuildArtifactRequest.ARTIFACTS_ENVIRONMENT_COLLECTION_SCRIPT)) {
+                if (!installRequest(repo, pluginIds, request, onlyMandatory)) {
+                    return null;
                 }
+            } else {
+                others.add(request);
             }
+        }
+        return others;
+    }
+
+    /**
+     * Stop the attribute workers of the repository objects of worker threads, and write their steps logs. Workers
+     * still installing keep their repository object, and their attribute worker stops when the JVM exits.
+     */
+    private static void closeWorkers(BlockingQueue<ArtifactRepo> workerRepos) {
+        for (ArtifactRepo workerRepo : workerRepos) {
+            workerRepo.closeAttributeWorker();
+            workerRepo.writeLog();
+        }
+    }
+
+    /**
+     * Create the repository objects used by worker threads, one per worker.
+     */
+    private BlockingQueue<ArtifactRepo> forkWorkers(ArtifactRepo repo, int numWorkers) throws IOException {
+        final BlockingQueue<ArtifactRepo> workerRepos = new ArrayBlockingQueue<ArtifactRepo>(numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            workerRepos.add(repo.fork());
+        }
+        return workerRepos;
+    }
 
+    /**
+     * Install the artifact of a request, unless it is already installed.
+     *
+     * @return False when the artifact could not be installed and installation should stop early.
+     * @throws IOException
+     */
+    private boolean installRequest(ArtifactRepo repo, List<String> pluginIds, Artifacts.ArtifactDetails request,
+                                   boolean onlyMandatory) throws IOException {
+        repo.load(pluginIds, true);
+        //LOG.info("Processing install request: " + request.toString());
+        repo.getStepsLogger().step("Processing install request: " + request.toString());
+        if (onlyMandatory && !request.getMandatory()) {
+            repo.getStepsLogger().step("Skipping non-mandatory install request: " + request.toString());
+            return true;
+        }
+        final AttributeValuePair[] avp = repo.convert(request.getAttributesList());
+        if (!repo.needsInstall(request.getPluginId(), request.getArtifactId(), request.getVersion(), avp)) {
+            Artifacts.Artifact artifact = repo.find(request.getPluginId(), request.getArtifactId(), request.getVersion(),
+                    avp);
+
+            LOG.info(String.format("Artifact already installed, skipping %s:%s:%s ",
+                    request.getPluginId(), request.getArtifactId(), request.getVersion()));
+            // even when already installed, scan for possible env script
+            repo.registerPossibleEnvironmentCollection(artifact);
+            return true;
+        }
+        final File tmpLocalInstallScript;
+        try {
+            // fetched scripts are deleted by stopPrefetch(), once every artifact of the plugin is installed:
+            tmpLocalInstallScript = installScriptOf(request);
+
+        } catch (InterruptedException e) {
+
+            final String message = "Unable to retrieve cached install file for plugin: " + repo.toText(request.getPluginId(), request.getArtifactId(),
+                    request.getVersion(), repo.convert(request.getAttributesList()));
+            LOG.error(message);
+            repo.getStepsLogger().error(message);
+            throw new InterruptedIOException(message);
+        }
+
+        final String localFilename = tmpLocalInstallScript.getAbsolutePath();
+        repo.setInstallTimeout(1000 * (request.hasInstallTimeoutSeconds() ? request.getInstallTimeoutSeconds() :
+                defaultInstallTimeout));
+        final ResourceBudget.Grant grant = budget.acquire(request);
+        try {
+            repo.getStepsLogger().step(String.format("Granted %s to install %s", grant,
+                    InstallationGraph.toText(request)));
+            repo.setInstallResources(grant);
+            repo.setScriptFetchTime(fetchTimeOf(request));
+            repo.install(request.getPluginId(), request.getArtifactId(), localFilename, request.getVersion(), avp);
         } finally {
-            repo.save();
-            repo.releaseLock();
+            repo.setInstallResources(null);
+            budget.release(grant);
+        }
+        repo.setRetention(request.getPluginId(), request.getArtifactId(), request.getVersion(),
+                avp, request.getRetention());
+
+        repo.save();
+
+        final String text = repo.toText(request.getPluginId(), request.getArtifactId(), request.getVersion(), avp);
+
+        Artifacts.Artifact installedArtifact = repo.findLocal(request.getPluginId(), request.getArtifactId(), request.getVersion(), avp);
+        if (installedArtifact == null) {
+            // found installed in an upstream tier:
+            installedArtifact = repo.find(request.getPluginId(), request.getArtifactId(), request.getVersion(), avp);
+        } else {
+            repo.updateArtifact(installedArtifact.toBuilder().setInstallationRequest(request).build());
+        }
+
+        if (installedArtifact == null || installedArtifact.getState() != Artifacts.InstallationState.INSTALLED) {
+            LOG.error("Early stop: unable to install previous artifact: " +
+                    text);
+            earlyStopRequested = true;
+
+            return false;
+        } else {
+            LOG.info("Artifact successfully installed: " + text);
+            repo.getStepsLogger().step("Artifact successfully installed: " + text);
         }
+        return true;
+    }
+
+    /**
+     * Install up to parallelInstalls artifacts of a request at the same time. The default, 1, installs artifacts
+     * one at a time, in the order of the request, and lets each install script see the exports of the artifacts
+     * installed before it. Requests whose artifacts declare dependencies are installed in the order of their
+     * dependencies, with up to parallelInstalls artifacts installing at the same time.
+     *
+     * @param parallelInstalls the number of artifacts to install at the same time.
+     */
+    public void setParallelInstalls(int parallelInstalls) {
+        this.parallelInstalls = parallelInstalls;
     }
 
 
 
+    /**
+     * Limit the time install scripts of requests that do not specify install_timeout_seconds may run.
+     *
+     * @param seconds maximum wall-clock time of an install script, in seconds. Zero for no limit.
+     */
+    public void setDefaultInstallTimeout(long seconds) {
+        this.defaultInstallTimeout = seconds;
+    }
+
+    /**
+     * Set the resources of the node that install scripts may use at the same time. Installations whose
+     * ArtifactDetails.resources do not fit in what is left wait for other installations to complete. The threads
+     * and memory granted are exported to install scripts as ARTIFACT_THREADS and ARTIFACT_MEMORY_MB.
+     *
+     * @param threads  number of threads, the number of processors of the node by default.
+     * @param memoryMb memory in megabytes, zero (the default) for no limit.
+     */
+    public void setNodeResources(int threads, long memoryMb) {
+        this.nodeThreads = threads;
+        this.nodeMemoryMb = memoryMb;
+    }
+
     public boolean isEarlyStopRequested() {
         return earlyStopRequested;
     }
 
+    /**
+     * @return the number of install scripts fetched to temporary files since this helper was created.
+     */
+    int getScriptFetchCount() {
+        return scriptFetches.get();
+    }
+
     public File getCachedInstallFile(String remoteScriptInstallPath, String pluginId, String version,
                                      String username, String server, boolean local)
             throws IOException, InterruptedException {
         if (repo.hasCachedInstallationScript(pluginId, version)) {
             return new File(repo.getCachedInstallationScript(pluginId, version));
         } else {
-            final File tempInstallFile = File.createTempFile("install-script-" + pluginId,
-                    FilenameUtils.getBaseName(remoteScriptInstallPath));
-
-            final String localFilename = tempInstallFile.getAbsolutePath();
-            SourceRepository source;
-            String message;
-            if (local) {
-                source = new LocalSourceRepository();
-                message = String.format("Unable to locally retrieve install script for plugin %s %n", remoteScriptInstallPath);
-            } else {
-                source = new RemoteSourceRepository(server,username);
-                message = String.format("Unable to retrieve install script for plugin %s@%s:%s %n", username,
-                        server, remoteScriptInstallPath);
-            }
-            try {
-                source.fetch(remoteScriptInstallPath, localFilename);
-            } catch (Exception e) {
-                LOG.error(message, e);
-            }
+            return fetchToTemporaryFile(remoteScriptInstallPath, pluginId, username, server, local);
+        }
+    }
 
-            return tempInstallFile;
+    private File fetchToTemporaryFile(String remoteScriptInstallPath, String pluginId, String username, String server,
+                                      boolean local) throws IOException {
+        scriptFetches.incrementAndGet();
+        final File tempInstallFile = File.createTempFile("install-script-" + pluginId,
+                FilenameUtils.getBaseName(remoteScriptInstallPath));
+
+        final String localFilename = tempInstallFile.getAbsolutePath();
+        SourceRepository source;
+        String message;
+        if (local) {
+            source = new LocalSourceRepository();
+            message = String.format("Unable to locally retrieve install script for plugin %s %n", remoteScriptInstallPath);
+        } else {
+            source = new RemoteSourceRepository(server,username);
+            message = String.format("Unable to retrieve install script for plugin %s@%s:%s %n", username,
+                    server, remoteScriptInstallPath);
         }
+        try {
+            source.fetch(remoteScriptInstallPath, localFilename);
+        } catch (Exception e) {
+            LOG.error(message, e);
+        }
+
+        return tempInstallFile;
     }
 
     public static void fetchInstallScript(Artifacts.Artifact artifact, Artifacts.ArtifactDetails request,
@@ -212,6 +861,19 @@ public class ArtifactRequestHelper {
 
     }
 
+    /**
+     * @return the ids of the plugins referenced in the request, without duplicates.
+     */
+    public List<String> getPluginIds() {
+        ObjectArrayList<String> result = new ObjectArrayList<String>();
+        for (Artifacts.ArtifactDetails request : requests.getArtifactsList()) {
+            if (!result.contains(request.getPluginId())) {
+                result.add(request.getPluginId());
+            }
+        }
+        return result;
+    }
+
     private String getPluginNames(Artifacts.InstallationSet requests) {
         StringBuffer sb = new StringBuffer();
         for (Artifacts.ArtifactDetails request : requests.getArtifactsList()) {
@@ -234,19 +896,24 @@ public class ArtifactRequestHelper {
      */
     public void remove(File repoDir) throws IOException {
         ArtifactRepo repo = getRepo(repoDir);
-        repo.load();
-        for (Artifacts.ArtifactDetails request : requests.getArtifactsList()) {
-            List<Artifacts.Artifact> artifacts = repo.findIgnoringAttributes(request.getPluginId(), request.getArtifactId(), request.getVersion()
-            );
-            for (Artifacts.Artifact artifact : artifacts) {
-                //repo.convert(request.getAttributesList()
-                if (artifact != null && artifact.getState() == Artifacts.InstallationState.INSTALLED) {
+        final List<String> pluginIds = getPluginIds();
+        repo.beginBatch(pluginIds);
+        try {
+            repo.load(pluginIds, true);
+            for (Artifacts.ArtifactDetails request : requests.getArtifactsList()) {
+                List<Artifacts.Artifact> artifacts = repo.findIgnoringAttributes(request.getPluginId(), request.getArtifactId(), request.getVersion()
+                );
+                for (Artifacts.Artifact artifact : artifacts) {
+                    //repo.convert(request.getAttributesList()
+                    if (artifact != null && artifact.getState() == Artifacts.InstallationState.INSTALLED) {
 
-                    repo.remove(request.getPluginId(), request.getArtifactId(), request.getVersion(),
-                            repo.convert(artifact.getAttributesList()));
+                        repo.remove(request.getPluginId(), request.getArtifactId(), request.getVersion(),
+                                repo.convert(artifact.getAttributesList()));
+                    }
                 }
-                repo.save();
             }
+        } finally {
+            repo.commit();
         }
     }
 
@@ -274,10 +941,11 @@ public class ArtifactRequestHelper {
       //  getRepo(repoDir).printBashExports(output);
         LOG.debug("printBashExports");
         ArtifactRepo repo = getRepo(repoDir);
-        repo.load();
+        // only the shards of the plugins in the request are needed:
+        repo.load(getPluginIds(), true);
         List<Artifacts.ArtifactDetails> artifactsList = requests.getArtifactsList();
         for (Artifacts.ArtifactDetails request : artifactsList) {
-            List<Artifacts.Artifact> artifacts = repo.findIgnoringAttributes(request.getPluginId(),
+            List<Artifacts.Artifact> artifacts = repo.findInstalledIgnoringAttributes(request.getPluginId(),
                     request.getArtifactId(), request.getVersion()
             );
             for (Artifacts.Artifact artifact : artifacts) {
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.campagnelab.gobyweb.artifacts;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates get_attribute_values for many artifacts with a single bash program. The program sources the
+ * environment collection scripts once, then calls get_attribute_values of each plugin script in a subshell, and
+ * writes the results to its standard output as one document, with a section per call:
+ * <pre>
+ * [get_attribute_values 0 0]
+ * attribute-A=VA
+ * [get_attribute_values 1 127]
+ * </pre>
+ * The header of a section gives the index of the call and the exit status of get_attribute_values. The section
+ * holds the properties written by get_attribute_values, when it succeeded. See ArtifactRepo.evaluate().
+ */
+public class AttributeBatch {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(AttributeBatch.class);
+    private static final Pattern SECTION_HEADER = Pattern.compile("^\\[get_attribute_values (\\d+) (\\d+)\\]$");
+
+    /**
+     * One call to get_attribute_values.
+     */
+    public static class Query {
+        private final String pluginId;
+        private final String artifactId;
+        private final String pluginScript;
+
+        Query(String pluginId, String artifactId, String pluginScript) {
+            this.pluginId = pluginId;
+            this.artifactId = artifactId;
+            this.pluginScript = pluginScript;
+        }
+
+        public String getPluginId() {
+            return pluginId;
+        }
+
+        public String getArtifactId() {
+            return artifactId;
+        }
+
+        public String getPluginScript() {
+            return pluginScript;
+        }
+    }
+
+    private final List<Query> queries = new ObjectArrayList<Query>();
+
+    /**
+     * Add a call to get_attribute_values to the batch.
+     *
+     * @param pluginId     the plugin.
+     * @param artifactId   the artifact get_attribute_values is called for.
+     * @param pluginScript the install script of the plugin, which defines get_attribute_values.
+     */
+    public void add(String pluginId, String artifactId, String pluginScript) {
+        queries.add(new Query(pluginId, artifactId, new File(pluginScript).getAbsolutePath()));
+    }
+
+    public List<Query> getQueries() {
+        return queries;
+    }
+
+    public int size() {
+        return queries.size();
+    }
+
+    /**
+     * Generate the bash program that evaluates the batch.
+     *
+     * @param prelude statements that source the environment collection scripts.
+     * @param workDir directory where get_attribute_values writes its results, one sub-directory per call.
+     * @return the program.
+     */
+    public String program(String prelude, File workDir) {
+        final StringBuilder program = new StringBuilder();
+        program.append("set +xv\n");
+        program.append(String.format("{ %s true ; } < /dev/null 1>&2%n", prelude));
+        for (int i = 0; i < queries.size(); i++) {
+            final Query query = queries.get(i);
+            final String dir = new File(workDir, Integer.toString(i)).getAbsolutePath();
+            program.append(String.format("( set -e ; DIR=%s ; script=%s ; mkdir -p ${DIR} ; chmod +x $script ; " +
+                    ". $script ; get_attribute_values %s $DIR/artifact.properties ) < /dev/null 1>&2%n",
+                    dir, query.pluginScript, query.artifactId));
+            program.append(String.format("status=$?%necho \"[get_attribute_values %d $status]\"%n", i));
+            program.append(String.format("if [ \"$status\" = \"0\" ] && [ -f %s/artifact.properties ]; then " +
+                    "cat %s/artifact.properties ; echo ; fi%n", dir, dir));
+        }
+        return program.toString();
+    }
+
+    /**
+     * Parse the document written by the program, in one pass.
+     *
+     * @param output the standard output of the program.
+     * @return the properties of each call, in the order of the batch. Null for the calls that failed, or that did
+     * not run because the program stopped early.
+     * @throws IOException
+     */
+    public Properties[] parse(BufferedReader output) throws IOException {
+        final Properties[] results = new Properties[queries.size()];
+        int index = -1;
+        boolean succeeded = false;
+        StringBuilder section = new StringBuilder();
+        String line;
+        while ((line = output.readLine()) != null) {
+            final Matcher header = SECTION_HEADER.matcher(line);
+            if (header.matches()) {
+                store(results, index, succeeded, section);
+                index = Integer.parseInt(header.group(1));
+                succeeded = Integer.parseInt(header.group(2)) == 0;
+                section = new StringBuilder();
+            } else if (index >= 0) {
+                section.append(line).append('\n');
+            } else {
+                LOG.debug("get_attribute_values batch: " + line);
+            }
+        }
+        store(results, index, succeeded, section);
+        return results;
+    }
+
+    private void store(Properties[] results, int index, boolean succeeded, StringBuilder section)
+            throws IOException {
+        if (index < 0 || index >= results.length) {
+            return;
+        }
+        if (!succeeded) {
+            final Query query = queries.get(index);
+            LOG.info(String.format("get_attribute_values failed for %s:%s in batch", query.pluginId,
+                    query.artifactId));
+            return;
+        }
+        final Properties properties = new Properties();
+        properties.load(new StringReader(section.toString()));
+        results[index] = properties;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.campagnelab.gobyweb.artifacts;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Results of get_attribute_values, kept in the attribute-cache directory of the repository. A result depends only on
+ * the install script of the plugin, on the artifact, and on the environment collection scripts sourced before the
+ * script, so results are keyed by a hash of these inputs. A changed script or environment yields a new key, and the
+ * function runs again. Results are also kept in memory, so that they can be used when the repository is read-only.
+ */
+public class AttributeCache {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(AttributeCache.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File cacheDir;
+    private final Map<String, Properties> memory =
+            Collections.synchronizedMap(new Object2ObjectOpenHashMap<String, Properties>());
+
+    public AttributeCache(File repoDir) {
+        this.cacheDir = new File(repoDir, "attribute-cache");
+    }
+
+    /**
+     * Compute the key of the result of get_attribute_values.
+     *
+     * @param pluginId     the plugin.
+     * @param artifactId   the artifact get_attribute_values is called for.
+     * @param pluginScript the install script of the plugin.
+     * @param envScripts   the environment collection scripts sourced before the install script, in order.
+     * @return the key, a hexadecimal SHA-1 digest.
+     * @throws IOException when a script cannot be read.
+     */
+    public static String key(String pluginId, String artifactId, File pluginScript, List<String> envScripts)
+            throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        update(digest, pluginId);
+        update(digest, artifactId);
+        update(digest, pluginScript);
+        for (String envScript : envScripts) {
+            update(digest, envScript);
+            update(digest, new File(envScript));
+        }
+        final StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b & 0xff));
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the cached result, or null when get_attribute_values did not run with these inputs.
+     */
+    public Properties get(String key) {
+        final Properties cached = memory.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final File file = fileOf(key);
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            final Properties properties = new Properties();
+            properties.load(input);
+            memory.put(key, properties);
+            return properties;
+        } catch (IOException e) {
+            LOG.warn("Unable to read cached attribute values " + file, e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Store the result of get_attribute_values.
+     *
+     * @throws IOException when the result could not be written to the repository. It is kept in memory.
+     */
+    public void put(String key, Properties properties) throws IOException {
+        memory.put(key, properties);
+        if (!cacheDir.exists() && !cacheDir.mkdirs() && !cacheDir.exists()) {
+            throw new IOException("Unable to create directory " + cacheDir);
+        }
+        final File tmp = File.createTempFile(key, ".tmp", cacheDir);
+        final OutputStream output = new FileOutputStream(tmp);
+        try {
+            properties.store(output, null);
+        } finally {
+            output.close();
+        }
+        // readers see no result or a complete one:
+        java.nio.file.Files.move(tmp.toPath(), fileOf(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Remove all the cached results.
+     *
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        memory.clear();
+        org.apache.commons.io.FileUtils.deleteDirectory(cacheDir);
+    }
+
+    private File fileOf(String key) {
+        return new File(cacheDir, key + ".properties");
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(UTF8));
+        digest.update((byte) 0);
+    }
+
+    private static void update(MessageDigest digest, File file) throws IOException {
+        final InputStream input = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+        digest.update((byte) 0);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.campagnelab.gobyweb.artifacts;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long lived bash process that evaluates get_attribute_values for many artifacts. The environment collection
+ * scripts are sourced once, when the worker starts. Each request is then written to the standard input of the
+ * worker, and runs in a subshell, so that plugin scripts do not see the functions of each other and may exit. The
+ * subshell writes its output to standard error, which is logged, and the worker answers on standard output with a
+ * line that carries the number of the request and the exit status of get_attribute_values:
+ * <pre>
+ * __GET_ATTRIBUTE_VALUES_DONE__ 12 0
+ * </pre>
+ * Other lines written to standard output, for instance by environment collection scripts, are logged and ignored.
+ */
+public class AttributeWorker {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(AttributeWorker.class);
+    private static final String DONE_MARKER = "__GET_ATTRIBUTE_VALUES_DONE__";
+    /**
+     * Put in the queue of responses when the worker closed its standard output.
+     */
+    private static final String END_OF_OUTPUT = new String("END_OF_OUTPUT");
+    /**
+     * Time given to the worker to source the environment collection scripts when no timeout applies.
+     */
+    private static final long STARTUP_TIMEOUT = 5 * 60 * 1000;
+
+    private final String prelude;
+    private final ProcessTree tree;
+    private final Writer commands;
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<String>();
+    private int requests;
+    private boolean closed;
+
+    private AttributeWorker(String prelude, ProcessTree tree) {
+        this.prelude = prelude;
+        this.tree = tree;
+        this.commands = new OutputStreamWriter(tree.getProcess().getOutputStream());
+    }
+
+    /**
+     * Start a worker.
+     *
+     * @param prelude statements that source the environment collection scripts.
+     * @return a worker ready to evaluate requests.
+     * @throws IOException when the worker could not be started, or exited while sourcing the prelude.
+     */
+    public static AttributeWorker start(String prelude) throws IOException {
+        final ProcessTree tree = ProcessTree.start(new String[]{"/bin/bash", "--noprofile", "--norc"});
+        tree.track();
+        final AttributeWorker worker = new AttributeWorker(prelude, tree);
+        worker.drain(tree.getProcess().getErrorStream(), null, "attribute-worker-stderr");
+        worker.drain(tree.getProcess().getInputStream(), worker.responses, "attribute-worker-stdout");
+        try {
+            final int status = worker.send(String.format("{ set +xv ; %s true ; } < /dev/null 1>&2", prelude),
+                    STARTUP_TIMEOUT);
+            if (status != 0) {
+                throw new IOException("Environment collection scripts failed with status " + status);
+            }
+        } catch (IOException e) {
+            worker.close();
+            throw e;
+        }
+        return worker;
+    }
+
+    /**
+     * @return the statements sourced when the worker started.
+     */
+    public String getPrelude() {
+        return prelude;
+    }
+
+    /**
+     * @return True when the worker can evaluate requests.
+     */
+    public synchronized boolean isAlive() {
+        if (closed) {
+            return false;
+        }
+        try {
+            tree.getProcess().exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Evaluate get_attribute_values of a plugin script for an artifact.
+     *
+     * @param pluginScript the install script of the plugin.
+     * @param artifactId   the artifact.
+     * @param result       the properties file get_attribute_values must write.
+     * @param timeout      maximum time to wait, in milliseconds. Zero or less waits without limit.
+     * @return the exit status of get_attribute_values.
+     * @throws InterruptedIOException when the timeout expired. The worker is killed.
+     * @throws IOException            when the worker exited.
+     */
+    public synchronized int evaluate(String pluginScript, String artifactId, File result, long timeout)
+            throws IOException {
+        final String request = String.format("( set -e ; set +xv ; DIR=%s ; script=%s ; mkdir -p ${DIR} ; " +
+                        "chmod +x $script ; . $script ; get_attribute_values %s $DIR/%s ) < /dev/null 1>&2",
+                result.getParentFile().getAbsolutePath(), pluginScript, artifactId, result.getName());
+        return send(request, timeout);
+    }
+
+    /**
+     * Stop the worker, and the subshell it may be running.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // the worker exits when its standard input is closed, unless a subshell is still running:
+        IOUtils.closeQuietly(commands);
+        final long deadline = System.currentTimeMillis() + 1000;
+        while (isRunning() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (isRunning()) {
+            tree.kill("the attribute worker is closed");
+        }
+        tree.untrack();
+    }
+
+    private boolean isRunning() {
+        try {
+            tree.getProcess().exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Write a command to the worker and wait for its status.
+     */
+    private synchronized int send(String command, long timeout) throws IOException {
+        if (closed) {
+            throw new IOException("The attribute worker is closed.");
+        }
+        final int request = ++requests;
+        commands.write(String.format("%s ; echo \"%s %d $?\"%n", command, DONE_MARKER, request));
+        commands.flush();
+        final String expected = DONE_MARKER + " " + request + " ";
+        final long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+        try {
+            while (true) {
+                final long remaining = deadline - System.currentTimeMillis();
+                final String line = timeout > 0 ? responses.poll(Math.max(0, remaining), TimeUnit.MILLISECONDS) :
+                        responses.take();
+                if (line == null) {
+                    final String reason = String.format("timed out after %d seconds", timeout / 1000);
+                    tree.kill(reason);
+                    close();
+                    throw new InterruptedIOException("get_attribute_values " + reason);
+                }
+                if (line == END_OF_OUTPUT) {
+                    close();
+                    throw new IOException("The attribute worker exited.");
+                }
+                if (line.startsWith(expected)) {
+                    return Integer.parseInt(line.substring(expected.length()).trim());
+                }
+                LOG.debug("attribute worker: " + line);
+            }
+        } catch (InterruptedException e) {
+            close();
+            throw new InterruptedIOException("Interrupted while waiting for the attribute worker.");
+        }
+    }
+
+    /**
+     * Read a stream of the worker in a daemon thread. Lines are added to the queue, or logged when there is no
+     * queue.
+     */
+    private void drain(final InputStream stream, final BlockingQueue<String> queue, String name) {
+        final Thread thread = new Thread(name) {
+            @Override
+            public void run() {
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (queue != null) {
+                            queue.add(line);
+                        } else {
+                            LOG.debug("attribute worker: " + line);
+                        }
+                    }
+                } catch (IOException e) {
+                    LOG.debug("Unable to read the output of the attribute worker", e);
+                } finally {
+                    IOUtils.closeQuietly(reader);
+                    if (queue != null) {
+                        queue.add(END_OF_OUTPUT);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -82,6 +82,19 @@ public class BuildArtifactRequest {
 
     public void addArtifact(String pluginId, String artifactId, String version, boolean mandatory, String installScript,
                             Artifacts.RetentionPolicy retention, Artifacts.AttributeValuePair... attributes) {
+        addArtifact(pluginId, artifactId, version, mandatory, installScript, retention,
+                new ObjectArrayList<Artifacts.ArtifactReference>(), attributes);
+    }
+
+    /**
+     * Add an artifact that must be installed after other artifacts of the request. See dependency() to build the
+     * references.
+     *
+     * @param dependsOn the artifacts of this request that must be installed before this artifact.
+     */
+    public void addArtifact(String pluginId, String artifactId, String version, boolean mandatory, String installScript,
+                            Artifacts.RetentionPolicy retention, List<Artifacts.ArtifactReference> dependsOn,
+                            Artifacts.AttributeValuePair... attributes) {
 
         Artifacts.ArtifactDetails.Builder detailsBuilder = Artifacts.ArtifactDetails.newBuilder();
         detailsBuilder.setArtifactId(artifactId);
@@ -94,9 +107,21 @@ public class BuildArtifactRequest {
         detailsBuilder.setMandatory(mandatory);
         detailsBuilder.addAllAttributes(ObjectArrayList.wrap(attributes));
         if (webServerUsername != null) detailsBuilder.setSshWebAppUserName(webServerUsername);
+        detailsBuilder.addAllDependsOn(dependsOn);
         installationSetBuilder.addArtifacts(detailsBuilder);
     }
 
+    /**
+     * Reference an artifact of the request, whatever its version.
+     *
+     * @param pluginId   Plugin Identifier.
+     * @param artifactId Artifact identifier.
+     * @return the reference.
+     */
+    public static Artifacts.ArtifactReference dependency(String pluginId, String artifactId) {
+        return Artifacts.ArtifactReference.newBuilder().setPluginId(pluginId).setArtifactId(artifactId).build();
+    }
+
     @Override
     public String toString() {
         return TextFormat.printToString(installationSetBuilder.build());
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * What installing an installation set would do, computed from the metadata of the repository without locking it
+ * exclusively. See ArtifactRequestHelper.plan().
+ */
+public class InstallPlan {
+
+    public enum Action {
+        /**
+         * The artifact is missing, or its last installation did not complete.
+         */
+        INSTALL,
+        /**
+         * The artifact is installed, nothing to do.
+         */
+        ALREADY_INSTALLED,
+        /**
+         * The artifact is not mandatory and only mandatory artifacts are installed.
+         */
+        SKIP_NOT_MANDATORY
+    }
+
+    /**
+     * The action planned for one artifact of the installation set.
+     */
+    public static class Step {
+        private final Artifacts.ArtifactDetails request;
+        private final Action action;
+        private final Artifacts.Artifact artifact;
+
+        Step(Artifacts.ArtifactDetails request, Action action, Artifacts.Artifact artifact) {
+            this.request = request;
+            this.action = action;
+            this.artifact = artifact;
+        }
+
+        public Artifacts.ArtifactDetails getRequest() {
+            return request;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        /**
+         * @return the artifact found in the repository, or null when the repository has no such artifact.
+         */
+        public Artifacts.Artifact getArtifact() {
+            return artifact;
+        }
+    }
+
+    private final List<Step> steps = new ObjectArrayList<Step>();
+
+    void add(Artifacts.ArtifactDetails request, Action action, Artifacts.Artifact artifact) {
+        steps.add(new Step(request, action, artifact));
+    }
+
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * @return True when at least one artifact must be installed.
+     */
+    public boolean hasWork() {
+        for (Step step : steps) {
+            if (step.action == Action.INSTALL) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Print the plan, one artifact per line.
+     *
+     * @param writer where to print the plan.
+     */
+    public void print(PrintWriter writer) {
+        for (Step step : steps) {
+            String state = step.artifact == null ? "ABSENT" : step.artifact.getState().toString();
+            writer.printf("%s %s (state=%s)%n", step.action, InstallationGraph.toText(step.request), state);
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.log4j.Logger;
+import org.campagnelab.gobyweb.artifacts.scope.ExplicitInstallationScope;
+import org.campagnelab.gobyweb.artifacts.scope.InstallationScope;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The dependencies between the artifacts of an installation set (ArtifactDetails.depends_on). Artifacts are
+ * identified by their position in the list given to the constructor.
+ */
+public class InstallationGraph {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(InstallationGraph.class);
+
+    private final List<Artifacts.ArtifactDetails> requests;
+    private final IntList[] dependencies;
+    private final IntList[] dependents;
+
+    /**
+     * Build the graph of a list of requests.
+     *
+     * @param requests the artifacts to install.
+     * @throws IOException when the dependencies contain a cycle.
+     */
+    public InstallationGraph(List<Artifacts.ArtifactDetails> requests) throws IOException {
+        this.requests = requests;
+        final int size = requests.size();
+        dependencies = new IntList[size];
+        dependents = new IntList[size];
+        for (int i = 0; i < size; i++) {
+            dependencies[i] = new IntArrayList();
+            dependents[i] = new IntArrayList();
+        }
+        for (int i = 0; i < size; i++) {
+            for (Artifacts.ArtifactReference reference : requests.get(i).getDependsOnList()) {
+                boolean found = false;
+                for (int j = 0; j < size; j++) {
+                    if (matches(reference, requests.get(j))) {
+                        dependencies[i].add(j);
+                        dependents[j].add(i);
+                        found = true;
+                    }
+                }
+                if (!found) {
+                    LOG.warn(String.format("Artifact %s depends on %s:%s, which is not part of the request. Ignoring.",
+                            toText(requests.get(i)), reference.getPluginId(), reference.getArtifactId()));
+                }
+            }
+        }
+        checkAcyclic();
+    }
+
+    /**
+     * @return True when at least one artifact of the installation set declares dependencies.
+     */
+    public static boolean hasDependencies(Artifacts.InstallationSet requests) {
+        for (Artifacts.ArtifactDetails request : requests.getArtifactsList()) {
+            if (request.getDependsOnCount() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    public Artifacts.ArtifactDetails get(int index) {
+        return requests.get(index);
+    }
+
+    /**
+     * @return the artifacts an artifact directly depends on.
+     */
+    public IntList getDependencies(int index) {
+        return dependencies[index];
+    }
+
+    /**
+     * @return the artifacts that directly depend on an artifact.
+     */
+    public IntList getDependents(int index) {
+        return dependents[index];
+    }
+
+    /**
+     * @return the artifacts an artifact depends on, directly or through other artifacts.
+     */
+    public IntSet getTransitiveDependencies(int index) {
+        return closure(index, dependencies);
+    }
+
+    /**
+     * @return the artifacts that depend on an artifact, directly or through other artifacts.
+     */
+    public IntSet getTransitiveDependents(int index) {
+        return closure(index, dependents);
+    }
+
+    /**
+     * The installation scope of an artifact: the artifact itself and its transitive dependencies. The install script
+     * of the artifact sees the exports of these artifacts only.
+     *
+     * @param index the artifact.
+     * @return the scope.
+     */
+    public InstallationScope scopeOf(int index) {
+        ExplicitInstallationScope scope = new ExplicitInstallationScope();
+        final IntSet inScope = getTransitiveDependencies(index);
+        inScope.add(index);
+        for (int i : inScope) {
+            final Artifacts.ArtifactDetails request = requests.get(i);
+            scope.addArtifact(request.getPluginId(), request.getArtifactId(), request.getVersion());
+        }
+        return scope;
+    }
+
+    private static IntSet closure(int index, IntList[] edges) {
+        final IntSet result = new IntOpenHashSet();
+        final IntArrayList toVisit = new IntArrayList();
+        toVisit.addAll(edges[index]);
+        while (!toVisit.isEmpty()) {
+            final int next = toVisit.popInt();
+            if (result.add(next)) {
+                toVisit.addAll(edges[next]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check that artifacts can be installed in some order, by removing artifacts without pending dependencies
+     * until none is left.
+     */
+    private void checkAcyclic() throws IOException {
+        final int size = requests.size();
+        final int[] pending = new int[size];
+        final IntArrayList ready = new IntArrayList();
+        for (int i = 0; i < size; i++) {
+            pending[i] = dependencies[i].size();
+            if (pending[i] == 0) {
+                ready.add(i);
+            }
+        }
+        int scheduled = 0;
+        while (!ready.isEmpty()) {
+            final int next = ready.popInt();
+            scheduled++;
+            for (int dependent : dependents[next]) {
+                if (--pending[dependent] == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        if (scheduled < size) {
+            final List<String> cycle = new ObjectArrayList<String>();
+            for (int i = 0; i < size; i++) {
+                if (pending[i] > 0) {
+                    cycle.add(toText(requests.get(i)));
+                }
+            }
+            throw new IOException("The dependencies between these artifacts contain a cycle: " + cycle);
+        }
+    }
+
+    private static boolean matches(Artifacts.ArtifactReference reference, Artifacts.ArtifactDetails request) {
+        return reference.getPluginId().equals(request.getPluginId()) &&
+                reference.getArtifactId().equals(request.getArtifactId()) &&
+                (!reference.hasVersion() || reference.getVersion().equals(request.getVersion()));
+    }
+
+    static String toText(Artifacts.ArtifactDetails request) {
+        return String.format("%s:%s:%s", request.getPluginId(), request.getArtifactId(), request.getVersion());
+    }
+}
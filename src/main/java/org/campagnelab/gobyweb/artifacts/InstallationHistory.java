@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.campagnelab.gobyweb.artifacts;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * The timings of the last installations of each artifact (plugin, artifact and version) of a repository. The
+ * history of an artifact is kept in its own file in the history directory of the repository, and survives the
+ * removal of the artifact, so that installations can be scheduled, and artifacts pruned, by how long they take to
+ * install.
+ */
+public class InstallationHistory {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(InstallationHistory.class);
+    /**
+     * Number of installations kept per artifact.
+     */
+    static final int HISTORY_SIZE = 10;
+
+    private final File historyDir;
+
+    public InstallationHistory(File repoDir) {
+        this.historyDir = new File(repoDir, "history");
+    }
+
+    /**
+     * Add an installation to the history of an artifact, forgetting the oldest installation when the history is
+     * full.
+     *
+     * @throws IOException
+     */
+    public synchronized void record(String pluginId, String artifactId, String version,
+                                    Artifacts.InstallTimings timings) throws IOException {
+        final List<Artifacts.InstallTimings> installs = get(pluginId, artifactId, version);
+        final Artifacts.InstallHistory.Builder history = Artifacts.InstallHistory.newBuilder();
+        history.addAllInstalls(installs.subList(Math.max(0, installs.size() - HISTORY_SIZE + 1), installs.size()));
+        history.addInstalls(timings);
+        final File file = fileOf(pluginId, artifactId, version);
+        FileUtils.forceMkdir(file.getParentFile());
+        final File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        final OutputStream output = new FileOutputStream(tmp);
+        try {
+            history.build().writeTo(output);
+        } finally {
+            output.close();
+        }
+        // readers see the previous history or the new one, never a partial file:
+        java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the last installations of an artifact, most recent last. Empty when the artifact was never installed.
+     */
+    public List<Artifacts.InstallTimings> get(String pluginId, String artifactId, String version) {
+        final File file = fileOf(pluginId, artifactId, version);
+        if (!file.exists()) {
+            return java.util.Collections.emptyList();
+        }
+        InputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            return Artifacts.InstallHistory.parseFrom(input).getInstallsList();
+        } catch (IOException e) {
+            LOG.warn("Unable to read the installation history in " + file, e);
+            return java.util.Collections.emptyList();
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * @return the mean duration of the last installations of an artifact, in milliseconds, or -1 when the artifact
+     * was never installed.
+     */
+    public long expectedDuration(String pluginId, String artifactId, String version) {
+        final List<Artifacts.InstallTimings> installs = get(pluginId, artifactId, version);
+        if (installs.isEmpty()) {
+            return -1;
+        }
+        long sum = 0;
+        for (Artifacts.InstallTimings timings : installs) {
+            sum += duration(timings);
+        }
+        return sum / installs.size();
+    }
+
+    /**
+     * @return the total duration of the phases of an installation, in milliseconds.
+     */
+    public static long duration(Artifacts.InstallTimings timings) {
+        return timings.getFetchMs() + timings.getAttributeProbeMs() + timings.getInstallScriptMs() +
+                timings.getSizeScanMs() + timings.getMetadataCommitMs();
+    }
+
+    private File fileOf(String pluginId, String artifactId, String version) {
+        return new File(FilenameUtils.concat(FilenameUtils.concat(FilenameUtils.concat(historyDir.getPath(),
+                pluginId), artifactId), version + ".pb"));
+    }
+}
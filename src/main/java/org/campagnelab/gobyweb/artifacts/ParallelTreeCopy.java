@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Copies a directory tree with several threads. Large files are split in chunks copied in parallel, which keeps
+ * several requests in flight when the source is on a network file system. Permissions and modification times are
+ * preserved. Copies are incremental: files of the destination with the size and modification time of the source
+ * file are not copied again, and files of the destination absent from the source are deleted. Like
+ * ArtifactArchive, the copy relocates small files that contain the absolute path of the source directory, and
+ * symbolic links that point inside it. Binary files are relocated only when both paths have the same length.
+ */
+public class ParallelTreeCopy {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(ParallelTreeCopy.class);
+    private static final long CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int threads;
+
+    public ParallelTreeCopy(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Copy a directory.
+     *
+     * @param source      the directory to copy.
+     * @param destination the copy, created if needed.
+     * @param finalDir    the directory the copy will be installed in, which replaces the path of the source in
+     *                    relocated files.
+     * @throws IOException
+     */
+    public void copy(File source, File destination, File finalDir) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<?>> copies = new ObjectArrayList<Future<?>>();
+        final List<File[]> copied = new ObjectArrayList<File[]>();
+        try {
+            final String from = source.getAbsolutePath();
+            copyDirectory(source, destination, from, finalDir.getAbsolutePath(), executor, copies, copied);
+            for (Future<?> copy : copies) {
+                copy.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while copying " + source);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        // set attributes once the content is written, deepest first, since directories may be read-only:
+        for (int i = copied.size() - 1; i >= 0; i--) {
+            final Path sourcePath = copied.get(i)[0].toPath();
+            final Path copyPath = copied.get(i)[1].toPath();
+            try {
+                Files.setPosixFilePermissions(copyPath, ArtifactArchive.permissionsOf(ArtifactArchive.modeOf(sourcePath)));
+            } catch (UnsupportedOperationException e) {
+                copyPath.toFile().setExecutable(sourcePath.toFile().canExecute());
+            }
+            Files.setLastModifiedTime(copyPath, Files.getLastModifiedTime(sourcePath));
+        }
+    }
+
+    private void copyDirectory(File source, File destination, String from, String to, ExecutorService executor,
+                               List<Future<?>> copies, List<File[]> copied) throws IOException {
+        destination.mkdirs();
+        final File[] children = source.listFiles();
+        if (children == null) {
+            throw new IOException("Unable to list directory " + source);
+        }
+        final Set<String> names = new ObjectOpenHashSet<String>();
+        for (File child : children) {
+            names.add(child.getName());
+        }
+        final File[] existing = destination.listFiles();
+        if (existing != null) {
+            for (File file : existing) {
+                if (!names.contains(file.getName())) {
+                    FileUtils.forceDelete(file);
+                }
+            }
+        }
+        for (File child : children) {
+            final File target = new File(destination, child.getName());
+            final Path path = child.toPath();
+            if (Files.isSymbolicLink(path)) {
+                String link = Files.readSymbolicLink(path).toString();
+                if (link.startsWith(from)) {
+                    link = to + link.substring(from.length());
+                }
+                Files.deleteIfExists(target.toPath());
+                Files.createSymbolicLink(target.toPath(), Paths.get(link));
+                continue;
+            }
+            if (!child.isDirectory() && target.isFile() && target.length() == child.length() &&
+                    target.lastModified() == child.lastModified()) {
+                // copied before the copy was interrupted:
+                continue;
+            }
+            if (Files.isSymbolicLink(target.toPath()) || (target.isDirectory() != child.isDirectory() && target.exists())) {
+                FileUtils.forceDelete(target);
+            }
+            copied.add(new File[]{child, target});
+            if (child.isDirectory()) {
+                copyDirectory(child, target, from, to, executor, copies, copied);
+            } else if (child.length() <= ArtifactArchive.RELOCATION_SCAN_LIMIT) {
+                final byte[] content = FileUtils.readFileToByteArray(child);
+                FileUtils.writeByteArrayToFile(target,
+                        ArtifactArchive.relocate(content, from.getBytes(UTF8), to.getBytes(UTF8)));
+            } else {
+                final long size = child.length();
+                final RandomAccessFile output = new RandomAccessFile(target, "rw");
+                try {
+                    output.setLength(size);
+                } finally {
+                    output.close();
+                }
+                for (long offset = 0; offset < size; offset += CHUNK_SIZE) {
+                    copies.add(executor.submit(new ChunkCopy(child, target, offset, Math.min(CHUNK_SIZE, size - offset))));
+                }
+            }
+        }
+    }
+
+    private static class ChunkCopy implements Callable<Void> {
+        private final File source;
+        private final File destination;
+        private final long offset;
+        private final long length;
+
+        ChunkCopy(File source, File destination, long offset, long length) {
+            this.source = source;
+            this.destination = destination;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            final RandomAccessFile input = new RandomAccessFile(source, "r");
+            final RandomAccessFile output = new RandomAccessFile(destination, "rw");
+            try {
+                final FileChannel in = input.getChannel();
+                final FileChannel out = output.getChannel();
+                long done = 0;
+                while (done < length) {
+                    final long transferred = in.transferTo(offset + done, length - done, out.position(offset + done));
+                    if (transferred <= 0) {
+                        throw new IOException("File changed while it was copied: " + source);
+                    }
+                    done += transferred;
+                }
+            } finally {
+                input.close();
+                output.close();
+            }
+            LOG.trace(String.format("copied %d bytes at offset %d of %s", length, offset, source));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.campagnelab.gobyweb.artifacts.locks.LockRegistry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A process started by the repository (install scripts, get_attribute_values), together with the processes it
+ * starts. Processes are started in their own session when setsid is available, so that the whole tree can be
+ * signaled through its process group, even when intermediate processes have exited. Processes still running when
+ * the JVM shuts down are killed, and their shutdown action (marking the installation interrupted) runs before the
+ * repository locks held by the JVM are released.
+ */
+public class ProcessTree {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(ProcessTree.class);
+    /**
+     * Time given to processes to exit after SIGTERM, before they are sent SIGKILL.
+     */
+    private static final long KILL_GRACE_PERIOD = 5 * 1000;
+    private static final long POLL_INTERVAL = 100;
+    private static final String SETSID = findSetsid();
+    private static final Set<ProcessTree> RUNNING =
+            java.util.Collections.newSetFromMap(new ConcurrentHashMap<ProcessTree, Boolean>());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("process-tree-cleanup") {
+            @Override
+            public void run() {
+                // all trees share a single grace period, however many are running:
+                final List<ProcessTree> trees = new ObjectArrayList<ProcessTree>(RUNNING);
+                kill(trees, "the JVM is shutting down");
+                for (ProcessTree tree : trees) {
+                    if (tree.onShutdown != null) {
+                        try {
+                            tree.onShutdown.run();
+                        } catch (RuntimeException e) {
+                            LOG.error("Shutdown action failed for process " + tree.pid, e);
+                        }
+                    }
+                }
+                LockRegistry.releaseAll();
+            }
+        });
+    }
+
+    private final Process process;
+    private final long pid;
+    private final boolean groupLeader;
+    private volatile Runnable onShutdown;
+
+    private ProcessTree(Process process, long pid, boolean groupLeader) {
+        this.process = process;
+        this.pid = pid;
+        this.groupLeader = groupLeader;
+    }
+
+    /**
+     * Start a process.
+     *
+     * @param command the command and its arguments.
+     * @return the started process tree.
+     * @throws IOException
+     */
+    public static ProcessTree start(String[] command) throws IOException {
+        String[] launched = command;
+        if (SETSID != null) {
+            launched = new String[command.length + 1];
+            launched[0] = SETSID;
+            System.arraycopy(command, 0, launched, 1, command.length);
+        }
+        final Process process = Runtime.getRuntime().exec(launched);
+        return new ProcessTree(process, pidOf(process), SETSID != null);
+    }
+
+    public Process getProcess() {
+        return process;
+    }
+
+    /**
+     * Set the action to run when the JVM shuts down while the process is running, after the tree was killed.
+     */
+    public void setOnShutdown(Runnable onShutdown) {
+        this.onShutdown = onShutdown;
+    }
+
+    /**
+     * Kill the tree when the JVM shuts down, until untrack() is called. Trees are tracked while waitFor() runs; long
+     * lived processes that are not waited for track themselves.
+     */
+    void track() {
+        RUNNING.add(this);
+    }
+
+    void untrack() {
+        RUNNING.remove(this);
+    }
+
+    /**
+     * Wait for the process to exit. The whole tree is killed when the timeout expires, or when the waiting thread
+     * is interrupted.
+     *
+     * @param timeout maximum time to wait, in milliseconds. Zero or less waits without limit.
+     * @return the exit value of the process.
+     * @throws InterruptedIOException when the timeout expired. The message gives the reason.
+     * @throws InterruptedException   when the waiting thread was interrupted.
+     */
+    public int waitFor(long timeout) throws InterruptedIOException, InterruptedException {
+        RUNNING.add(this);
+        try {
+            if (timeout <= 0) {
+                return process.waitFor();
+            }
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                try {
+                    return process.exitValue();
+                } catch (IllegalThreadStateException e) {
+                    // still running
+                }
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    final String reason = String.format("timed out after %d seconds", timeout / 1000);
+                    kill(reason);
+                    throw new InterruptedIOException("Process " + reason);
+                }
+                Thread.sleep(Math.min(POLL_INTERVAL, remaining));
+            }
+        } catch (InterruptedException e) {
+            kill("the waiting thread was interrupted");
+            throw e;
+        } finally {
+            RUNNING.remove(this);
+        }
+    }
+
+    /**
+     * Kill the process and all its descendants: SIGTERM first, then SIGKILL to the processes still alive after
+     * KILL_GRACE_PERIOD.
+     *
+     * @param reason why the tree is killed, for the log.
+     */
+    public void kill(String reason) {
+        kill(java.util.Collections.singletonList(this), reason);
+    }
+
+    /**
+     * Kill several trees: SIGTERM is sent to every tree, then SIGKILL to the processes still alive once all trees
+     * exited or KILL_GRACE_PERIOD elapsed.
+     */
+    private static void kill(List<ProcessTree> trees, String reason) {
+        for (ProcessTree tree : trees) {
+            LOG.warn(String.format("Killing process tree of pid %d: %s", tree.pid, reason));
+            if (tree.pid > 0) {
+                tree.signal("TERM", tree.descendants());
+            }
+        }
+        final long deadline = System.currentTimeMillis() + KILL_GRACE_PERIOD;
+        while (anyAlive(trees) && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        for (ProcessTree tree : trees) {
+            if (tree.pid > 0) {
+                // children may outlive their parent, signal whatever is left:
+                tree.signal("KILL", tree.descendants());
+            }
+            tree.process.destroy();
+        }
+    }
+
+    private static boolean anyAlive(List<ProcessTree> trees) {
+        for (ProcessTree tree : trees) {
+            if (tree.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAlive() {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Send a signal to the processes of the tree, and to the process group when the process leads one.
+     */
+    private void signal(String signal, LongList pids) {
+        final List<String> command = new ObjectArrayList<String>();
+        command.add("kill");
+        command.add("-" + signal);
+        command.add("--");
+        if (groupLeader) {
+            command.add("-" + pid);
+        }
+        for (long descendant : pids) {
+            command.add(Long.toString(descendant));
+        }
+        try {
+            final Process kill = Runtime.getRuntime().exec(command.toArray(new String[command.size()]));
+            IOUtils.closeQuietly(kill.getOutputStream());
+            IOUtils.closeQuietly(kill.getInputStream());
+            IOUtils.closeQuietly(kill.getErrorStream());
+            kill.waitFor();
+        } catch (IOException e) {
+            LOG.warn("Unable to send SIG" + signal + " to process " + pid, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the process and its descendants, parents first, as listed by ps.
+     */
+    private LongList descendants() {
+        final LongList result = new LongArrayList();
+        result.add(pid);
+        final Long2ObjectMap<LongList> children = new Long2ObjectOpenHashMap<LongList>();
+        try {
+            final Process ps = Runtime.getRuntime().exec(new String[]{"ps", "-e", "-o", "pid=", "-o", "ppid="});
+            IOUtils.closeQuietly(ps.getOutputStream());
+            IOUtils.closeQuietly(ps.getErrorStream());
+            final List<String> lines;
+            try {
+                lines = IOUtils.readLines(ps.getInputStream());
+            } finally {
+                IOUtils.closeQuietly(ps.getInputStream());
+            }
+            ps.waitFor();
+            for (String line : lines) {
+                final String[] tokens = line.trim().split("\\s+");
+                if (tokens.length != 2) {
+                    continue;
+                }
+                final long child = Long.parseLong(tokens[0]);
+                final long parent = Long.parseLong(tokens[1]);
+                LongList list = children.get(parent);
+                if (list == null) {
+                    list = new LongArrayList();
+                    children.put(parent, list);
+                }
+                list.add(child);
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to list the descendants of process " + pid, e);
+        } catch (NumberFormatException e) {
+            LOG.warn("Unable to parse the process list", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (int i = 0; i < result.size(); i++) {
+            final LongList list = children.get(result.getLong(i));
+            if (list != null) {
+                result.addAll(list);
+            }
+        }
+        return result;
+    }
+
+    private static String findSetsid() {
+        for (String candidate : new String[]{"/usr/bin/setsid", "/bin/setsid"}) {
+            if (new File(candidate).canExecute()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the pid of a process, or -1 when the JVM does not expose it.
+     */
+    private static long pidOf(Process process) {
+        try {
+            final Method method = Process.class.getMethod("pid");
+            return ((Number) method.invoke(process)).longValue();
+        } catch (Exception e) {
+            // before Java 9, the pid is a private field of the implementation:
+        }
+        try {
+            final Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getLong(process);
+        } catch (Exception e) {
+            LOG.debug("Unable to determine the pid of a process, only the process itself will be killed.", e);
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.campagnelab.gobyweb.artifacts;
+
+import org.apache.log4j.Logger;
+
+import java.io.InterruptedIOException;
+
+/**
+ * The resources of a node that install scripts may use: threads, memory and disk space. Installations are admitted
+ * when the resources they ask for (ArtifactDetails.resources) are available, and give them back when they complete.
+ * An installation that asks for more than the whole budget is granted the whole budget, once nothing else runs.
+ * Memory and disk are not limited when their budget is zero.
+ */
+public class ResourceBudget {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(ResourceBudget.class);
+    /**
+     * Threads granted to installations that do not say how many they can use.
+     */
+    private static final int DEFAULT_THREADS = 1;
+
+    private final int threads;
+    private final long memoryMb;
+    private final long diskMb;
+    private int usedThreads;
+    private long usedMemoryMb;
+    private long usedDiskMb;
+
+    /**
+     * @param threads  number of threads installations may use at the same time.
+     * @param memoryMb memory installations may use at the same time, in megabytes. Zero for no limit.
+     * @param diskMb   disk space installations may fill at the same time, in megabytes. Zero for no limit.
+     */
+    public ResourceBudget(int threads, long memoryMb, long diskMb) {
+        this.threads = Math.max(1, threads);
+        this.memoryMb = Math.max(0, memoryMb);
+        this.diskMb = Math.max(0, diskMb);
+    }
+
+    /**
+     * The resources granted to one installation.
+     */
+    public static class Grant {
+        private final int threads;
+        private final long memoryMb;
+        private final long diskMb;
+
+        Grant(int threads, long memoryMb, long diskMb) {
+            this.threads = threads;
+            this.memoryMb = memoryMb;
+            this.diskMb = diskMb;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        /**
+         * @return the memory granted, in megabytes, or zero when the installation did not ask for memory.
+         */
+        public long getMemoryMb() {
+            return memoryMb;
+        }
+
+        public long getDiskMb() {
+            return diskMb;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("threads=%d memory=%dMB disk=%dMB", threads, memoryMb, diskMb);
+        }
+    }
+
+    /**
+     * Wait until the resources asked for by a request are available, and reserve them.
+     *
+     * @param request the artifact to install.
+     * @return the resources granted, to be released with release() once the installation completes.
+     * @throws InterruptedIOException when interrupted while waiting.
+     */
+    public synchronized Grant acquire(Artifacts.ArtifactDetails request) throws InterruptedIOException {
+        final Artifacts.ResourceHints hints = request.hasResources() ? request.getResources() :
+                Artifacts.ResourceHints.getDefaultInstance();
+        final Grant grant = new Grant(
+                Math.min(threads, hints.hasThreads() && hints.getThreads() > 0 ? hints.getThreads() : DEFAULT_THREADS),
+                clamp(hints.getMemoryMb(), memoryMb),
+                clamp(hints.getDiskMb(), diskMb));
+        boolean reported = false;
+        while (!fits(grant)) {
+            if (!reported) {
+                LOG.info(String.format("Waiting for %s to install %s (in use: threads=%d memory=%dMB disk=%dMB)",
+                        grant, InstallationGraph.toText(request), usedThreads, usedMemoryMb, usedDiskMb));
+                reported = true;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for resources to install " +
+                        InstallationGraph.toText(request));
+            }
+        }
+        usedThreads += grant.threads;
+        usedMemoryMb += grant.memoryMb;
+        usedDiskMb += grant.diskMb;
+        return grant;
+    }
+
+    /**
+     * Give back the resources of an installation that completed.
+     */
+    public synchronized void release(Grant grant) {
+        usedThreads -= grant.threads;
+        usedMemoryMb -= grant.memoryMb;
+        usedDiskMb -= grant.diskMb;
+        notifyAll();
+    }
+
+    private boolean fits(Grant grant) {
+        return usedThreads + grant.threads <= threads &&
+                (memoryMb == 0 || usedMemoryMb + grant.memoryMb <= memoryMb) &&
+                (diskMb == 0 || usedDiskMb + grant.diskMb <= diskMb);
+    }
+
+    private static long clamp(long requested, long budget) {
+        if (requested <= 0) {
+            return 0;
+        }
+        return budget == 0 ? requested : Math.min(requested, budget);
+    }
+}
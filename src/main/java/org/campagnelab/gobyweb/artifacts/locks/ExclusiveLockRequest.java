@@ -32,6 +32,24 @@ public interface ExclusiveLockRequest {
 
     void waitAndLock() throws IOException;
 
+    /**
+     * Wait until the lock is granted. A shared lock may be held by several processes at the same time, but
+     * excludes exclusive locks.
+     *
+     * @param shared True to request a shared lock, false to request an exclusive lock.
+     */
+    void waitAndLock(boolean shared) throws IOException;
+
+    /**
+     * @return True when the lock that was granted is shared.
+     */
+    boolean isShared();
+
+    /**
+     * @return the time, in milliseconds, spent waiting the last time the lock was requested.
+     */
+    long getWaitTime();
+
 
     /**
      * Release the lock, call after the lock was granted to release.
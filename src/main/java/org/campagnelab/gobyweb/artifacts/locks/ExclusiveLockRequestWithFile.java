@@ -32,10 +32,15 @@ import java.nio.channels.FileLock;
  */
 public class ExclusiveLockRequestWithFile implements ExclusiveLockRequest {
 
+    /**
+     * Open from the time the lock is requested until it is released. Closing a descriptor drops every lock the
+     * process holds on the file, so the file is never left open for the garbage collector to close later.
+     */
     RandomAccessFile lockFile;
     private FileLock lock;
     private static Logger LOG = Logger.getLogger(ExclusiveLockRequestWithFile.class);
     private final String filename;
+    private final String lockFilename;
 
     public ExclusiveLockRequestWithFile(String filename, File repoDir) {
         this.filename = filename;
@@ -43,24 +48,24 @@ public class ExclusiveLockRequestWithFile implements ExclusiveLockRequest {
             LOG.warn("Repository directory did not exist, creating..");
             repoDir.mkdir();
         }
-        String lockFilename = FilenameUtils.concat(repoDir.getAbsolutePath(), filename);
+        lockFilename = FilenameUtils.concat(repoDir.getAbsolutePath(), filename);
+    }
 
+    boolean granted = false;
+    private long waitTime;
 
-        try {
+    private RandomAccessFile open() throws FileNotFoundException {
+        if (lockFile == null) {
             lockFile = new RandomAccessFile(lockFilename, "rw");
-        } catch (FileNotFoundException e) {
-            LOG.error("Cannot create LOCK on " + this.filename, e);
         }
-
+        return lockFile;
     }
 
-    boolean granted = false;
-
     public void query() {
 
         synchronized (this) {
             try {
-                granted = (lock = lockFile.getChannel().tryLock()) != null;
+                granted = (lock = open().getChannel().tryLock()) != null;
             } catch (IOException e) {
                 LOG.error("Could not acquire lock on " + filename, e);
                 granted = false;
@@ -77,16 +82,30 @@ public class ExclusiveLockRequestWithFile implements ExclusiveLockRequest {
     }
 
     public void waitAndLock() throws IOException {
+        waitAndLock(false);
+    }
 
-        synchronized (this) {
+    public void waitAndLock(boolean shared) throws IOException {
 
-            lock = lockFile.getChannel().lock();
+        synchronized (this) {
+            final long start = System.currentTimeMillis();
+            lock = open().getChannel().lock(0, Long.MAX_VALUE, shared);
             granted = lock != null;
+            waitTime = System.currentTimeMillis() - start;
         }
     }
 
+    public long getWaitTime() {
+        return waitTime;
+    }
+
+    public boolean isShared() {
+        return lock != null && lock.isShared();
+    }
+
     /**
-     * Release the lock, call after the lock was granted to release.
+     * Release the lock, call after the lock was granted to release. The lock file is closed, and opened again if
+     * the lock is requested again.
      */
     public void release() throws IOException {
         synchronized (this) {
@@ -104,6 +123,15 @@ public class ExclusiveLockRequestWithFile implements ExclusiveLockRequest {
                     }
 
             }
+            lock = null;
+            granted = false;
+            if (lockFile != null) {
+                try {
+                    lockFile.close();
+                } finally {
+                    lockFile = null;
+                }
+            }
         }
     }
 
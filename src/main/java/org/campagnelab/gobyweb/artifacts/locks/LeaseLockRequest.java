@@ -0,0 +1,415 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.locks;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+
+/**
+ * A lock implemented with lease files rather than with FileChannel locks, which are unreliable or very slow on
+ * some network file systems (NFS, Lustre). The exclusive lease is a file (filename.lease) that names its owner and
+ * the time at which the lease expires. It is created atomically by writing a temporary file and hard-linking it to
+ * the lease name, which fails when another process holds the lease. The owner renews the lease periodically; a lease
+ * that was not renewed before it expired belongs to a dead process and is broken by the next process that wants it.
+ * Hosts sharing a repository are expected to have clocks synchronized to well within LEASE_DURATION.
+ * <p/>
+ * Shared leases are files named filename.shared.(owner). A reader creates its shared lease while holding the
+ * exclusive lease for a moment, and a writer that holds the exclusive lease waits until no live shared lease
+ * remains. Waiting processes retry with exponential backoff and jitter.
+ */
+public class LeaseLockRequest implements ExclusiveLockRequest {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(LeaseLockRequest.class);
+    /**
+     * Time after which a lease that was not renewed is considered abandoned.
+     */
+    public static final long LEASE_DURATION = 2 * 60 * 1000;
+    private static final long RENEW_INTERVAL = LEASE_DURATION / 4;
+    private static final int MIN_BACKOFF = 20;
+    private static final int MAX_BACKOFF = 5000;
+    private static final Timer RENEWAL_TIMER = new Timer("lease-renewal", true);
+    private static final String PROCESS = processName();
+
+    private final File directory;
+    private final String filename;
+    private final File leaseFile;
+    private final String owner;
+    private final Random random = new Random();
+    /**
+     * The lease file this request holds: the exclusive lease or a shared lease. Null when no lease is held.
+     */
+    private File heldFile;
+    private boolean shared;
+    private boolean granted;
+    private Renewal renewal;
+    private long waitTime;
+
+    public LeaseLockRequest(String filename, File directory) {
+        this.filename = filename;
+        this.directory = directory;
+        if (!directory.exists()) {
+            LOG.warn("Repository directory did not exist, creating..");
+            directory.mkdirs();
+        }
+        this.leaseFile = new File(directory, filename + ".lease");
+        this.owner = PROCESS + "@" + UUID.randomUUID().toString();
+    }
+
+    /**
+     * Try to acquire the exclusive lease without waiting.
+     */
+    public synchronized void query() {
+        try {
+            granted = tryAcquireLease();
+            if (granted && hasLiveReaders()) {
+                leaseFile.delete();
+                granted = false;
+            }
+            if (granted) {
+                hold(leaseFile, false);
+            }
+        } catch (IOException e) {
+            LOG.error("Could not acquire lease on " + filename, e);
+            granted = false;
+        }
+    }
+
+    /**
+     * @return True when the lock was granted. False otherwise.
+     */
+    public synchronized boolean granted() {
+        return granted;
+    }
+
+    public void waitAndLock() throws IOException {
+        waitAndLock(false);
+    }
+
+    public synchronized void waitAndLock(boolean shared) throws IOException {
+        final long start = System.currentTimeMillis();
+        int backoff = MIN_BACKOFF;
+        while (!tryAcquireLease()) {
+            backoff = sleep(backoff);
+        }
+        if (shared) {
+            final File sharedFile = new File(directory, filename + ".shared." + owner.replace(':', '_'));
+            writeLease(sharedFile);
+            // new readers are admitted again:
+            leaseFile.delete();
+            hold(sharedFile, true);
+        } else {
+            // keep the lease alive while the readers finish:
+            hold(leaseFile, false);
+            backoff = MIN_BACKOFF;
+            while (hasLiveReaders()) {
+                backoff = sleep(backoff);
+            }
+        }
+        granted = true;
+        waitTime = System.currentTimeMillis() - start;
+        if (waitTime > RENEW_INTERVAL) {
+            LOG.info(String.format("Waited %d ms for the lease on %s", waitTime, filename));
+        }
+    }
+
+    public synchronized boolean isShared() {
+        return granted && shared;
+    }
+
+    public synchronized long getWaitTime() {
+        return waitTime;
+    }
+
+    /**
+     * Release the lock, call after the lock was granted to release.
+     *
+     * @throws IOException when the lease was lost while it was held: it expired and was broken by another
+     *                     process, which may have written while this request believed it held the lock.
+     */
+    public synchronized void release() throws IOException {
+        boolean lost = false;
+        if (renewal != null) {
+            renewal.stop();
+            lost = renewal.isLost();
+            renewal = null;
+        }
+        String current = null;
+        if (heldFile != null) {
+            current = readOwner(heldFile);
+            if (owner.equals(current)) {
+                heldFile.delete();
+            } else {
+                lost = true;
+            }
+            heldFile = null;
+        }
+        granted = false;
+        if (lost) {
+            throw new IOException(String.format("The lease on %s was lost while held by %s (now held by %s)",
+                    filename, owner, current));
+        }
+    }
+
+    /**
+     * Lease locks do not lock a file that callers could read.
+     *
+     * @return null.
+     */
+    public RandomAccessFile getLockedFile() {
+        return null;
+    }
+
+    private void hold(File file, boolean shared) {
+        this.heldFile = file;
+        this.shared = shared;
+        this.renewal = new Renewal(file);
+        RENEWAL_TIMER.schedule(renewal, RENEW_INTERVAL, RENEW_INTERVAL);
+    }
+
+    /**
+     * Try to create the exclusive lease file. An expired lease is broken so that the next attempt can succeed.
+     *
+     * @return True when the lease was created by this request.
+     */
+    private boolean tryAcquireLease() throws IOException {
+        final File temp = tempFile();
+        FileUtils.writeStringToFile(temp, leaseContent());
+        try {
+            Files.createLink(leaseFile.toPath(), temp.toPath());
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            breakIfExpired(leaseFile);
+            return false;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Delete a lease that expired. The lease is first renamed to a name unique to this request, so that only one
+     * of the processes that find the lease expired deletes it.
+     */
+    private void breakIfExpired(File lease) throws IOException {
+        if (!isExpired(lease)) {
+            return;
+        }
+        final File tombstone = new File(directory, lease.getName() + "." + owner.replace(':', '_') + ".expired");
+        if (lease.renameTo(tombstone)) {
+            if (isExpired(tombstone)) {
+                LOG.warn("Broke the expired lease of " + readOwner(tombstone) + " on " + filename);
+            } else {
+                // the owner renewed the lease in the meantime, give it back:
+                try {
+                    Files.createLink(lease.toPath(), tombstone.toPath());
+                } catch (FileAlreadyExistsException e) {
+                    LOG.warn("Lease on " + filename + " was renewed by " + readOwner(tombstone) +
+                            " while being broken, and taken by another process.");
+                }
+            }
+            tombstone.delete();
+        }
+    }
+
+    private boolean hasLiveReaders() throws IOException {
+        final String prefix = filename + ".shared.";
+        final File[] readers = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(prefix) && !file.getName().endsWith(".tmp");
+            }
+        });
+        boolean live = false;
+        if (readers != null) {
+            for (File reader : readers) {
+                if (isExpired(reader)) {
+                    // no reader can be admitted while we hold the exclusive lease:
+                    LOG.warn("Removing the expired shared lease of " + readOwner(reader) + " on " + filename);
+                    reader.delete();
+                } else if (reader.exists()) {
+                    live = true;
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Extend the expiry of a lease held by this request. The lease is renewed in place, through a private hard link
+     * to the lease file, rather than replaced: a lease that was broken, and created again by another process, is
+     * never overwritten. A process breaking the lease concurrently sees the new expiry and gives the lease back
+     * (see breakIfExpired()).
+     *
+     * @return True when the lease was renewed, false when the lease file no longer is the one this request created.
+     */
+    private boolean renew(File lease) throws IOException {
+        final File link = new File(directory, filename + "." + owner.replace(':', '_') + ".renew");
+        Files.deleteIfExists(link.toPath());
+        try {
+            Files.createLink(link.toPath(), lease.toPath());
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        try {
+            if (!owner.equals(readOwner(link))) {
+                return false;
+            }
+            final byte[] content = leaseContent().getBytes();
+            final RandomAccessFile output = new RandomAccessFile(link, "rw");
+            try {
+                // overwritten rather than truncated, so that readers never see an empty lease:
+                output.write(content);
+                output.setLength(content.length);
+            } finally {
+                output.close();
+            }
+            // the lease may have been broken and taken by another process while it was renewed:
+            try {
+                return Files.isSameFile(lease.toPath(), link.toPath());
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+        } finally {
+            link.delete();
+        }
+    }
+
+    /**
+     * Write a lease atomically: the content is written to a temporary file renamed to the lease name.
+     */
+    private void writeLease(File lease) throws IOException {
+        final File temp = tempFile();
+        FileUtils.writeStringToFile(temp, leaseContent());
+        Files.move(temp.toPath(), lease.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the owner of the lease and the time at which it expires unless renewed.
+     */
+    private String leaseContent() {
+        return owner + "\t" + (System.currentTimeMillis() + LEASE_DURATION);
+    }
+
+    private File tempFile() {
+        return new File(directory, filename + "." + owner.replace(':', '_') + ".tmp");
+    }
+
+    private static String readOwner(File lease) {
+        final String[] content = readLease(lease);
+        return content == null ? null : content[0];
+    }
+
+    /**
+     * @return True when the lease exists and was not renewed in time.
+     */
+    private static boolean isExpired(File lease) {
+        final String[] content = readLease(lease);
+        if (content == null) {
+            return false;
+        }
+        try {
+            return Long.parseLong(content[1]) < System.currentTimeMillis();
+        } catch (NumberFormatException e) {
+            // not written by this class, fall back to the modification time:
+            return lease.lastModified() + LEASE_DURATION < System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return the owner and expiry of a lease, or null when the lease does not exist.
+     */
+    private static String[] readLease(File lease) {
+        try {
+            final String[] content = FileUtils.readFileToString(lease).trim().split("\t");
+            return content.length == 2 ? content : new String[]{content[0], ""};
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private int sleep(int backoff) throws InterruptedIOException {
+        try {
+            // full jitter, so that processes waiting for the same lease spread their attempts:
+            Thread.sleep(1 + random.nextInt(backoff));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the lease on " + filename);
+        }
+        return Math.min(backoff * 2, MAX_BACKOFF);
+    }
+
+    private static String processName() {
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + ManagementFactory.getRuntimeMXBean().getName();
+        } catch (IOException e) {
+            return ManagementFactory.getRuntimeMXBean().getName();
+        }
+    }
+
+    /**
+     * Extends the expiry of a lease held by this request. A lease that was lost is reported to the holder when it
+     * releases the lock.
+     */
+    private class Renewal extends TimerTask {
+        private final File lease;
+        private boolean stopped;
+        private boolean lost;
+
+        Renewal(File lease) {
+            this.lease = lease;
+        }
+
+        // synchronized on the renewal rather than on the request, which is busy while a writer waits for readers:
+        @Override
+        public synchronized void run() {
+            if (stopped) {
+                return;
+            }
+            try {
+                if (!renew(lease)) {
+                    lost = true;
+                    LOG.error("Lost the lease on " + filename + ", now held by " + readOwner(lease));
+                    cancel();
+                }
+            } catch (IOException e) {
+                LOG.warn("Unable to renew the lease on " + filename, e);
+            }
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            cancel();
+        }
+
+        synchronized boolean isLost() {
+            return lost;
+        }
+    }
+}
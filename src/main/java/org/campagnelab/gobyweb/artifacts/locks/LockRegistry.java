@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.locks;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Process-wide registry of the locks on repository files. All the objects of a JVM that lock the same file (for
+ * instance several ArtifactRepo instances on the same repository) share one entry, keyed by the canonical path of
+ * the file. The entry holds a single OS-level lock, acquired when the first thread locks the file and released when
+ * the last thread unlocks it, and coordinates the threads of the JVM with a read/write lock. Threads of the same
+ * JVM therefore wait for each other in memory, and never trigger OverlappingFileLockException.
+ */
+public class LockRegistry {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(LockRegistry.class);
+    private static final ConcurrentMap<String, Entry> ENTRIES = new ConcurrentHashMap<String, Entry>();
+    private static final long REPORTED_WAIT = 1000;
+
+    private LockRegistry() {
+    }
+
+    /**
+     * Return the entry of a lock file.
+     *
+     * @param directory directory that holds the lock file.
+     * @param filename  name of the lock file.
+     * @param type      the lock implementation, used when the file is locked for the first time in this JVM.
+     * @return the entry shared by every caller that locks the same file.
+     */
+    public static Entry get(File directory, String filename, LockType type) {
+        String path;
+        try {
+            path = new File(directory.getCanonicalFile(), filename).getPath();
+        } catch (IOException e) {
+            path = new File(directory.getAbsoluteFile(), filename).getPath();
+        }
+        Entry entry = ENTRIES.get(path);
+        if (entry == null) {
+            final Entry created = new Entry(directory, filename, type);
+            entry = ENTRIES.putIfAbsent(path, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        if (entry.type != type) {
+            LOG.warn(String.format("Lock %s is already used with %s locks in this JVM, ignoring %s.", path,
+                    entry.type, type));
+        }
+        return entry;
+    }
+
+    /**
+     * Release the OS-level locks held by the JVM, whatever the threads that hold them. Called when the JVM shuts
+     * down, so that lease locks do not remain granted until they expire. Threads that later unlock an entry
+     * released this way do not release the file lock again.
+     */
+    public static void releaseAll() {
+        for (Entry entry : ENTRIES.values()) {
+            entry.releaseAll();
+        }
+    }
+
+    /**
+     * A lock file shared by the threads of the JVM. Each thread may lock the entry several times, in shared or
+     * exclusive mode; every call to lock must be matched by a call to unlock from the same thread.
+     */
+    public static class Entry {
+        private final File directory;
+        private final String filename;
+        private final LockType type;
+        private final ReentrantReadWriteLock threads = new ReentrantReadWriteLock();
+        private final ThreadLocal<Hold> holds = new ThreadLocal<Hold>() {
+            @Override
+            protected Hold initialValue() {
+                return new Hold();
+            }
+        };
+        private ExclusiveLockRequest request;
+        private int holdingThreads;
+
+        private Entry(File directory, String filename, LockType type) {
+            this.directory = directory;
+            this.filename = filename;
+            this.type = type;
+        }
+
+        /**
+         * Lock the file in exclusive mode. When the current thread holds the entry in shared mode, its lock is
+         * upgraded and remains exclusive until the thread fully releases it. The upgrade releases the shared lock
+         * before waiting for the exclusive lock, so other threads and processes may write in between.
+         *
+         * @throws IOException
+         */
+        public void lock() throws IOException {
+            final Hold hold = holds.get();
+            if (hold.count > 0) {
+                if (!hold.exclusive) {
+                    upgrade(hold);
+                }
+                hold.count++;
+                return;
+            }
+            acquire(threads.writeLock(), "exclusive");
+            try {
+                acquireFileLock(false);
+            } catch (IOException e) {
+                threads.writeLock().unlock();
+                throw e;
+            }
+            hold.exclusive = true;
+            hold.count = 1;
+        }
+
+        /**
+         * Lock the file in shared mode. When the current thread already holds the entry, in either mode, the hold
+         * count is simply incremented.
+         *
+         * @throws IOException
+         */
+        public void lockShared() throws IOException {
+            final Hold hold = holds.get();
+            if (hold.count > 0) {
+                hold.count++;
+                return;
+            }
+            acquire(threads.readLock(), "shared");
+            try {
+                acquireFileLock(true);
+            } catch (IOException e) {
+                threads.readLock().unlock();
+                throw e;
+            }
+            hold.exclusive = false;
+            hold.count = 1;
+        }
+
+        public void unlock() throws IOException {
+            final Hold hold = holds.get();
+            if (hold.count == 0) {
+                throw new IllegalMonitorStateException("Lock " + filename + " is not held by the current thread.");
+            }
+            if (--hold.count > 0) {
+                return;
+            }
+            holds.remove();
+            try {
+                releaseFileLock();
+            } finally {
+                if (hold.exclusive) {
+                    threads.writeLock().unlock();
+                } else {
+                    threads.readLock().unlock();
+                }
+            }
+        }
+
+        /**
+         * @return True when the current thread holds the entry.
+         */
+        public boolean isHeldByCurrentThread() {
+            return holds.get().count > 0;
+        }
+
+        /**
+         * @return the locked file, when the lock implementation locks a file that callers can read.
+         */
+        public synchronized RandomAccessFile getLockedFile() {
+            return request == null ? null : request.getLockedFile();
+        }
+
+        private void upgrade(Hold hold) throws IOException {
+            LOG.debug("upgrade lock " + filename + " in " + directory.getName());
+            // read locks cannot be upgraded in place: other threads may take the lock in between.
+            // the nested shared holds of the thread become exclusive holds, released by the same unlock calls:
+            final int saved = hold.count;
+            releaseFileLock();
+            threads.readLock().unlock();
+            hold.count = 0;
+            acquire(threads.writeLock(), "exclusive");
+            try {
+                acquireFileLock(false);
+            } catch (IOException e) {
+                threads.writeLock().unlock();
+                holds.remove();
+                throw e;
+            }
+            hold.exclusive = true;
+            hold.count = saved;
+        }
+
+        /**
+         * Acquire the in-JVM lock, and report waits for other threads of this JVM.
+         */
+        private void acquire(java.util.concurrent.locks.Lock lock, String mode) throws IOException {
+            if (lock.tryLock()) {
+                return;
+            }
+            LOG.debug(String.format("waiting for another thread to release lock %s in %s", filename,
+                    directory.getName()));
+            final long start = System.currentTimeMillis();
+            try {
+                lock.lockInterruptibly();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for lock " + filename);
+            }
+            final long waited = System.currentTimeMillis() - start;
+            if (waited > REPORTED_WAIT) {
+                LOG.info(String.format("Waited %d ms for other threads to release %s lock %s in %s", waited, mode,
+                        filename, directory.getName()));
+            }
+        }
+
+        /**
+         * Acquire the OS-level lock for the current thread, which holds the in-JVM lock. Only the first thread
+         * acquires the file lock: other threads hold the entry in shared mode, so the file lock is only shared
+         * when the current thread wants it exclusive after an upgrade.
+         */
+        private synchronized void acquireFileLock(boolean shared) throws IOException {
+            if (holdingThreads > 0 && request != null) {
+                if (!shared && request.isShared()) {
+                    request.release();
+                    waitAndLock(false);
+                }
+                holdingThreads++;
+                return;
+            }
+            if (type != LockType.NONE && !directory.exists()) {
+                directory.mkdirs();
+            }
+            LOG.debug((shared ? "shared lock " : "lock ") + filename + " in " + directory.getName());
+            request = type.newRequest(filename, directory);
+            try {
+                waitAndLock(shared);
+            } catch (IOException e) {
+                // release what the request opened, since no thread will unlock it:
+                try {
+                    request.release();
+                } finally {
+                    request = null;
+                }
+                throw e;
+            }
+            holdingThreads++;
+        }
+
+        private synchronized void releaseFileLock() throws IOException {
+            if (--holdingThreads > 0 || request == null) {
+                return;
+            }
+            LOG.debug("unlock " + filename + " in " + directory.getName());
+            try {
+                request.release();
+            } finally {
+                request = null;
+            }
+        }
+
+        private synchronized void releaseAll() {
+            if (request == null) {
+                return;
+            }
+            LOG.debug("release " + filename + " in " + directory.getName() + " at shutdown");
+            try {
+                request.release();
+            } catch (IOException e) {
+                LOG.warn("Unable to release lock " + filename + " in " + directory.getName(), e);
+            } finally {
+                request = null;
+            }
+        }
+
+        private void waitAndLock(boolean shared) throws IOException {
+            long waited = 0;
+            boolean done = false;
+            do {
+                request.waitAndLock(shared);
+                waited += request.getWaitTime();
+                if (request.granted()) {
+                    done = true;
+                } else {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for lock " + filename);
+                    }
+                    waited += 500;
+                }
+            } while (!done);
+            if (waited > REPORTED_WAIT) {
+                LOG.info(String.format("Waited %d ms for other processes to release %s lock %s in %s", waited,
+                        shared ? "shared" : "exclusive", filename, directory.getName()));
+            }
+        }
+    }
+
+    /**
+     * The holds of one thread on an entry.
+     */
+    private static class Hold {
+        int count;
+        boolean exclusive;
+    }
+}
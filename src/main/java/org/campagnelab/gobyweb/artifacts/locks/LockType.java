@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.locks;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The lock implementations a repository can use. Every process that uses a repository must use the same
+ * implementation, so the choice is recorded in the repository directory (file lock-type).
+ */
+public enum LockType {
+    /**
+     * Locks with FileChannel.lock(), see ExclusiveLockRequestWithFile.
+     */
+    FILE,
+    /**
+     * Lease files, for network file systems where FileChannel locks are unreliable, see LeaseLockRequest.
+     */
+    LEASE,
+    /**
+     * No lock at all, for repositories this process only reads, see NoLockRequest.
+     */
+    NONE;
+
+    private static final String FILENAME = "lock-type";
+
+    public ExclusiveLockRequest newRequest(String filename, File directory) {
+        switch (this) {
+            case LEASE:
+                return new LeaseLockRequest(filename, directory);
+            case NONE:
+                return new NoLockRequest();
+            default:
+                return new ExclusiveLockRequestWithFile(filename, directory);
+        }
+    }
+
+    public static LockType parse(String value) {
+        return valueOf(value.trim().toUpperCase());
+    }
+
+    /**
+     * Read the lock type of a repository. Repositories that did not record a lock type use the lock type
+     * given by the system property artifacts.lock.type, FILE by default.
+     *
+     * @param repoDir the repository directory.
+     * @return the lock type.
+     * @throws IOException
+     */
+    public static LockType of(File repoDir) throws IOException {
+        final File file = new File(repoDir, FILENAME);
+        if (file.exists()) {
+            return parse(FileUtils.readFileToString(file));
+        }
+        return parse(System.getProperty("artifacts.lock.type", "file"));
+    }
+
+    /**
+     * Record the lock type of a repository.
+     *
+     * @param repoDir the repository directory.
+     * @throws IOException
+     */
+    public void writeTo(File repoDir) throws IOException {
+        FileUtils.writeStringToFile(new File(repoDir, FILENAME), name().toLowerCase());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.locks;
+
+import java.io.RandomAccessFile;
+
+/**
+ * A lock request granted immediately, without touching the file system. Used to read repositories that this
+ * process never writes to, such as read-only upstream tiers mounted from a shared file system. Writers publish
+ * metadata by appending CRC-checked journal records and renaming checkpoints, so readers see consistent states
+ * without holding locks.
+ */
+public class NoLockRequest implements ExclusiveLockRequest {
+    private boolean granted;
+    private boolean shared;
+
+    @Override
+    public void query() {
+    }
+
+    @Override
+    public boolean granted() {
+        return granted;
+    }
+
+    @Override
+    public void waitAndLock() {
+        waitAndLock(false);
+    }
+
+    @Override
+    public void waitAndLock(boolean shared) {
+        this.shared = shared;
+        granted = true;
+    }
+
+    @Override
+    public boolean isShared() {
+        return shared;
+    }
+
+    @Override
+    public long getWaitTime() {
+        return 0;
+    }
+
+    @Override
+    public void release() {
+        granted = false;
+    }
+
+    @Override
+    public RandomAccessFile getLockedFile() {
+        return null;
+    }
+}
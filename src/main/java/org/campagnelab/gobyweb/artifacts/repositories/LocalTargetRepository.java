@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.repositories;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.log4j.Logger;
+import org.campagnelab.gobyweb.artifacts.ArtifactRepo;
+import org.campagnelab.gobyweb.artifacts.Artifacts;
+import org.campagnelab.gobyweb.artifacts.store.StoreLock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A replica of repositories in a directory, typically on a shared file system. The replica is itself an artifact
+ * repository: other nodes can use it as an upstream tier (see ArtifactRepo.addUpstreamTier()), or import artifacts
+ * from it. Artifacts are copied incrementally: an artifact already published is not copied again, and the files
+ * copied before an interrupted publication are reused. An artifact installed again in the source repository keeps
+ * its first publication, since nodes may be reading its files from the replica; remove it from the replica to
+ * publish the new installation.
+ */
+public class LocalTargetRepository implements TargetRepository {
+
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(LocalTargetRepository.class);
+
+    private final ArtifactRepo replica;
+    private final int threads;
+    /**
+     * Artifacts are published one at a time, in the order they were installed.
+     */
+    private final ExecutorService publisher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "artifact-publisher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param replicaDir directory of the replica.
+     * @param threads    number of threads that copy the files of an artifact.
+     * @throws IOException
+     */
+    public LocalTargetRepository(File replicaDir, int threads) throws IOException {
+        replicaDir.mkdirs();
+        this.replica = new ArtifactRepo(replicaDir);
+        this.threads = threads;
+        replica.load(false);
+    }
+
+    public ArtifactRepo getReplica() {
+        return replica;
+    }
+
+    @Override
+    public Future<Artifacts.Artifact> publish(ArtifactRepo artifactRepo, final Artifacts.Artifact artifact) {
+        // read from the source repository now, it is not used by the publisher thread:
+        final String installDir = artifactRepo.getInstalledPath(artifact.getPluginId(), artifact.getId(),
+                artifact.getVersion(), ArtifactRepo.convert(artifact.getAttributesList()));
+        final String installScript = artifactRepo.getCachedInstallationScript(artifact.getPluginId(),
+                artifact.getVersion());
+        final StoreLock sourceLock = artifactRepo.artifactLock(artifact);
+        return publisher.submit(new Callable<Artifacts.Artifact>() {
+            @Override
+            public Artifacts.Artifact call() throws IOException {
+                // prevents reinstallations of the artifact in the source repository while it is copied:
+                sourceLock.lockShared();
+                try {
+                    final Artifacts.Artifact published = replica.importArtifact(artifact, new File(installDir),
+                            installScript, threads);
+                    LOG.info("Published artifact " + replica.toTextShort(published));
+                    return published;
+                } catch (IOException e) {
+                    LOG.error("Unable to publish artifact " + replica.toTextShort(artifact), e);
+                    throw e;
+                } finally {
+                    sourceLock.unlock();
+                }
+            }
+        });
+    }
+
+    @Override
+    public int replicate(ArtifactRepo artifactRepo) throws IOException {
+        final List<Future<Artifacts.Artifact>> publications = new ObjectArrayList<Future<Artifacts.Artifact>>();
+        for (Artifacts.Artifact artifact : artifactRepo.getArtifacts()) {
+            if (artifact.getState() == Artifacts.InstallationState.INSTALLED) {
+                publications.add(publish(artifactRepo, artifact));
+            }
+        }
+        int published = 0;
+        for (Future<Artifacts.Artifact> publication : publications) {
+            try {
+                publication.get();
+                published++;
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while replicating repository.", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Unable to replicate repository.", e.getCause());
+            }
+        }
+        return published;
+    }
+
+    @Override
+    public void close() throws IOException {
+        publisher.shutdown();
+        try {
+            while (!publisher.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.info("Waiting for artifacts to be published..");
+            }
+        } catch (InterruptedException e) {
+            publisher.shutdownNow();
+            throw new IOException("Interrupted while publishing artifacts.", e);
+        }
+    }
+}
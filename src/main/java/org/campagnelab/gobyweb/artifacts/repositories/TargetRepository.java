@@ -16,8 +16,44 @@
 
 package org.campagnelab.gobyweb.artifacts.repositories;
 
+import org.campagnelab.gobyweb.artifacts.ArtifactRepo;
+import org.campagnelab.gobyweb.artifacts.Artifacts;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
 /**
+ * A repository that installed artifacts are published to, so that other nodes can use them instead of installing
+ * them again.
+ *
  * Created by mas2182 on 8/18/15.
  */
 public interface TargetRepository extends Repository {
+
+    /**
+     * Publish an installed artifact: its installation directory, the cached install script of its plugin and its
+     * metadata. Publishing happens in the background.
+     *
+     * @param artifactRepo the repository the artifact is installed in.
+     * @param artifact     the artifact, INSTALLED.
+     * @return completes when the artifact is published.
+     */
+    Future<Artifacts.Artifact> publish(ArtifactRepo artifactRepo, Artifacts.Artifact artifact);
+
+    /**
+     * Publish every installed artifact of a repository that the target does not have, or has from another
+     * installation. Waits until the artifacts are published.
+     *
+     * @param artifactRepo the repository to replicate, loaded.
+     * @return the number of installed artifacts of the repository, now present in the target.
+     * @throws IOException
+     */
+    int replicate(ArtifactRepo artifactRepo) throws IOException;
+
+    /**
+     * Wait for the artifacts being published, and release the resources of the target.
+     *
+     * @throws IOException
+     */
+    void close() throws IOException;
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.store;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Behavior shared by the metadata store implementations: locking and background compaction.
+ */
+public abstract class AbstractMetadataStore implements MetadataStore {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(AbstractMetadataStore.class);
+    /**
+     * Runs background compactions. The thread is a daemon, so a compaction still running when the JVM exits is
+     * abandoned. This is safe: compaction writes the new checkpoint to a temporary file that is renamed into place,
+     * and the journal it folded is kept until then, so an abandoned compaction leaves the store as it was, and the
+     * next save schedules it again.
+     */
+    private static final ExecutorService COMPACTION_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "metadata-compaction");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    protected final String name;
+    protected final File directory;
+    protected final MappedMetadataIndex.KeyFunction keyFunction;
+    private final StoreLock lock;
+    private volatile boolean compactionScheduled;
+    private boolean readOnly;
+    protected boolean loaded;
+
+    protected AbstractMetadataStore(File directory, MappedMetadataIndex.KeyFunction keyFunction, StoreLock lock) {
+        this.name = directory.getName();
+        this.directory = directory;
+        this.keyFunction = keyFunction;
+        this.lock = lock;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public StoreLock getLock() {
+        return lock;
+    }
+
+    public void lock() throws IOException {
+        lock.lock();
+    }
+
+    public void lockShared() throws IOException {
+        lock.lockShared();
+    }
+
+    public void unlock() throws IOException {
+        lock.unlock();
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Open the store read-only. A read-only store never writes to its directory, not even to rebuild the files it
+     * derives from the metadata (such as indexes), and fails to commit, compact or delete.
+     *
+     * @param readOnly True to forbid writes.
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * @throws IOException when the store is read-only.
+     */
+    protected void checkWritable() throws IOException {
+        if (readOnly) {
+            throw new IOException("The metadata store of shard " + name + " is read-only: " + directory);
+        }
+    }
+
+    public synchronized void forget() {
+        loaded = false;
+    }
+
+    /**
+     * Compact the store in a background thread, unless a compaction is already scheduled.
+     */
+    protected void scheduleCompaction() {
+        if (compactionScheduled) {
+            return;
+        }
+        compactionScheduled = true;
+        COMPACTION_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    LOG.warn("Background compaction of shard " + name + " failed. Will retry at the next save.", e);
+                } finally {
+                    compactionScheduled = false;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.store;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import org.apache.log4j.Logger;
+import org.campagnelab.gobyweb.artifacts.Artifacts;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded, single-file transactional key-value store for the metadata of a shard (metadata.kv). The file is a log
+ * of commits. Each commit is framed as (length, crc32, payload), where the payload holds the number of changes,
+ * then for each change the UTF-8 key and the serialized artifact (or a negative length for a removal). A commit
+ * torn by a crash fails the CRC check and is dropped as a whole, so that multi-key commits are atomic.
+ * <p/>
+ * The store keeps the location of the latest value of each key in memory: point reads decode a single artifact,
+ * and a point update appends the changed artifacts only. Space used by replaced values is reclaimed by compaction,
+ * which rewrites the live values into a new file of the next generation and atomically replaces the file.
+ * <p/>
+ * File layout: magic, version, generation, then the commits. Generations are seeded from the clock, so that they
+ * keep increasing when the file is deleted and created again.
+ */
+public class KeyValueMetadataStore extends AbstractMetadataStore {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(KeyValueMetadataStore.class);
+    public static final String FILENAME = "metadata.kv";
+    private static final int MAGIC = 0x474B5653;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    /**
+     * Commits larger than this are considered corrupted.
+     */
+    private static final int MAX_COMMIT_SIZE = 256 * 1024 * 1024;
+    /**
+     * Compaction is scheduled when replaced and removed values use more than this many bytes, and more space than
+     * the live values.
+     */
+    private static final long COMPACTION_THRESHOLD = 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Location of a value in the file.
+     */
+    private static class Location {
+        final long offset;
+        final int length;
+
+        Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File file;
+    /**
+     * Location of the latest value of each key, as of the last read of the file.
+     */
+    private final Object2ObjectOpenHashMap<String, Location> locations = new Object2ObjectOpenHashMap<String, Location>();
+    /**
+     * Keys changed since the last refresh, with their new location, or null when removed.
+     */
+    private final Object2ObjectLinkedOpenHashMap<String, Location> unrefreshed = new Object2ObjectLinkedOpenHashMap<String, Location>();
+    /**
+     * True when the file was rewritten since the last refresh.
+     */
+    private boolean rewritten;
+    /**
+     * Generation of the file the locations were read from, -1 when the file did not exist.
+     */
+    private long generation = -1;
+    /**
+     * Highest generation read from the file, kept when the file is deleted.
+     */
+    private long lastGeneration = -1;
+    /**
+     * Offset just after the last valid commit read or written.
+     */
+    private long validLength = HEADER_SIZE;
+    private long liveBytes;
+    private long deadBytes;
+
+    public KeyValueMetadataStore(File directory, MappedMetadataIndex.KeyFunction keyFunction, StoreLock lock) {
+        super(directory, keyFunction, lock);
+        this.file = new File(directory, FILENAME);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Read the changes committed since the last refresh. The store is read from scratch the first time, or when the
+     * file was compacted. Otherwise, only the keys changed by the commits appended since the last refresh are read.
+     */
+    public synchronized boolean refresh(MetadataStore.Listener listener) throws IOException {
+        try {
+            lockShared();
+            catchUp();
+            boolean changed = true;
+            if (!loaded || rewritten) {
+                listener.reset(this);
+                if (!locations.isEmpty()) {
+                    // a single handle for all the values:
+                    final RandomAccessFile input = new RandomAccessFile(file, "r");
+                    try {
+                        for (Object2ObjectMap.Entry<String, Location> entry : locations.object2ObjectEntrySet()) {
+                            listener.apply(put(entry.getKey(), read(input, entry.getValue())));
+                        }
+                    } finally {
+                        input.close();
+                    }
+                }
+            } else if (!unrefreshed.isEmpty()) {
+                final RandomAccessFile input = new RandomAccessFile(file, "r");
+                try {
+                    for (Object2ObjectMap.Entry<String, Location> entry : unrefreshed.object2ObjectEntrySet()) {
+                        if (entry.getValue() == null) {
+                            listener.apply(Artifacts.JournalEntry.newBuilder()
+                                    .setOperation(Artifacts.JournalEntry.Operation.REMOVE)
+                                    .setKey(entry.getKey()).build());
+                        } else {
+                            listener.apply(put(entry.getKey(), read(input, entry.getValue())));
+                        }
+                    }
+                } finally {
+                    input.close();
+                }
+            } else {
+                changed = false;
+            }
+            loaded = true;
+            rewritten = false;
+            unrefreshed.clear();
+            return changed;
+        } finally {
+            unlock();
+        }
+    }
+
+    public synchronized Artifacts.Artifact get(String key) throws IOException {
+        try {
+            lockShared();
+            catchUp();
+            final Location location = locations.get(key);
+            return location == null ? null : read(location);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Append the changes to the file as a single commit. The file is synced before this method returns.
+     */
+    public synchronized void commit(List<Artifacts.JournalEntry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        checkWritable();
+        try {
+            lock();
+            catchUp();
+            if (generation == -1) {
+                writeHeader(file, nextGeneration());
+                catchUp();
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(buffer);
+            data.writeInt(entries.size());
+            for (Artifacts.JournalEntry entry : entries) {
+                final byte[] key = entry.getKey().getBytes(UTF8);
+                data.writeInt(key.length);
+                data.write(key);
+                if (entry.getOperation() == Artifacts.JournalEntry.Operation.PUT) {
+                    final byte[] value = entry.getArtifact().toByteArray();
+                    data.writeInt(value.length);
+                    data.write(value);
+                } else {
+                    data.writeInt(-1);
+                }
+            }
+            data.flush();
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                if (output.length() > validLength) {
+                    LOG.warn(String.format("Truncating torn commit at offset %d in %s", validLength, file));
+                    output.setLength(validLength);
+                }
+                output.seek(validLength);
+                writeCommit(output, buffer.toByteArray());
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+            // read back the commit to record the locations of the new values:
+            catchUp();
+            LOG.debug(String.format("Committed %d changes to shard %s.%n", entries.size(), name));
+            if (deadBytes > COMPACTION_THRESHOLD && deadBytes > liveBytes) {
+                scheduleCompaction();
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Rewrite the live values into a new file and atomically replace the current file with it.
+     */
+    public synchronized void compact() throws IOException {
+        checkWritable();
+        try {
+            lock();
+            catchUp();
+            if (generation == -1 || (deadBytes == 0 && file.length() == validLength)) {
+                return;
+            }
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(buffer);
+            data.writeInt(locations.size());
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                for (Object2ObjectMap.Entry<String, Location> entry : locations.object2ObjectEntrySet()) {
+                    final byte[] key = entry.getKey().getBytes(UTF8);
+                    final byte[] value = new byte[entry.getValue().length];
+                    input.seek(entry.getValue().offset);
+                    input.readFully(value);
+                    data.writeInt(key.length);
+                    data.write(key);
+                    data.writeInt(value.length);
+                    data.write(value);
+                }
+            } finally {
+                input.close();
+            }
+            data.flush();
+            final long reclaimed = deadBytes;
+            File tmp = new File(file.getPath() + ".tmp");
+            RandomAccessFile output = new RandomAccessFile(tmp, "rw");
+            try {
+                output.setLength(0);
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(nextGeneration());
+                writeCommit(output, buffer.toByteArray());
+                output.getFD().sync();
+            } finally {
+                output.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            catchUp();
+            LOG.debug(String.format("Compacted shard %s, reclaimed %d bytes.%n", name, reclaimed));
+        } finally {
+            unlock();
+        }
+    }
+
+    public synchronized void delete() throws IOException {
+        checkWritable();
+        forget();
+        file.delete();
+        locations.clear();
+        unrefreshed.clear();
+        generation = -1;
+        validLength = HEADER_SIZE;
+        liveBytes = 0;
+        deadBytes = 0;
+    }
+
+    /**
+     * Bring the locations up to date with the file: read the commits appended since the file was last read, or
+     * the entire file when it was rewritten by a compaction.
+     *
+     * @throws IOException
+     */
+    private void catchUp() throws IOException {
+        final long fileGeneration = readGeneration();
+        if (fileGeneration != generation) {
+            locations.clear();
+            unrefreshed.clear();
+            rewritten = true;
+            generation = fileGeneration;
+            lastGeneration = Math.max(lastGeneration, generation);
+            validLength = HEADER_SIZE;
+            liveBytes = 0;
+            deadBytes = 0;
+        }
+        if (generation != -1 && file.length() > validLength) {
+            scan();
+        }
+    }
+
+    private void scan() throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            long offset = validLength;
+            final long length = input.length();
+            input.seek(offset);
+            final CRC32 crc = new CRC32();
+            while (offset + 8 <= length) {
+                final int size = input.readInt();
+                final int checksum = input.readInt();
+                if (size < 4 || size > MAX_COMMIT_SIZE || offset + 8 + size > length) {
+                    LOG.warn(String.format("Truncated commit at offset %d in %s, ignoring the tail of the file.",
+                            offset, file));
+                    break;
+                }
+                byte[] bytes = new byte[size];
+                input.readFully(bytes);
+                crc.reset();
+                crc.update(bytes, 0, size);
+                if ((int) crc.getValue() != checksum) {
+                    LOG.warn(String.format("Commit at offset %d failed CRC check in %s, ignoring the tail of the file.",
+                            offset, file));
+                    break;
+                }
+                final ByteBuffer payload = ByteBuffer.wrap(bytes);
+                final int count = payload.getInt();
+                for (int i = 0; i < count; i++) {
+                    final byte[] key = new byte[payload.getInt()];
+                    payload.get(key);
+                    final int valueLength = payload.getInt();
+                    Location location = null;
+                    if (valueLength >= 0) {
+                        location = new Location(offset + 8 + payload.position(), valueLength);
+                        payload.position(payload.position() + valueLength);
+                    }
+                    record(new String(key, UTF8), location);
+                }
+                offset += 8 + size;
+            }
+            validLength = offset;
+        } finally {
+            input.close();
+        }
+    }
+
+    private void record(String key, Location location) {
+        final Location previous = location == null ? locations.remove(key) : locations.put(key, location);
+        if (previous != null) {
+            liveBytes -= previous.length;
+            deadBytes += previous.length;
+        }
+        if (location != null) {
+            liveBytes += location.length;
+        }
+        unrefreshed.put(key, location);
+    }
+
+    private Artifacts.Artifact read(Location location) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            return read(input, location);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static Artifacts.Artifact read(RandomAccessFile input, Location location) throws IOException {
+        byte[] bytes = new byte[location.length];
+        input.seek(location.offset);
+        input.readFully(bytes);
+        return Artifacts.Artifact.parseFrom(bytes);
+    }
+
+    private Artifacts.JournalEntry put(String key, Artifacts.Artifact artifact) {
+        return Artifacts.JournalEntry.newBuilder()
+                .setOperation(Artifacts.JournalEntry.Operation.PUT)
+                .setKey(key)
+                .setArtifact(artifact).build();
+    }
+
+    /**
+     * A process that read a file deleted since then must see a different generation in the file created next,
+     * otherwise it would keep the offsets of the values it read from the deleted file. The clock is used since the
+     * generation of the deleted file may not be known.
+     *
+     * @return the generation of a new or compacted file.
+     */
+    private long nextGeneration() {
+        return Math.max(System.currentTimeMillis(), lastGeneration + 1);
+    }
+
+    /**
+     * Read the generation recorded in the file header.
+     *
+     * @return the generation, or -1 when the file is missing or its header is not valid.
+     * @throws IOException
+     */
+    private long readGeneration() throws IOException {
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return -1;
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                LOG.warn("Header is not valid, ignoring " + file);
+                return -1;
+            }
+            return input.readLong();
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void writeHeader(File file, long generation) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(generation);
+        } finally {
+            output.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeCommit(RandomAccessFile output, byte[] payload) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 8);
+        DataOutputStream data = new DataOutputStream(frame);
+        data.writeInt(payload.length);
+        data.writeInt((int) crc.getValue());
+        data.write(payload);
+        data.flush();
+        output.write(frame.toByteArray());
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.store;
+
+import com.google.protobuf.CodedInputStream;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.log4j.Logger;
+import org.campagnelab.gobyweb.artifacts.Artifacts;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A memory-mapped index over the artifacts stored in the metadata.pb checkpoint. The index maps artifact keys to
+ * the offset and length of each artifact record inside the checkpoint, so that an artifact can be decoded without
+ * parsing the rest of the repository. The checkpoint remains the source of truth: the index records the size and
+ * modification time of the checkpoint it was built for and is ignored when they no longer match.
+ * <p/>
+ * Index layout: magic, version, checkpoint length, checkpoint modification time, number of entries, then the entries
+ * sorted by key (key offset, key length, record offset, record length), then the UTF-8 bytes of the keys.
+ */
+public class MappedMetadataIndex {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(MappedMetadataIndex.class);
+    private static final int MAGIC = 0x474D4958;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+    private static final int ENTRY_SIZE = 4 + 4 + 8 + 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /**
+     * Tag of the artifacts field (field 1, length delimited) in the Repository message.
+     */
+    private static final int ARTIFACTS_TAG = (1 << 3) | 2;
+
+    /**
+     * Calculates the key of an artifact in the repository index.
+     */
+    public interface KeyFunction {
+        String key(Artifacts.Artifact artifact);
+    }
+
+    private final MappedByteBuffer indexBuffer;
+    private final MappedByteBuffer checkpointBuffer;
+    private final int count;
+    private final int keysOffset;
+
+    private MappedMetadataIndex(MappedByteBuffer indexBuffer, MappedByteBuffer checkpointBuffer) {
+        this.indexBuffer = indexBuffer;
+        this.checkpointBuffer = checkpointBuffer;
+        this.count = indexBuffer.getInt(HEADER_SIZE - 4);
+        this.keysOffset = HEADER_SIZE + count * ENTRY_SIZE;
+    }
+
+    /**
+     * Open the index of a checkpoint.
+     *
+     * @param indexFile      the index file.
+     * @param checkpointFile the checkpoint the index was built for.
+     * @return the index, or null when the index is missing or was built for another version of the checkpoint.
+     * @throws IOException
+     */
+    public static MappedMetadataIndex open(File indexFile, File checkpointFile) throws IOException {
+        if (!indexFile.exists() || indexFile.length() < HEADER_SIZE || !checkpointFile.exists()) {
+            return null;
+        }
+        MappedByteBuffer indexBuffer = map(indexFile);
+        if (indexBuffer.getInt(0) != MAGIC || indexBuffer.getInt(4) != VERSION ||
+                indexBuffer.getLong(8) != checkpointFile.length() ||
+                indexBuffer.getLong(16) != checkpointFile.lastModified()) {
+            LOG.debug("Metadata index is stale, ignoring " + indexFile);
+            return null;
+        }
+        return new MappedMetadataIndex(indexBuffer, map(checkpointFile));
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            return input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        } finally {
+            // the mapping remains valid after the channel is closed:
+            input.close();
+        }
+    }
+
+    /**
+     * @return the number of artifacts in the index.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Find and decode the artifact stored under a key.
+     *
+     * @param key key of the artifact.
+     * @return the artifact, or null if the checkpoint has no artifact with this key.
+     * @throws IOException
+     */
+    public Artifacts.Artifact get(String key) throws IOException {
+        final byte[] keyBytes = key.getBytes(UTF8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int entry = HEADER_SIZE + middle * ENTRY_SIZE;
+            final int comparison = compareKey(indexBuffer.getInt(entry), indexBuffer.getInt(entry + 4), keyBytes);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                final long recordOffset = indexBuffer.getLong(entry + 8);
+                final byte[] record = new byte[indexBuffer.getInt(entry + 16)];
+                ByteBuffer view = checkpointBuffer.duplicate();
+                view.position((int) recordOffset);
+                view.get(record);
+                return Artifacts.Artifact.parseFrom(record);
+            }
+        }
+        return null;
+    }
+
+    private int compareKey(int keyOffset, int keyLength, byte[] key) {
+        final int start = keysOffset + keyOffset;
+        final int length = Math.min(keyLength, key.length);
+        for (int i = 0; i < length; i++) {
+            final int difference = (indexBuffer.get(start + i) & 0xFF) - (key[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return keyLength - key.length;
+    }
+
+    /**
+     * Build the index of a checkpoint. The index is written to a temporary file and atomically renamed.
+     *
+     * @param checkpointFile the checkpoint to index.
+     * @param indexFile      the index file to write.
+     * @param keyFunction    calculates the key of each artifact.
+     * @throws IOException
+     */
+    public static void build(File checkpointFile, File indexFile, KeyFunction keyFunction) throws IOException {
+        List<Entry> entries = new ObjectArrayList<Entry>();
+        final long checkpointLength = checkpointFile.length();
+        final long checkpointModified = checkpointFile.lastModified();
+        if (checkpointLength > 0) {
+            InputStream input = new BufferedInputStream(new FileInputStream(checkpointFile));
+            try {
+                CodedInputStream coded = CodedInputStream.newInstance(input);
+                coded.setSizeLimit(Integer.MAX_VALUE);
+                // the checkpoint is a single delimited Repository message:
+                final int repositorySize = coded.readRawVarint32();
+                final int end = coded.getTotalBytesRead() + repositorySize;
+                while (coded.getTotalBytesRead() < end) {
+                    final int tag = coded.readTag();
+                    if (tag == ARTIFACTS_TAG) {
+                        final int length = coded.readRawVarint32();
+                        final long offset = coded.getTotalBytesRead();
+                        final Artifacts.Artifact artifact = Artifacts.Artifact.parseFrom(coded.readRawBytes(length));
+                        entries.add(new Entry(keyFunction.key(artifact).getBytes(UTF8), offset, length));
+                    } else if (!coded.skipField(tag)) {
+                        break;
+                    }
+                }
+            } finally {
+                input.close();
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry entry1, Entry entry2) {
+                final int length = Math.min(entry1.key.length, entry2.key.length);
+                for (int i = 0; i < length; i++) {
+                    final int difference = (entry1.key[i] & 0xFF) - (entry2.key[i] & 0xFF);
+                    if (difference != 0) {
+                        return difference;
+                    }
+                }
+                return entry1.key.length - entry2.key.length;
+            }
+        });
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(checkpointLength);
+            output.writeLong(checkpointModified);
+            output.writeInt(entries.size());
+            int keyOffset = 0;
+            for (Entry entry : entries) {
+                output.writeInt(keyOffset);
+                output.writeInt(entry.key.length);
+                output.writeLong(entry.recordOffset);
+                output.writeInt(entry.recordLength);
+                keyOffset += entry.key.length;
+            }
+            for (Entry entry : entries) {
+                output.write(entry.key);
+            }
+        } finally {
+            output.close();
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.debug(String.format("Indexed %d artifacts in %s", entries.size(), indexFile));
+    }
+
+    private static class Entry {
+        final byte[] key;
+        final long recordOffset;
+        final int recordLength;
+
+        Entry(byte[] key, long recordOffset, int recordLength) {
+            this.key = key;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+        }
+    }
+}
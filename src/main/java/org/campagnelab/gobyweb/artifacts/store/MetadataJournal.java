@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.store;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.log4j.Logger;
+import org.campagnelab.gobyweb.artifacts.Artifacts;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of artifact mutations. The journal complements the metadata.pb checkpoint: each save appends
+ * one record per changed artifact instead of rewriting the whole repository. The journal starts with a header that
+ * holds the generation of the checkpoint it applies to. Each record is framed as (length, crc32, JournalEntry bytes),
+ * so that a record torn by a crash is detected and dropped on replay, without losing the records written before it.
+ * Callers must hold the repository lock when calling any of the methods of this class.
+ */
+public class MetadataJournal {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(MetadataJournal.class);
+    private static final int MAGIC = 0x474A524E;
+    /**
+     * Size of the header: magic and checkpoint generation.
+     */
+    public static final int HEADER_SIZE = 4 + 8;
+    /**
+     * Records larger than this are considered corrupted.
+     */
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    private final File file;
+    /**
+     * Generation of the checkpoint that this journal applies to.
+     */
+    private long generation;
+    /**
+     * Offset just after the last valid record read or written.
+     */
+    private long validLength = HEADER_SIZE;
+    /**
+     * Number of valid records in the journal.
+     */
+    private int recordCount;
+
+    public MetadataJournal(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the offset just after the last valid record read or written.
+     */
+    public long getValidLength() {
+        return validLength;
+    }
+
+    /**
+     * @return the number of valid records in the journal, as of the last replay or append.
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Read the journal header. A missing or unreadable header denotes an empty journal of generation zero.
+     *
+     * @return the generation recorded in the journal header.
+     * @throws IOException
+     */
+    public synchronized long readGeneration() throws IOException {
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return 0;
+        }
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (input.readInt() != MAGIC) {
+                LOG.warn("Journal header is not valid, ignoring journal " + file);
+                return 0;
+            }
+            return input.readLong();
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Replay the journal, starting at the given offset.
+     *
+     * @param fromOffset offset of the first record to read, or zero to read the entire journal.
+     * @return the list of valid entries found after the offset, in the order they were written.
+     * @throws IOException
+     */
+    public synchronized List<Artifacts.JournalEntry> replay(long fromOffset) throws IOException {
+        ObjectArrayList<Artifacts.JournalEntry> entries = new ObjectArrayList<Artifacts.JournalEntry>();
+        generation = readGeneration();
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            validLength = HEADER_SIZE;
+            recordCount = 0;
+            return entries;
+        }
+        if (fromOffset < HEADER_SIZE) {
+            fromOffset = HEADER_SIZE;
+            recordCount = 0;
+        }
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            long offset = fromOffset;
+            final long length = input.length();
+            input.seek(offset);
+            final CRC32 crc = new CRC32();
+            while (offset + 8 <= length) {
+                final int size = input.readInt();
+                final int checksum = input.readInt();
+                if (size < 0 || size > MAX_RECORD_SIZE || offset + 8 + size > length) {
+                    LOG.warn(String.format("Truncated journal record at offset %d in %s, ignoring the tail of the journal.",
+                            offset, file));
+                    break;
+                }
+                byte[] bytes = new byte[size];
+                input.readFully(bytes);
+                crc.reset();
+                crc.update(bytes, 0, size);
+                if ((int) crc.getValue() != checksum) {
+                    LOG.warn(String.format("Journal record at offset %d failed CRC check in %s, ignoring the tail of the journal.",
+                            offset, file));
+                    break;
+                }
+                entries.add(Artifacts.JournalEntry.parseFrom(bytes));
+                offset += 8 + size;
+                recordCount++;
+            }
+            validLength = offset;
+        } finally {
+            input.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Append entries at the end of the journal. A torn record left behind by a previous crash is truncated before
+     * the new entries are written. The entries are synced to disk before the method returns.
+     *
+     * @param entries the entries to append.
+     * @throws IOException
+     */
+    public synchronized void append(List<Artifacts.JournalEntry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            reset(generation);
+        } else if (file.length() != validLength || readGeneration() != generation) {
+            // another process appended or compacted since we last looked, find the end of the valid records:
+            replay(0);
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(buffer);
+        final CRC32 crc = new CRC32();
+        for (Artifacts.JournalEntry entry : entries) {
+            final byte[] bytes = entry.toByteArray();
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            data.writeInt(bytes.length);
+            data.writeInt((int) crc.getValue());
+            data.write(bytes);
+        }
+        data.flush();
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            if (output.length() > validLength) {
+                LOG.warn(String.format("Truncating torn journal record at offset %d in %s", validLength, file));
+                output.setLength(validLength);
+            }
+            output.seek(validLength);
+            output.write(buffer.toByteArray());
+            output.getFD().sync();
+            validLength += buffer.size();
+            recordCount += entries.size();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Start a new, empty journal for the given checkpoint generation. The new journal atomically replaces the
+     * previous one.
+     *
+     * @param newGeneration generation of the checkpoint the new journal applies to.
+     * @throws IOException
+     */
+    public synchronized void reset(long newGeneration) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        final FileOutputStream stream = new FileOutputStream(tmp);
+        DataOutputStream output = new DataOutputStream(stream);
+        try {
+            output.writeInt(MAGIC);
+            output.writeLong(newGeneration);
+            output.flush();
+            stream.getFD().sync();
+        } finally {
+            output.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        generation = newGeneration;
+        validLength = HEADER_SIZE;
+        recordCount = 0;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.store;
+
+import org.campagnelab.gobyweb.artifacts.Artifacts;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Persistent storage for the metadata of the artifacts of one plugin shard. Artifacts are stored under the key
+ * calculated by the repository. See MetadataStores for the available implementations.
+ */
+public interface MetadataStore {
+
+    /**
+     * Receives the changes found when a store is refreshed.
+     */
+    interface Listener {
+        /**
+         * Called before the store is read from scratch: forget every artifact previously read from the store.
+         *
+         * @param store the store being read.
+         */
+        void reset(MetadataStore store);
+
+        /**
+         * Called for each artifact stored or removed in the store.
+         *
+         * @param entry the change.
+         */
+        void apply(Artifacts.JournalEntry entry);
+    }
+
+    /**
+     * @return the name of the shard this store holds.
+     */
+    String getName();
+
+    /**
+     * @return the lock that protects the directory of this store.
+     */
+    StoreLock getLock();
+
+    /**
+     * Acquire the exclusive lock of this store. The lock is re-entrant: each call must be matched by a call to
+     * unlock().
+     *
+     * @throws IOException
+     */
+    void lock() throws IOException;
+
+    /**
+     * Acquire the lock of this store in shared mode, which only excludes writers. Each call must be matched by a
+     * call to unlock().
+     *
+     * @throws IOException
+     */
+    void lockShared() throws IOException;
+
+    void unlock() throws IOException;
+
+    /**
+     * @return True when the store was refreshed at least once.
+     */
+    boolean isLoaded();
+
+    /**
+     * Forget what was read from the store, so that the next refresh reads the store from scratch and the next
+     * point read sees the current content of the store.
+     */
+    void forget();
+
+    /**
+     * Read the changes made to the store since the last refresh. The store is read from scratch the first time.
+     *
+     * @param listener receives the changes.
+     * @return True when the store changed since the last refresh.
+     * @throws IOException
+     */
+    boolean refresh(Listener listener) throws IOException;
+
+    /**
+     * Read a single artifact, without reading the rest of the store.
+     *
+     * @param key key of the artifact.
+     * @return the artifact, or null when no artifact is stored under the key.
+     * @throws IOException
+     */
+    Artifacts.Artifact get(String key) throws IOException;
+
+    /**
+     * Write changes to the store.
+     *
+     * @param entries the changes to write, at most one per key.
+     * @throws IOException
+     */
+    void commit(List<Artifacts.JournalEntry> entries) throws IOException;
+
+    /**
+     * Reclaim the space used by artifacts that were replaced or removed.
+     *
+     * @throws IOException
+     */
+    void compact() throws IOException;
+
+    /**
+     * Delete the files of the store. The lock file is kept.
+     *
+     * @throws IOException
+     */
+    void delete() throws IOException;
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.store;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.log4j.Logger;
+import org.campagnelab.gobyweb.artifacts.Artifacts;
+import org.campagnelab.gobyweb.artifacts.locks.LockType;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Creates the metadata store of each shard, and converts shards from one store implementation to another.
+ */
+public class MetadataStores {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(MetadataStores.class);
+
+    /**
+     * The available metadata store implementations.
+     */
+    public enum Backend {
+        /**
+         * Delimited protobuf checkpoint and journal, see ProtobufMetadataStore.
+         */
+        PROTOBUF,
+        /**
+         * Single-file transactional key-value store, see KeyValueMetadataStore.
+         */
+        KEY_VALUE;
+
+        /**
+         * Parse a backend name, as written on the command line (protobuf or key-value).
+         *
+         * @param name name of the backend, case insensitive.
+         * @return the backend.
+         */
+        public static Backend parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /**
+     * Convert a plugin id to the name of the directory that holds its shard.
+     *
+     * @param pluginId id of the plugin.
+     * @return a name safe to use as a directory name.
+     */
+    public static String shardName(String pluginId) {
+        return pluginId.replaceAll("[^A-Za-z0-9_.\\-]", "_");
+    }
+
+    /**
+     * Open the store of a shard. Existing shards are opened with the implementation that wrote them.
+     *
+     * @param directory      directory of the shard.
+     * @param keyFunction    calculates the keys of artifacts.
+     * @param defaultBackend implementation to use when the shard does not exist yet.
+     * @return the store.
+     */
+    public static MetadataStore open(File directory, MappedMetadataIndex.KeyFunction keyFunction, Backend defaultBackend) {
+        return open(directory, keyFunction, defaultBackend, LockType.FILE);
+    }
+
+    /**
+     * Open the store of a shard, locked with a given lock implementation.
+     *
+     * @param directory      directory of the shard.
+     * @param keyFunction    calculates the keys of artifacts.
+     * @param defaultBackend implementation to use when the shard does not exist yet.
+     * @param lockType       the lock implementation used by the repository.
+     * @return the store.
+     */
+    public static MetadataStore open(File directory, MappedMetadataIndex.KeyFunction keyFunction, Backend defaultBackend,
+                                     LockType lockType) {
+        return create(directory, keyFunction, detect(directory, defaultBackend), new StoreLock(directory, lockType));
+    }
+
+    /**
+     * Open the store of a shard read-only and without locks, for repositories this process must never write to,
+     * such as upstream tiers on a read-only mount. See AbstractMetadataStore.setReadOnly().
+     *
+     * @param directory   directory of the shard.
+     * @param keyFunction calculates the keys of artifacts.
+     * @return the store.
+     */
+    public static MetadataStore openReadOnly(File directory, MappedMetadataIndex.KeyFunction keyFunction) {
+        final AbstractMetadataStore store = create(directory, keyFunction, detect(directory, Backend.PROTOBUF),
+                new StoreLock(directory, LockType.NONE));
+        store.setReadOnly(true);
+        return store;
+    }
+
+    private static Backend detect(File directory, Backend defaultBackend) {
+        if (new File(directory, KeyValueMetadataStore.FILENAME).exists()) {
+            return Backend.KEY_VALUE;
+        }
+        if (new File(directory, ProtobufMetadataStore.CHECKPOINT_FILENAME).exists() ||
+                new File(directory, ProtobufMetadataStore.JOURNAL_FILENAME).exists()) {
+            return Backend.PROTOBUF;
+        }
+        return defaultBackend;
+    }
+
+    private static AbstractMetadataStore create(File directory, MappedMetadataIndex.KeyFunction keyFunction, Backend backend,
+                                        StoreLock lock) {
+        switch (backend) {
+            case KEY_VALUE:
+                return new KeyValueMetadataStore(directory, keyFunction, lock);
+            default:
+                return new ProtobufMetadataStore(directory, keyFunction, lock);
+        }
+    }
+
+    /**
+     * @return the implementation of a store.
+     */
+    public static Backend backendOf(MetadataStore store) {
+        return store instanceof KeyValueMetadataStore ? Backend.KEY_VALUE : Backend.PROTOBUF;
+    }
+
+    /**
+     * Convert a shard to another store implementation. Every artifact is copied to the new store in a single
+     * commit, then the files of the source store are deleted. The lock of the shard is held during the conversion.
+     *
+     * @param source      the store to convert.
+     * @param directory   directory of the shard.
+     * @param keyFunction calculates the keys of artifacts.
+     * @param target      the implementation to convert to.
+     * @return the new store, or the source store when it already uses the target implementation.
+     * @throws IOException
+     */
+    public static MetadataStore convert(MetadataStore source, File directory, MappedMetadataIndex.KeyFunction keyFunction,
+                                        Backend target) throws IOException {
+        if (backendOf(source) == target) {
+            return source;
+        }
+        final MetadataStore destination = create(directory, keyFunction, target, source.getLock());
+        try {
+            source.lock();
+            final Object2ObjectLinkedOpenHashMap<String, Artifacts.JournalEntry> artifacts =
+                    new Object2ObjectLinkedOpenHashMap<String, Artifacts.JournalEntry>();
+            source.forget();
+            source.refresh(new MetadataStore.Listener() {
+                @Override
+                public void reset(MetadataStore store) {
+                    artifacts.clear();
+                }
+
+                @Override
+                public void apply(Artifacts.JournalEntry entry) {
+                    if (entry.getOperation() == Artifacts.JournalEntry.Operation.PUT) {
+                        artifacts.put(entry.getKey(), entry);
+                    } else {
+                        artifacts.remove(entry.getKey());
+                    }
+                }
+            });
+            destination.delete();
+            destination.commit(new ObjectArrayList<Artifacts.JournalEntry>(artifacts.values()));
+            destination.compact();
+            source.delete();
+            LOG.info(String.format("Converted shard %s (%d artifacts) to %s.", source.getName(), artifacts.size(), target));
+        } finally {
+            source.unlock();
+        }
+        return destination;
+    }
+}
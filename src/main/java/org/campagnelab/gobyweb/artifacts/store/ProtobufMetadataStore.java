@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.store;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.campagnelab.gobyweb.artifacts.Artifacts;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Metadata store that keeps the artifacts of a shard in a delimited protobuf checkpoint (metadata.pb), complemented
+ * by an append-only journal (metadata.journal) and a memory-mapped index of the checkpoint (metadata.idx).
+ */
+public class ProtobufMetadataStore extends AbstractMetadataStore {
+    private static final org.apache.log4j.Logger LOG = Logger.getLogger(ProtobufMetadataStore.class);
+    public static final String CHECKPOINT_FILENAME = "metadata.pb";
+    public static final String JOURNAL_FILENAME = "metadata.journal";
+    /**
+     * Number of journal records that triggers a background compaction of the journal into the checkpoint.
+     */
+    private static final int COMPACTION_THRESHOLD = 256;
+
+    private final MetadataJournal journal;
+    /**
+     * Fingerprint of the shard as of the last refresh: checkpoint size and modification time, journal generation
+     * and length.
+     */
+    private long loadedCheckpointLength;
+    private long loadedCheckpointModified;
+    private long loadedGeneration;
+    private long loadedJournalLength;
+    /**
+     * Snapshot used by get(): the mapped checkpoint index and the artifacts changed in the journal (null when
+     * removed). Both are read on the first get() after forget().
+     */
+    private boolean mapped;
+    private MappedMetadataIndex mappedIndex;
+    private Object2ObjectOpenHashMap<String, Artifacts.Artifact> journalArtifacts = new Object2ObjectOpenHashMap<String, Artifacts.Artifact>();
+    /**
+     * Artifacts of the checkpoint, parsed in memory when the store is read-only and the index is missing or stale.
+     */
+    private Object2ObjectOpenHashMap<String, Artifacts.Artifact> checkpointArtifacts = new Object2ObjectOpenHashMap<String, Artifacts.Artifact>();
+
+    public ProtobufMetadataStore(File directory, MappedMetadataIndex.KeyFunction keyFunction, StoreLock lock) {
+        super(directory, keyFunction, lock);
+        this.journal = new MetadataJournal(new File(directory, JOURNAL_FILENAME));
+    }
+
+    public File getCheckpointFile() {
+        return new File(directory, CHECKPOINT_FILENAME);
+    }
+
+    public File getIndexFile() {
+        return new File(directory, "metadata.idx");
+    }
+
+    @Override
+    public synchronized void forget() {
+        super.forget();
+        mapped = false;
+        mappedIndex = null;
+        journalArtifacts.clear();
+        checkpointArtifacts.clear();
+    }
+
+    /**
+     * Read the changes made to the shard since the last refresh. The shard is read from scratch the first time, or
+     * when the checkpoint was replaced. Otherwise, only the records appended to the journal since the last refresh
+     * are read. Nothing is read when the shard did not change.
+     *
+     * @param listener receives the changes.
+     * @return True when the shard changed since the last refresh.
+     * @throws IOException
+     */
+    public synchronized boolean refresh(MetadataStore.Listener listener) throws IOException {
+        try {
+            lockShared();
+            final File checkpointFile = getCheckpointFile();
+            final long checkpointLength = checkpointFile.length();
+            final long checkpointModified = checkpointFile.lastModified();
+            final long generation = journal.readGeneration();
+            boolean changed = true;
+            if (!loaded || checkpointLength != loadedCheckpointLength || checkpointModified != loadedCheckpointModified
+                    || generation != loadedGeneration) {
+                listener.reset(this);
+                for (Artifacts.Artifact artifact : readCheckpoint().getArtifactsList()) {
+                    listener.apply(Artifacts.JournalEntry.newBuilder()
+                            .setOperation(Artifacts.JournalEntry.Operation.PUT)
+                            .setKey(keyFunction.key(artifact))
+                            .setArtifact(artifact).build());
+                }
+                // apply the mutations recorded after the checkpoint was written:
+                for (Artifacts.JournalEntry entry : journal.replay(0)) {
+                    listener.apply(entry);
+                }
+            } else if (journal.getFile().length() != loadedJournalLength) {
+                // same checkpoint, apply only the records appended to the journal since the last refresh:
+                for (Artifacts.JournalEntry entry : journal.replay(loadedJournalLength)) {
+                    listener.apply(entry);
+                }
+            } else {
+                changed = false;
+            }
+            loaded = true;
+            loadedCheckpointLength = checkpointLength;
+            loadedCheckpointModified = checkpointModified;
+            loadedGeneration = journal.getGeneration();
+            loadedJournalLength = journal.getValidLength();
+            return changed;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Map the index of the shard checkpoint, rebuilding the index first if it is missing or stale. The index is
+     * rebuilt under the exclusive lock of the shard, and never when the store is read-only.
+     *
+     * @return the index, or null when the shard has no checkpoint yet, or when the store is read-only and the index
+     * is missing or stale.
+     * @throws IOException
+     */
+    private MappedMetadataIndex mapIndex() throws IOException {
+        try {
+            lockShared();
+            final File checkpointFile = getCheckpointFile();
+            MappedMetadataIndex index = MappedMetadataIndex.open(getIndexFile(), checkpointFile);
+            if (index == null && checkpointFile.exists() && !isReadOnly()) {
+                try {
+                    lock();
+                    // another process may have rebuilt the index while the lock was upgraded:
+                    index = MappedMetadataIndex.open(getIndexFile(), checkpointFile);
+                    if (index == null) {
+                        MappedMetadataIndex.build(checkpointFile, getIndexFile(), keyFunction);
+                        index = MappedMetadataIndex.open(getIndexFile(), checkpointFile);
+                    }
+                } finally {
+                    unlock();
+                }
+            }
+            return index;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Find an artifact in the mapped index of the checkpoint. The index is mapped on first access, and the journal
+     * is overlaid on it: artifacts changed in the journal take precedence over the checkpoint. A read-only store
+     * whose index is missing or stale parses the checkpoint in memory instead.
+     */
+    public synchronized Artifacts.Artifact get(String key) throws IOException {
+        try {
+            lockShared();
+            if (!mapped) {
+                mappedIndex = mapIndex();
+                if (mappedIndex == null && isReadOnly()) {
+                    for (Artifacts.Artifact artifact : readCheckpoint().getArtifactsList()) {
+                        checkpointArtifacts.put(keyFunction.key(artifact), artifact);
+                    }
+                }
+                for (Artifacts.JournalEntry entry : journal.replay(0)) {
+                    journalArtifacts.put(entry.getKey(), entry.getOperation() == Artifacts.JournalEntry.Operation.PUT ?
+                            entry.getArtifact() : null);
+                }
+                mapped = true;
+            }
+            if (journalArtifacts.containsKey(key)) {
+                return journalArtifacts.get(key);
+            }
+            return mappedIndex == null ? checkpointArtifacts.get(key) : mappedIndex.get(key);
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Append changes to the journal of the shard. The journal is folded into the checkpoint once it grows beyond
+     * COMPACTION_THRESHOLD records.
+     *
+     * @param entries the changes to write.
+     * @throws IOException
+     */
+    public synchronized void commit(List<Artifacts.JournalEntry> entries) throws IOException {
+        checkWritable();
+        try {
+            lock();
+            journal.append(entries);
+            LOG.debug(String.format("Appended %d records to the journal of shard %s.%n", entries.size(), name));
+            final int recordCount = journal.getRecordCount();
+            if (recordCount >= 4 * COMPACTION_THRESHOLD) {
+                // the background compactions did not keep up, compact now:
+                compact();
+            } else if (recordCount >= COMPACTION_THRESHOLD) {
+                scheduleCompaction();
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Fold the journal into a new checkpoint and start an empty journal. The checkpoint is written to a
+     * temporary file and atomically renamed, so that readers see either the previous or the new checkpoint.
+     * A crash after the rename but before the journal is reset is harmless: journal entries are idempotent and
+     * replaying them on top of the new checkpoint yields the same shard.
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        checkWritable();
+        try {
+            lock();
+            // read the state from disk, so that compaction does not depend on what was loaded in memory:
+            Object2ObjectOpenHashMap<String, Artifacts.Artifact> artifacts = new Object2ObjectOpenHashMap<String, Artifacts.Artifact>();
+            for (Artifacts.Artifact artifact : readCheckpoint().getArtifactsList()) {
+                artifacts.put(keyFunction.key(artifact), artifact);
+            }
+            final List<Artifacts.JournalEntry> entries = journal.replay(0);
+            if (entries.isEmpty()) {
+                return;
+            }
+            for (Artifacts.JournalEntry entry : entries) {
+                if (entry.getOperation() == Artifacts.JournalEntry.Operation.PUT) {
+                    artifacts.put(entry.getKey(), entry.getArtifact());
+                } else {
+                    artifacts.remove(entry.getKey());
+                }
+            }
+            final long generation = journal.getGeneration();
+            Artifacts.Repository repo = Artifacts.Repository.newBuilder().addAllArtifacts(artifacts.values()).build();
+            writeCheckpoint(repo, getCheckpointFile());
+            MappedMetadataIndex.build(getCheckpointFile(), getIndexFile(), keyFunction);
+            journal.reset(generation + 1);
+            LOG.debug(String.format("Compacted %d journal records of shard %s into a checkpoint with %d artifacts.%n",
+                    entries.size(), name, repo.getArtifactsCount()));
+        } finally {
+            unlock();
+        }
+    }
+
+    public synchronized void delete() throws IOException {
+        checkWritable();
+        forget();
+        getCheckpointFile().delete();
+        getIndexFile().delete();
+        journal.getFile().delete();
+    }
+
+    /**
+     * Read the checkpoint of the shard. The checkpoint does not include the changes recorded in the journal
+     * since it was written.
+     *
+     * @return the shard as of the last checkpoint.
+     * @throws IOException
+     */
+    private Artifacts.Repository readCheckpoint() throws IOException {
+        return readCheckpoint(getCheckpointFile());
+    }
+
+    /**
+     * Read a checkpoint file (a single delimited Repository message).
+     *
+     * @param file the checkpoint file.
+     * @return the repository stored in the file, or an empty repository when the file is missing or empty.
+     * @throws IOException
+     */
+    public static Artifacts.Repository readCheckpoint(File file) throws IOException {
+        if (file.exists() && FileUtils.sizeOf(file) != 0) {
+            FileInputStream input = new FileInputStream(file);
+            try {
+                return Artifacts.Repository.parseDelimitedFrom(input);
+            } finally {
+                input.close();
+            }
+        } else {
+            return Artifacts.Repository.getDefaultInstance();
+        }
+    }
+
+    /**
+     * Write a checkpoint file. The checkpoint is written to a temporary file, synced and atomically renamed.
+     *
+     * @param repo the artifacts to write.
+     * @param file the checkpoint file.
+     * @throws IOException
+     */
+    public static void writeCheckpoint(Artifacts.Repository repo, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tmp);
+        try {
+            repo.writeDelimitedTo(output);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.store;
+
+import org.campagnelab.gobyweb.artifacts.locks.LockRegistry;
+import org.campagnelab.gobyweb.artifacts.locks.LockType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Re-entrant lock on the directory of a metadata shard (metadata.pb.lock). The lock belongs to the directory rather
+ * than to a store implementation, so that the stores involved in a conversion share it. Readers take the lock in
+ * shared mode, so that any number of processes can read a shard at the same time, while writers take it in
+ * exclusive mode. The repository also uses this class for the per-artifact install locks and for its own lock.
+ * <p/>
+ * Locks are held by threads. All the StoreLock instances of a JVM on the same file share one LockRegistry entry,
+ * so they exclude each other in memory and a single OS-level lock is taken for the JVM.
+ */
+public class StoreLock {
+    private static final String LOCK_FILENAME = "metadata.pb.lock";
+
+    private final LockRegistry.Entry entry;
+
+    public StoreLock(File directory) {
+        this(directory, LOCK_FILENAME);
+    }
+
+    public StoreLock(File directory, LockType type) {
+        this(directory, LOCK_FILENAME, type);
+    }
+
+    /**
+     * Create a lock on a file other than the lock file of a shard.
+     *
+     * @param directory directory that holds the lock file.
+     * @param filename  name of the lock file.
+     */
+    public StoreLock(File directory, String filename) {
+        this(directory, filename, LockType.FILE);
+    }
+
+    /**
+     * Create a lock of a given type.
+     *
+     * @param directory directory that holds the lock file.
+     * @param filename  name of the lock file.
+     * @param type      the lock implementation.
+     */
+    public StoreLock(File directory, String filename, LockType type) {
+        this.entry = LockRegistry.get(directory, filename, type);
+    }
+
+    /**
+     * Acquire the lock in exclusive mode. When the current thread holds the lock in shared mode, the lock is
+     * upgraded to exclusive mode and remains exclusive until it is fully released. The upgrade releases the shared
+     * lock before waiting for the exclusive lock, so other threads or processes may write in between: callers must
+     * re-read what they read under the shared lock.
+     *
+     * @throws IOException
+     */
+    public void lock() throws IOException {
+        entry.lock();
+    }
+
+    /**
+     * Acquire the lock in shared mode. When the current thread already holds the lock, in either mode, the lock
+     * count is simply incremented.
+     *
+     * @throws IOException
+     */
+    public void lockShared() throws IOException {
+        entry.lockShared();
+    }
+
+    public void unlock() throws IOException {
+        entry.unlock();
+    }
+
+    /**
+     * @return True when the current thread holds the lock.
+     */
+    public boolean isHeldByCurrentThread() {
+        return entry.isHeldByCurrentThread();
+    }
+
+    /**
+     * @return the locked file, or null when the lock implementation does not lock a readable file.
+     */
+    public RandomAccessFile getLockedFile() {
+        return entry.getLockedFile();
+    }
+}
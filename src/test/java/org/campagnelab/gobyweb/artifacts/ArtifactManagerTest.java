@@ -19,13 +19,19 @@ package org.campagnelab.gobyweb.artifacts;
 
 import junit.framework.Assert;
 import org.apache.commons.io.FileUtils;
+import org.campagnelab.gobyweb.artifacts.locks.LeaseLockRequest;
+import org.campagnelab.gobyweb.artifacts.locks.LockType;
 import org.campagnelab.gobyweb.artifacts.scope.ExplicitInstallationScope;
 import org.campagnelab.gobyweb.artifacts.scope.InstallationScope;
+import org.campagnelab.gobyweb.artifacts.store.MetadataStores;
+import org.campagnelab.gobyweb.artifacts.store.ProtobufMetadataStore;
+import org.campagnelab.gobyweb.artifacts.store.StoreLock;
 import org.campagnelab.stepslogger.StepsReportBuilder;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.*;
+import java.util.Arrays;
 
 import static junit.framework.Assert.*;
 import static org.junit.Assert.assertFalse;
@@ -121,6 +127,144 @@ public class ArtifactManagerTest {
 
     }
 
+    @Test
+    // test that an install continues from the staging directory of an interrupted install, and publishes it.
+    public void testStagedInstall() throws IOException {
+        ArtifactManager manager = new ArtifactManager("REPO");
+        final ArtifactRepo repo = manager.getRepo();
+        repo.load();
+        final File stagingDir = new File("REPO/artifacts/STAGED/FILE1/.VERSION.staging");
+        stagingDir.mkdirs();
+        FileUtils.touch(new File(stagingDir, "partial-download"));
+
+        repo.install("STAGED", "FILE1", "test-data/install-scripts/install-script1.sh");
+        assertEquals(Artifacts.InstallationState.INSTALLED, repo.find("STAGED", "FILE1").getState());
+        assertFalse(stagingDir.exists());
+        assertTrue(new File("REPO/artifacts/STAGED/FILE1/VERSION/installed-file-1").exists());
+        assertTrue(new File("REPO/artifacts/STAGED/FILE1/VERSION/partial-download").exists());
+        repo.remove("STAGED", "FILE1");
+    }
+
+    @Test
+    // test that an artifact packed in one repository is installed in another one without running its install script.
+    public void testPackUnpack() throws IOException {
+        ArtifactManager manager = new ArtifactManager("REPO");
+        final ArtifactRepo repo = manager.getRepo();
+        repo.load();
+        repo.install("PACKED", "FILE1", "test-data/install-scripts/install-script1.sh");
+        final File installDir = new File("REPO/artifacts/PACKED/FILE1/VERSION");
+        FileUtils.write(new File(installDir, "config.txt"), "index=" + installDir.getAbsolutePath() + "/index");
+        final File archive = new File("test-results/packed.gz");
+        manager.pack(new String[]{"PACKED:FILE1:VERSION"}, archive);
+
+        final File otherRepoDir = new File("test-results/REPO-UNPACKED");
+        FileUtils.deleteDirectory(otherRepoDir);
+        otherRepoDir.mkdirs();
+        ArtifactManager other = new ArtifactManager(otherRepoDir);
+        other.getRepo().load();
+        other.unpack(archive, 2);
+        final Artifacts.Artifact artifact = other.getRepo().find("PACKED", "FILE1");
+        assertNotNull(artifact);
+        assertEquals(Artifacts.InstallationState.INSTALLED, artifact.getState());
+        final File unpackedDir = new File(otherRepoDir, "artifacts/PACKED/FILE1/VERSION");
+        assertTrue(new File(unpackedDir, "installed-file-1").exists());
+        assertEquals("index=" + unpackedDir.getAbsolutePath() + "/index",
+                FileUtils.readFileToString(new File(unpackedDir, "config.txt")));
+        assertTrue(other.getRepo().hasCachedInstallationScript("PACKED", "VERSION"));
+        repo.remove("PACKED", "FILE1");
+    }
+
+    @Test
+    // an archive whose identifiers would place the artifact outside of the artifacts directory is rejected.
+    public void testUnpackEscapingIdentifiers() throws IOException {
+        final File contentDir = new File("test-results/ESCAPING");
+        FileUtils.deleteDirectory(contentDir);
+        FileUtils.write(new File(contentDir, "file"), "content");
+        final File archive = new File("test-results/escaping.gz");
+        final ArtifactArchive.Writer writer = new ArtifactArchive.Writer(new FileOutputStream(archive));
+        writer.add(Artifacts.Artifact.newBuilder().setPluginId("PACKED").setId("FILE1").setVersion("../../..")
+                .setState(Artifacts.InstallationState.INSTALLED).setRelativePath("PACKED/FILE1/../../..")
+                .setInstallationTime(0).setRetention(Artifacts.RetentionPolicy.REMOVE_OLDEST).build(), contentDir, null);
+        writer.close();
+
+        final File otherRepoDir = new File("test-results/REPO-UNPACKED");
+        FileUtils.deleteDirectory(otherRepoDir);
+        otherRepoDir.mkdirs();
+        final File sentinel = new File(otherRepoDir, "sentinel");
+        FileUtils.write(sentinel, "kept");
+        ArtifactManager other = new ArtifactManager(otherRepoDir);
+        other.getRepo().load();
+        try {
+            other.unpack(archive, 2);
+            fail("an archive with escaping identifiers must be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(sentinel.exists());
+        assertNull(other.getRepo().find("PACKED", "FILE1", "../../.."));
+    }
+
+    @Test
+    // test that artifacts installed in an upstream tier are used from there, or promoted to the local repository.
+    public void testUpstreamTier() throws IOException {
+        final File upstreamDir = new File("test-results/REPO-UPSTREAM");
+        final File localDir = new File("test-results/REPO-LOCAL");
+        FileUtils.deleteDirectory(upstreamDir);
+        FileUtils.deleteDirectory(localDir);
+        upstreamDir.mkdirs();
+        localDir.mkdirs();
+        ArtifactRepo upstream = new ArtifactRepo(upstreamDir);
+        upstream.load();
+        upstream.install("TIERED", "FILE1", "test-data/install-scripts/install-script1.sh");
+
+        ArtifactRepo local = new ArtifactRepo(localDir);
+        local.load();
+        local.addUpstreamTier(upstreamDir);
+        assertTrue(local.isInstalled("TIERED", "FILE1", "VERSION"));
+        assertEquals(upstream.getInstalledPath("TIERED", "FILE1"), local.getInstalledPath("TIERED", "FILE1"));
+        local.install("TIERED", "FILE1", "test-data/install-scripts/install-script1.sh");
+        assertNull(local.findLocal("TIERED", "FILE1", "VERSION"));
+        assertFalse(new File(localDir, "artifacts/TIERED/FILE1/VERSION").exists());
+
+        local.setPromoteFromUpstream(true, 2);
+        assertTrue(local.needsInstall("TIERED", "FILE1", "VERSION"));
+        local.install("TIERED", "FILE1", "test-data/install-scripts/install-script1.sh");
+        assertEquals(Artifacts.InstallationState.INSTALLED, local.findLocal("TIERED", "FILE1", "VERSION").getState());
+        assertTrue(new File(localDir, "artifacts/TIERED/FILE1/VERSION/installed-file-1").exists());
+        assertEquals(new File(localDir, "artifacts/TIERED/FILE1/VERSION").getAbsolutePath(),
+                local.getInstalledPath("TIERED", "FILE1"));
+    }
+
+
+    @Test
+    // upstream tiers are never written to: a tier written by an earlier version is read in place, without migration.
+    public void testLegacyUpstreamTier() throws IOException {
+        final File upstreamDir = new File("test-results/REPO-UPSTREAM-LEGACY");
+        final File localDir = new File("test-results/REPO-LOCAL");
+        FileUtils.deleteDirectory(upstreamDir);
+        FileUtils.deleteDirectory(localDir);
+        upstreamDir.mkdirs();
+        localDir.mkdirs();
+        Artifacts.Repository legacy = Artifacts.Repository.newBuilder()
+                .addArtifacts(Artifacts.Artifact.newBuilder().setPluginId("TIERED").setId("FILE1").setVersion("VERSION")
+                        .setState(Artifacts.InstallationState.INSTALLED).setRelativePath("TIERED/FILE1/VERSION")
+                        .setInstallationTime(0).setRetention(Artifacts.RetentionPolicy.REMOVE_OLDEST))
+                .build();
+        final File checkpoint = new File(upstreamDir, "metadata.pb");
+        ProtobufMetadataStore.writeCheckpoint(legacy, checkpoint);
+        final byte[] content = FileUtils.readFileToByteArray(checkpoint);
+
+        ArtifactRepo local = new ArtifactRepo(localDir);
+        local.load();
+        local.addUpstreamTier(upstreamDir);
+        assertTrue(local.isInstalled("TIERED", "FILE1", "VERSION"));
+        assertEquals(1, local.findInstalledIgnoringAttributes("TIERED", "FILE1", "VERSION").size());
+        assertTrue(Arrays.equals(content, FileUtils.readFileToByteArray(checkpoint)));
+        assertFalse(new File(upstreamDir, "metadata").exists());
+        assertFalse(new File(upstreamDir, "metadata.pb.migrated").exists());
+        assertFalse(new File(upstreamDir, "metadata.idx").exists());
+        assertFalse(new File(upstreamDir, "locks").exists());
+    }
 
     @Test
     public void testGetPath() throws IOException {
@@ -263,6 +407,74 @@ public class ArtifactManagerTest {
         assertTrue(reporter.summarize().contains("line 13: SJdksjdkjs: command not found"));
     }
 
+    @Test
+    // an install script that runs longer than the install timeout is killed, and the artifact is marked FAILED. The
+    // next installation resumes from its staging directory.
+    public void testInstallTimeout() throws IOException {
+
+        ArtifactRepo repo = new ArtifactRepo(repoDir);
+        repo.setStepLogDir(stepsLogDir);
+        repo.setInstallTimeout(2000);
+        final long start = System.currentTimeMillis();
+        repo.install("SLEEP", "ARTIFACT", "test-data/install-scripts/install-script-SLEEP.sh", "VERSION");
+        assertTrue("the install script must be killed", System.currentTimeMillis() - start < 60 * 1000);
+
+        assertFalse(repo.isInstalled("SLEEP", "ARTIFACT", "VERSION", null));
+        assertEquals(Artifacts.InstallationState.FAILED, repo.find("SLEEP", "ARTIFACT", "VERSION").getState());
+        assertTrue(repo.find("SLEEP", "ARTIFACT", "VERSION").getInterrupted());
+        repo.writeLog();
+        StepsReportBuilder reporter = new StepsReportBuilder(stepsLogDir.listFiles()[0]);
+        assertTrue(reporter.summarize().contains("timed out after 2 seconds"));
+
+        // the next installation resumes from the staging directory of the killed install script:
+        repo.setInstallTimeout(0);
+        repo.install("SLEEP", "ARTIFACT", "test-data/install-scripts/install-script-SLEEP.sh", "VERSION");
+        assertTrue(repo.isInstalled("SLEEP", "ARTIFACT", "VERSION", null));
+        assertTrue(new File(repo.getInstalledPath("SLEEP", "ARTIFACT", "VERSION"), "partial").exists());
+    }
+
+    @Test
+    // installations record their timings on the artifact, and in a history that survives the removal of the artifact.
+    public void testInstallTimings() throws IOException {
+        ArtifactRepo repo = new ArtifactRepo(repoDir);
+        repo.setScriptFetchTime(42);
+        repo.install("PLUGIN", "FILE1", "test-data/install-scripts/install-script1.sh", "1.0");
+        Artifacts.Artifact artifact = repo.find("PLUGIN", "FILE1", "1.0");
+        assertTrue(artifact.hasTimings());
+        assertEquals(42, artifact.getTimings().getFetchMs());
+        assertTrue(artifact.getTimings().getCompletionTime() > 0);
+        assertTrue(artifact.getTimings().getPeakDiskBytes() >= artifact.getInstalledSize());
+
+        repo.remove("PLUGIN", "FILE1", "1.0");
+        repo.save();
+        InstallationHistory history = new ArtifactRepo(repoDir).getInstallationHistory();
+        assertEquals(1, history.get("PLUGIN", "FILE1", "1.0").size());
+        assertTrue(history.expectedDuration("PLUGIN", "FILE1", "1.0") >= 42);
+        assertEquals(-1, history.expectedDuration("PLUGIN", "FILE1", "2.0"));
+    }
+
+    @Test
+    // results of get_attribute_values are cached in the repository, keyed by the content of the install script.
+    public void testAttributeCache() throws IOException {
+        ArtifactRepo repo = new ArtifactRepo(repoDir);
+        repo.install("PLUGIN", "FILE1", "test-data/install-scripts/install-script7.sh", "1.0",
+                new AttributeValuePair("attribute-A"));
+        final File cacheDir = new File(repoDir, "attribute-cache");
+        assertEquals(1, cacheDir.listFiles().length);
+
+        repo = new ArtifactRepo(repoDir);
+        repo.load(repoDir, true);
+        StringWriter stringWriter = new StringWriter();
+        repo.printBashExports(new PrintWriter(stringWriter));
+        assertTrue(stringWriter.getBuffer().indexOf("export RESOURCES_ARTIFACTS_PLUGIN_FILE1_VA=") >= 0);
+        assertEquals(1, cacheDir.listFiles().length);
+
+        final String script = new File("test-data/install-scripts/install-script7.sh").getAbsolutePath();
+        final String key = AttributeCache.key("PLUGIN", "FILE1", new File(script), Arrays.<String>asList());
+        assertNotNull(repo.getAttributeCache().get(key));
+        assertFalse(key.equals(AttributeCache.key("PLUGIN", "FILE2", new File(script), Arrays.<String>asList())));
+    }
+
     @Test
     public void testPartialInstalls() throws IOException {
         ArtifactRepo repo = new ArtifactRepo(repoDir);
@@ -318,6 +530,94 @@ public class ArtifactManagerTest {
 
     }
 
+    @Test
+    public void testReposShareLocksInJVM() throws Exception {
+        final ArtifactRepo first = new ArtifactRepo(repoDir);
+        final ArtifactRepo second = new ArtifactRepo(repoDir);
+        first.acquireExclusiveLock();
+        // the same thread can lock the repository through another instance:
+        second.acquireExclusiveLock();
+        second.releaseLock();
+
+        final boolean[] acquired = new boolean[1];
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    second.acquireExclusiveLock();
+                    acquired[0] = true;
+                    second.releaseLock();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        other.start();
+        other.join(1000);
+        // the other thread waits in memory for the lock, without OverlappingFileLockException:
+        assertFalse(acquired[0]);
+        first.releaseLock();
+        other.join();
+        assertTrue(acquired[0]);
+    }
+
+    @Test
+    public void testSharedLockUpgrade() throws IOException {
+        StoreLock lock = new StoreLock(new File("REPO/metadata/PLUGIN"));
+        lock.lockShared();
+        lock.lockShared();
+        // upgrade to exclusive, for instance to rebuild an index:
+        lock.lock();
+        lock.unlock();
+        lock.unlock();
+        lock.unlock();
+        // the lock was fully released and can be acquired again:
+        lock.lock();
+        lock.unlock();
+    }
+
+    @Test
+    public void testLeaseLocks() throws IOException {
+        File locks = new File("REPO/locks");
+        LeaseLockRequest first = new LeaseLockRequest("test.lock", locks);
+        LeaseLockRequest second = new LeaseLockRequest("test.lock", locks);
+        first.waitAndLock(false);
+        second.query();
+        assertFalse(second.granted());
+        first.release();
+        second.query();
+        assertTrue(second.granted());
+        second.release();
+
+        // readers share the lock:
+        first.waitAndLock(true);
+        second.waitAndLock(true);
+        assertTrue(second.isShared());
+        first.release();
+        second.release();
+
+        // the lease of a process that died is broken:
+        FileUtils.writeStringToFile(new File(locks, "test.lock.lease"), "dead-process\t0");
+        first.waitAndLock(false);
+        assertTrue(first.granted());
+        first.release();
+        assertFalse(new File(locks, "test.lock.lease").exists());
+    }
+
+    @Test
+    public void testLeaseLockedRepository() throws IOException {
+        ArtifactRepo repo = new ArtifactRepo(repoDir);
+        repo.setLockType(LockType.LEASE);
+        repo.load();
+        repo.install("PLUGIN", "ARTIFACT");
+        // the lock type is recorded in the repository:
+        ArtifactRepo reader = new ArtifactRepo(repoDir);
+        assertEquals(LockType.LEASE, reader.getLockType());
+        reader.load();
+        assertTrue(reader.isInstalled("PLUGIN", "ARTIFACT", "VERSION"));
+        assertFalse(new File("REPO/metadata/PLUGIN/metadata.pb.lock.lease").exists());
+    }
+
     @Test
     public void loadJSap() throws Exception {
         ArtifactManager manager = new ArtifactManager("REPO");
@@ -359,6 +659,152 @@ public class ArtifactManagerTest {
 
     }
 
+    @Test
+    // test that a repository loaded earlier sees the changes saved by another instance when it reloads:
+    public void testIncrementalLoad() throws IOException {
+        ArtifactRepo writer = new ArtifactRepo(repoDir);
+        writer.load();
+        writer.install("PLUGIN", "ARTIFACT1");
+        ArtifactRepo reader = new ArtifactRepo(repoDir);
+        reader.load();
+        assertTrue(reader.isInstalled("PLUGIN", "ARTIFACT1", "VERSION"));
+        assertFalse(reader.isInstalled("PLUGIN", "ARTIFACT2", "VERSION"));
+
+        writer.install("PLUGIN", "ARTIFACT2");
+        writer.remove("PLUGIN", "ARTIFACT1");
+        reader.load();
+        assertFalse(reader.isInstalled("PLUGIN", "ARTIFACT1", "VERSION"));
+        assertTrue(reader.isInstalled("PLUGIN", "ARTIFACT2", "VERSION"));
+
+        writer.compact();
+        reader.load();
+        assertFalse(reader.isInstalled("PLUGIN", "ARTIFACT1", "VERSION"));
+        assertTrue(reader.isInstalled("PLUGIN", "ARTIFACT2", "VERSION"));
+    }
+
+    @Test
+    public void testLazyLoad() throws IOException {
+        ArtifactRepo writer = new ArtifactRepo(repoDir);
+        writer.load();
+        writer.install("PLUGIN", "ARTIFACT1");
+        writer.install("PLUGIN", "ARTIFACT2");
+        writer.compact();
+        writer.remove("PLUGIN", "ARTIFACT2");
+
+        ArtifactRepo reader = new ArtifactRepo(repoDir);
+        reader.loadLazily();
+        assertTrue(reader.isInstalled("PLUGIN", "ARTIFACT1", "VERSION"));
+        // removed in the journal after the checkpoint was written:
+        assertFalse(reader.isInstalled("PLUGIN", "ARTIFACT2", "VERSION"));
+        assertNull(reader.find("PLUGIN", "ARTIFACT3", "VERSION"));
+
+        // installing materializes the repository:
+        reader.install("PLUGIN", "ARTIFACT3");
+        assertEquals(2, reader.getArtifacts().size());
+    }
+
+    @Test
+    public void testShards() throws IOException {
+        ArtifactRepo writer = new ArtifactRepo(repoDir);
+        writer.load();
+        writer.install("PLUGIN_A", "ARTIFACT");
+        writer.install("PLUGIN_B", "ARTIFACT");
+        assertTrue(new File("REPO/metadata/PLUGIN_A/metadata.journal").exists());
+        assertTrue(new File("REPO/metadata/PLUGIN_B/metadata.journal").exists());
+
+        ArtifactRepo reader = new ArtifactRepo(repoDir);
+        reader.load(Arrays.asList("PLUGIN_A"), false);
+        assertEquals(1, reader.getArtifacts().size());
+        // the shard of PLUGIN_B is loaded on first access:
+        assertTrue(reader.isInstalled("PLUGIN_B", "ARTIFACT", "VERSION"));
+        assertEquals(2, reader.getArtifacts().size());
+    }
+
+    @Test
+    public void testArtifactLocks() throws IOException {
+        ArtifactRepo repo = new ArtifactRepo(repoDir);
+        repo.load();
+        repo.install("PLUGIN", "ARTIFACT1");
+        repo.install("PLUGIN", "ARTIFACT2");
+        // each artifact is installed under its own lock:
+        assertTrue(new File("REPO/locks/PLUGIN_ARTIFACT1_VERSION.lock").exists());
+        assertTrue(new File("REPO/locks/PLUGIN_ARTIFACT2_VERSION.lock").exists());
+
+        // the metadata was written when each install completed:
+        ArtifactRepo reader = new ArtifactRepo(repoDir);
+        reader.load();
+        assertTrue(reader.isInstalled("PLUGIN", "ARTIFACT1", "VERSION"));
+        assertTrue(reader.isInstalled("PLUGIN", "ARTIFACT2", "VERSION"));
+    }
+
+    @Test
+    public void testReclaimStaleInstallation() throws IOException {
+        repoDir.mkdirs();
+        // an installation interrupted long ago, whose owner stopped reporting heartbeats:
+        Artifacts.Repository interrupted = Artifacts.Repository.newBuilder()
+                .addArtifacts(Artifacts.Artifact.newBuilder().setPluginId("PLUGIN").setId("ARTIFACT1").setVersion("VERSION")
+                        .setState(Artifacts.InstallationState.INSTALLING).setRelativePath("PLUGIN/ARTIFACT1/VERSION")
+                        .setInstallationTime(0).setRetention(Artifacts.RetentionPolicy.REMOVE_OLDEST)
+                        .setInstallationOwner(Artifacts.InstallationOwner.newBuilder().setHostName("other-host")
+                                .setPid(1).setHeartbeatTime(0)))
+                .build();
+        ProtobufMetadataStore.writeCheckpoint(interrupted, new File("REPO/metadata.pb"));
+
+        ArtifactRepo repo = new ArtifactRepo(repoDir);
+        repo.load();
+        repo.install("PLUGIN", "ARTIFACT1");
+        Artifacts.Artifact artifact = repo.find("PLUGIN", "ARTIFACT1", "VERSION");
+        assertEquals(Artifacts.InstallationState.INSTALLED, artifact.getState());
+        // the owner is only recorded while the artifact is installing:
+        assertFalse(artifact.hasInstallationOwner());
+    }
+
+    @Test
+    public void testMigrateSingleFileMetadata() throws IOException {
+        repoDir.mkdirs();
+        Artifacts.Repository legacy = Artifacts.Repository.newBuilder()
+                .addArtifacts(Artifacts.Artifact.newBuilder().setPluginId("PLUGIN").setId("ARTIFACT").setVersion("VERSION")
+                        .setState(Artifacts.InstallationState.INSTALLED).setRelativePath("PLUGIN/ARTIFACT/VERSION")
+                        .setInstallationTime(0).setRetention(Artifacts.RetentionPolicy.REMOVE_OLDEST))
+                .build();
+        ProtobufMetadataStore.writeCheckpoint(legacy, new File("REPO/metadata.pb"));
+
+        ArtifactRepo repo = new ArtifactRepo(repoDir);
+        repo.load();
+        assertTrue(repo.isInstalled("PLUGIN", "ARTIFACT", "VERSION"));
+        assertTrue(new File("REPO/metadata/PLUGIN/metadata.pb").exists());
+        // earlier versions fail to read the repository, instead of finding it empty:
+        try {
+            ProtobufMetadataStore.readCheckpoint(new File("REPO/metadata.pb"));
+            fail("metadata.pb must not be readable as a single-file repository once migrated");
+        } catch (IOException e) {
+            // expected
+        }
+        // the migration is not repeated:
+        ArtifactRepo other = new ArtifactRepo(repoDir);
+        other.load();
+        assertTrue(other.isInstalled("PLUGIN", "ARTIFACT", "VERSION"));
+    }
+
+    @Test
+    public void testConvertMetadata() throws IOException {
+        ArtifactRepo writer = new ArtifactRepo(repoDir);
+        writer.load();
+        writer.install("PLUGIN", "ARTIFACT1");
+        writer.install("PLUGIN", "ARTIFACT2");
+        writer.convertMetadata(MetadataStores.Backend.KEY_VALUE);
+        assertTrue(new File("REPO/metadata/PLUGIN/metadata.kv").exists());
+        assertFalse(new File("REPO/metadata/PLUGIN/metadata.pb").exists());
+        writer.remove("PLUGIN", "ARTIFACT2");
+
+        ArtifactRepo reader = new ArtifactRepo(repoDir);
+        reader.load();
+        assertTrue(reader.isInstalled("PLUGIN", "ARTIFACT1", "VERSION"));
+        assertNull(reader.find("PLUGIN", "ARTIFACT2"));
+        reader.loadLazily();
+        assertTrue(reader.isInstalled("PLUGIN", "ARTIFACT1", "VERSION"));
+    }
+
     private void clearValues(AttributeValuePair[] attributeValuePairs) {
         for (AttributeValuePair valuePair : attributeValuePairs) {
             valuePair.value = null;
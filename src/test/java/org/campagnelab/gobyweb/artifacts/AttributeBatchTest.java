@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.campagnelab.gobyweb.artifacts;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.Properties;
+
+import static junit.framework.Assert.*;
+
+public class AttributeBatchTest {
+    private File workDir = new File("test-results/attribute-batch");
+
+    @Test
+    // one bash program evaluates get_attribute_values for every artifact of the batch.
+    public void testProgram() throws Exception {
+        AttributeBatch batch = new AttributeBatch();
+        batch.add("PLUGIN", "FILE1", "test-data/install-scripts/install-script7.sh");
+        batch.add("PLUGIN", "ARTIFACT", "test-data/install-scripts/install-script-COMMAND_NOT_FOUND.sh");
+        batch.add("PLUGIN", "FILE2", "test-data/install-scripts/install-script7.sh");
+        final File program = new File(workDir, "program.sh");
+        FileUtils.write(program, batch.program("", workDir));
+
+        Process process = new ProcessBuilder("/bin/bash", program.getAbsolutePath())
+                .redirectError(new File(workDir, "program.err")).start();
+        Properties[] results = batch.parse(new BufferedReader(new InputStreamReader(process.getInputStream())));
+        assertEquals(0, process.waitFor());
+
+        assertEquals(3, results.length);
+        assertEquals("VA", results[0].getProperty("attribute-A"));
+        assertNull(results[1]);
+        assertEquals("VB", results[2].getProperty("attribute-B"));
+    }
+
+    @Test
+    // lines written before the first section, and sections of calls that failed, are ignored.
+    public void testParse() throws IOException {
+        AttributeBatch batch = new AttributeBatch();
+        batch.add("PLUGIN", "A", "a.sh");
+        batch.add("PLUGIN", "B", "b.sh");
+        Properties[] results = batch.parse(new BufferedReader(new StringReader(
+                "written by an environment script\n" +
+                        "[get_attribute_values 0 1]\n" +
+                        "[get_attribute_values 1 0]\n" +
+                        "organism=HUMAN\n" +
+                        "\n")));
+        assertNull(results[0]);
+        assertEquals("HUMAN", results[1].getProperty("organism"));
+    }
+
+    @Before
+    public void clean() throws IOException {
+        FileUtils.deleteDirectory(workDir);
+        workDir.mkdirs();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.campagnelab.gobyweb.artifacts;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Properties;
+
+import static junit.framework.Assert.*;
+
+public class AttributeWorkerTest {
+    private File resultDir = new File("test-results/attribute-worker");
+    private AttributeWorker worker;
+
+    @Test
+    // one worker evaluates get_attribute_values for several artifacts, with the environment it sourced at startup.
+    public void testEvaluate() throws IOException {
+        worker = AttributeWorker.start(" export ATTRIBUTE_WORKER_TEST=1; ");
+        final String script = new File("test-data/install-scripts/install-script7.sh").getAbsolutePath();
+        for (String artifactId : new String[]{"FILE1", "FILE2"}) {
+            final File result = new File(new File(resultDir, artifactId), "artifact.properties");
+            assertEquals(0, worker.evaluate(script, artifactId, result, 0));
+            Properties properties = new Properties();
+            properties.load(new FileReader(result));
+            assertEquals("VA", properties.getProperty("attribute-A"));
+            assertEquals("VB", properties.getProperty("attribute-B"));
+        }
+        assertTrue(worker.isAlive());
+    }
+
+    @Test
+    // a plugin script that exits only ends its subshell, and its status is reported.
+    public void testFailure() throws IOException {
+        worker = AttributeWorker.start("");
+        final String script = new File("test-data/install-scripts/install-script-COMMAND_NOT_FOUND.sh").getAbsolutePath();
+        assertTrue(worker.evaluate(script, "ARTIFACT", new File(resultDir, "artifact.properties"), 0) != 0);
+        assertTrue(worker.isAlive());
+    }
+
+    @Before
+    public void clean() throws IOException {
+        FileUtils.deleteDirectory(resultDir);
+    }
+
+    @After
+    public void close() {
+        if (worker != null) {
+            worker.close();
+        }
+    }
+}
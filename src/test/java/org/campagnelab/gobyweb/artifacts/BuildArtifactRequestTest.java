@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.List;
 
 import static junit.framework.Assert.*;
@@ -58,6 +59,168 @@ public class BuildArtifactRequestTest {
         helper.show();
     }
 
+    @Test
+    // check that independent artifacts of a request can be installed concurrently.
+    public void testParallelInstalls() throws IOException {
+        BuildArtifactRequest request = new BuildArtifactRequest();
+        request.addArtifact("PLUGIN", "FILE1", "1.0", false, "test-data/install-scripts/install-script1.sh");
+        request.addArtifact("PLUGIN", "FILE2", "1.0", false, "test-data/install-scripts/install-script1.sh");
+        final File output = new File("test-results/requests/request-parallel.pb");
+
+        request.save(output);
+
+        ArtifactRequestHelper helper = new ArtifactRequestHelper(output);
+        helper.setParallelInstalls(2);
+        helper.install(new File("REPO"), false);
+
+        assertFalse(helper.isEarlyStopRequested());
+        assertTrue(new File("REPO/artifacts/PLUGIN/FILE1/1.0/installed-file-1").exists());
+        assertTrue(new File("REPO/artifacts/PLUGIN/FILE2/1.0/installed-file-2").exists());
+        assertTrue(helper.getRepo(new File("REPO")).isInstalled("PLUGIN", "FILE2", "1.0"));
+    }
+
+    @Test
+    // check that artifacts are installed after their dependencies, and see their exports.
+    public void testDependencies() throws IOException {
+        BuildArtifactRequest request = new BuildArtifactRequest();
+        request.addArtifact("PLUGIN2", "B", "1.0", false, "test-data/install-scripts/install-script6.sh",
+                Artifacts.RetentionPolicy.REMOVE_OLDEST, Arrays.asList(BuildArtifactRequest.dependency("PLUGIN1", "A")));
+        request.addArtifact("PLUGIN1", "A", "1.0", false, "test-data/install-scripts/install-script5.sh");
+        request.addArtifact("PLUGIN", "FILE1", "1.0", false, "test-data/install-scripts/install-script1.sh");
+        final File output = new File("test-results/requests/request-dependencies.pb");
+        request.save(output);
+
+        ArtifactRequestHelper helper = new ArtifactRequestHelper(output);
+        helper.setParallelInstalls(2);
+        helper.install(new File("REPO"), false);
+        assertFalse(helper.isEarlyStopRequested());
+        assertTrue(new File("REPO/artifacts/PLUGIN2/B/1.0/installed-file-B").exists());
+    }
+
+    @Test
+    // check that only the dependents of an artifact that failed to install are skipped.
+    public void testFailedDependency() throws IOException {
+        BuildArtifactRequest request = new BuildArtifactRequest();
+        // install-script5.sh does not know how to install artifact X:
+        request.addArtifact("PLUGIN1", "X", "1.0", false, "test-data/install-scripts/install-script5.sh");
+        request.addArtifact("PLUGIN2", "B", "1.0", false, "test-data/install-scripts/install-script6.sh",
+                Artifacts.RetentionPolicy.REMOVE_OLDEST, Arrays.asList(BuildArtifactRequest.dependency("PLUGIN1", "X")));
+        request.addArtifact("PLUGIN", "FILE1", "1.0", false, "test-data/install-scripts/install-script1.sh");
+        final File output = new File("test-results/requests/request-failed-dependency.pb");
+        request.save(output);
+
+        ArtifactRequestHelper helper = new ArtifactRequestHelper(output);
+        helper.install(new File("REPO"), false);
+        assertTrue(helper.isEarlyStopRequested());
+        assertTrue(new File("REPO/artifacts/PLUGIN/FILE1/1.0/installed-file-1").exists());
+        assertFalse(helper.getRepo(new File("REPO")).isInstalled("PLUGIN2", "B", "1.0"));
+    }
+
+    @Test
+    // check that the install script of artifacts of the same plugin and version is fetched once, and deleted after.
+    public void testPrefetchOncePerPluginVersion() throws IOException {
+        BuildArtifactRequest request = new BuildArtifactRequest();
+        request.addArtifact("PREFETCH", "FILE1", "1.0", false, "test-data/install-scripts/install-script1.sh");
+        request.addArtifact("PREFETCH", "FILE2", "1.0", false, "test-data/install-scripts/install-script1.sh");
+        final File output = new File("test-results/requests/request-prefetch.pb");
+        request.save(output);
+
+        final List<String> before = prefetchedScripts("PREFETCH");
+        ArtifactRequestHelper helper = new ArtifactRequestHelper(output);
+        helper.install(new File("REPO"), false);
+        assertFalse(helper.isEarlyStopRequested());
+        assertEquals(1, helper.getScriptFetchCount());
+        assertTrue(new File("REPO/artifacts/PREFETCH/FILE2/1.0/installed-file-2").exists());
+        assertEquals("fetched install scripts must be deleted", before, prefetchedScripts("PREFETCH"));
+
+        // the script is now cached in the repository, and not fetched again:
+        final ArtifactRepo repo = new ArtifactRepo(new File("REPO"));
+        repo.load();
+        repo.remove("PREFETCH", "FILE2", "1.0");
+        helper = new ArtifactRequestHelper(output);
+        helper.install(new File("REPO"), false);
+        assertEquals(0, helper.getScriptFetchCount());
+        assertTrue(new File("REPO/artifacts/PREFETCH/FILE2/1.0/installed-file-2").exists());
+    }
+
+    @Test
+    // check that a script that cannot be fetched fails its own artifact and the artifacts that depend on it only.
+    public void testPrefetchFailure() throws IOException {
+        BuildArtifactRequest request = new BuildArtifactRequest();
+        request.addArtifact("MISSING", "FILE1", "1.0", false, "test-data/install-scripts/no-such-script.sh");
+        request.addArtifact("PLUGIN2", "B", "1.0", false, "test-data/install-scripts/install-script6.sh",
+                Artifacts.RetentionPolicy.REMOVE_OLDEST, Arrays.asList(BuildArtifactRequest.dependency("MISSING", "FILE1")));
+        request.addArtifact("PREFETCH", "FILE1", "1.0", false, "test-data/install-scripts/install-script1.sh");
+        final File output = new File("test-results/requests/request-prefetch-failure.pb");
+        request.save(output);
+
+        final List<String> before = prefetchedScripts("MISSING");
+        ArtifactRequestHelper helper = new ArtifactRequestHelper(output);
+        helper.install(new File("REPO"), false);
+        assertTrue(helper.isEarlyStopRequested());
+        final ArtifactRepo repo = helper.getRepo(new File("REPO"));
+        assertFalse(repo.isInstalled("MISSING", "FILE1", "1.0"));
+        assertFalse(repo.isInstalled("PLUGIN2", "B", "1.0"));
+        assertTrue(repo.isInstalled("PREFETCH", "FILE1", "1.0"));
+        assertEquals("fetched install scripts must be deleted", before, prefetchedScripts("MISSING"));
+    }
+
+    @Test
+    // check that the metadata changes made in a batch are written once, when the batch commits.
+    public void testBatchedChanges() throws IOException {
+        final File repoDir = new File("REPO");
+        ArtifactRepo repo = new ArtifactRepo(repoDir);
+        repo.load();
+        repo.install("PLUGIN", "FILE1", "test-data/install-scripts/install-script1.sh", "1.0");
+        repo.install("PLUGIN", "FILE2", "test-data/install-scripts/install-script1.sh", "1.0");
+        final File journal = new File("REPO/metadata/PLUGIN/metadata.journal");
+        final long length = journal.length();
+
+        repo.beginBatch(Arrays.asList("PLUGIN"));
+        repo.remove("PLUGIN", "FILE1", "1.0");
+        repo.remove("PLUGIN", "FILE2", "1.0");
+        repo.save();
+        assertEquals("changes must not be written before the batch commits", length, journal.length());
+        assertNull(repo.find("PLUGIN", "FILE1", "1.0"));
+        repo.commit();
+        assertTrue(journal.length() > length);
+
+        ArtifactRepo reader = new ArtifactRepo(repoDir);
+        reader.load();
+        assertNull(reader.find("PLUGIN", "FILE1", "1.0"));
+        assertNull(reader.find("PLUGIN", "FILE2", "1.0"));
+    }
+
+    /**
+     * @return the names of the install scripts of a plugin fetched to the temporary directory.
+     */
+    private static List<String> prefetchedScripts(String pluginId) {
+        final List<String> names = new java.util.ArrayList<String>();
+        final File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("install-script-" + pluginId)) {
+                    names.add(file.getName());
+                }
+            }
+        }
+        java.util.Collections.sort(names);
+        return names;
+    }
+
+    @Test(expected = IOException.class)
+    public void testDependencyCycle() throws IOException {
+        BuildArtifactRequest request = new BuildArtifactRequest();
+        request.addArtifact("PLUGIN1", "A", "1.0", false, "test-data/install-scripts/install-script5.sh",
+                Artifacts.RetentionPolicy.REMOVE_OLDEST, Arrays.asList(BuildArtifactRequest.dependency("PLUGIN2", "B")));
+        request.addArtifact("PLUGIN2", "B", "1.0", false, "test-data/install-scripts/install-script6.sh",
+                Artifacts.RetentionPolicy.REMOVE_OLDEST, Arrays.asList(BuildArtifactRequest.dependency("PLUGIN1", "A")));
+        final File output = new File("test-results/requests/request-cycle.pb");
+        request.save(output);
+
+        new ArtifactRequestHelper(output).install(new File("REPO"), false);
+    }
+
     @Test
     // check that we can execute requests sent from the web server in pb format.
     public void testOneRequest() throws IOException {
@@ -75,6 +238,56 @@ public class BuildArtifactRequestTest {
         helper.show();
     }
 
+    @Test
+    // check that the plan of an installed request has no work left.
+    public void testPlan() throws IOException {
+        BuildArtifactRequest request = new BuildArtifactRequest("localhost");
+        request.addArtifact("PLUGIN", "FILE1", "1.0", true, "test-data/install-scripts/install-script1.sh");
+        request.addArtifact("PLUGIN", "FILE2", "1.0", false, "test-data/install-scripts/install-script1.sh");
+        final File output = new File("test-results/requests/request-plan.pb");
+        request.save(output);
+
+        ArtifactRequestHelper helper = new ArtifactRequestHelper(output);
+        InstallPlan plan = helper.plan(new File("REPO"), true);
+        assertTrue(plan.hasWork());
+        assertEquals(InstallPlan.Action.INSTALL, plan.getSteps().get(0).getAction());
+        assertEquals(InstallPlan.Action.SKIP_NOT_MANDATORY, plan.getSteps().get(1).getAction());
+
+        helper.install(new File("REPO"), true);
+        plan = helper.plan(new File("REPO"), true);
+        assertFalse(plan.hasWork());
+        assertEquals(InstallPlan.Action.ALREADY_INSTALLED, plan.getSteps().get(0).getAction());
+
+        StringWriter text = new StringWriter();
+        plan.print(new PrintWriter(text));
+        assertTrue(text.toString().contains("ALREADY_INSTALLED PLUGIN:FILE1:1.0"));
+    }
+
+    @Test
+    // artifacts whose request leaves attributes undefined are planned as installed once installed, without fetching
+    // their install script.
+    public void testPlanWithAttributes() throws IOException {
+        BuildArtifactRequest request = new BuildArtifactRequest("localhost");
+        Artifacts.AttributeValuePair[] attributes = new Artifacts.AttributeValuePair[]{
+                Artifacts.AttributeValuePair.newBuilder().setName("key").setValue("value").build(),
+                Artifacts.AttributeValuePair.newBuilder().setName("undefined-key").build()
+        };
+        request.addArtifact("PLUGIN", "INDEX", "1.0", false, "test-data/install-scripts/install-script3.sh", attributes);
+        final File output = new File("test-results/requests/request-plan-attributes.pb");
+        request.save(output);
+
+        ArtifactRequestHelper helper = new ArtifactRequestHelper(output);
+        assertEquals(InstallPlan.Action.INSTALL, helper.plan(new File("REPO"), false).getSteps().get(0).getAction());
+        helper.install(new File("REPO"), false);
+
+        ArtifactRequestHelper other = new ArtifactRequestHelper(output);
+        InstallPlan plan = other.plan(new File("REPO"), false);
+        assertFalse(plan.hasWork());
+        assertEquals(InstallPlan.Action.ALREADY_INSTALLED, plan.getSteps().get(0).getAction());
+        other.install(new File("REPO"), false);
+        assertEquals(0, other.getScriptFetchCount());
+    }
+
     @Test
     // check that we can execute requests sent from the web server in pb format.
     public void testOneRequestWithUser() throws IOException {
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.campagnelab.gobyweb.artifacts;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.*;
+
+public class ResourceBudgetTest {
+
+    @Test
+    // requests are granted what they ask for, within the budget of the node.
+    public void testGrants() throws IOException {
+        ResourceBudget budget = new ResourceBudget(8, 16000, 0);
+        ResourceBudget.Grant grant = budget.acquire(request("INDEX", 32, 64000));
+        assertEquals(8, grant.getThreads());
+        assertEquals(16000, grant.getMemoryMb());
+        budget.release(grant);
+
+        grant = budget.acquire(request("SMALL", 0, 0));
+        assertEquals(1, grant.getThreads());
+        assertEquals(0, grant.getMemoryMb());
+        budget.release(grant);
+    }
+
+    @Test
+    // a request waits until the resources it asks for are released.
+    public void testAdmission() throws Exception {
+        final ResourceBudget budget = new ResourceBudget(4, 0, 0);
+        final ResourceBudget.Grant first = budget.acquire(request("FIRST", 3, 0));
+        final AtomicBoolean admitted = new AtomicBoolean();
+        Thread second = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    budget.release(budget.acquire(request("SECOND", 2, 0)));
+                    admitted.set(true);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        second.start();
+        second.join(500);
+        assertFalse(admitted.get());
+        budget.release(first);
+        second.join(5000);
+        assertTrue(admitted.get());
+    }
+
+    private static Artifacts.ArtifactDetails request(String artifactId, int threads, long memoryMb) {
+        Artifacts.ResourceHints.Builder hints = Artifacts.ResourceHints.newBuilder();
+        if (threads > 0) {
+            hints.setThreads(threads);
+        }
+        if (memoryMb > 0) {
+            hints.setMemoryMb(memoryMb);
+        }
+        return Artifacts.ArtifactDetails.newBuilder().setPluginId("PLUGIN").setArtifactId(artifactId)
+                .setVersion("1.0").setScriptInstallPath("install.sh")
+                .setRetention(Artifacts.RetentionPolicy.REMOVE_OLDEST).setResources(hints).build();
+    }
+}
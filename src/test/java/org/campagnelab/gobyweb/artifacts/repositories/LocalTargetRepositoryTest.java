@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.repositories;
+
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.gobyweb.artifacts.ArtifactRepo;
+import org.campagnelab.gobyweb.artifacts.Artifacts;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+public class LocalTargetRepositoryTest {
+    private File repoDir = new File("test-results/REPO-PUBLISHING");
+    private File replicaDir = new File("test-results/REPO-REPLICA");
+
+    @Before
+    public void clean() throws IOException {
+        FileUtils.deleteDirectory(repoDir);
+        FileUtils.deleteDirectory(replicaDir);
+        repoDir.mkdirs();
+    }
+
+    @Test
+    public void testPublishInstalledArtifacts() throws IOException, ExecutionException, InterruptedException {
+        ArtifactRepo repo = new ArtifactRepo(repoDir);
+        repo.load();
+        LocalTargetRepository target = new LocalTargetRepository(replicaDir, 2);
+        repo.addTargetRepository(target);
+        repo.install("PLUGIN", "FILE1", "test-data/install-scripts/install-script1.sh");
+        target.close();
+
+        ArtifactRepo replica = new ArtifactRepo(replicaDir);
+        replica.load();
+        final Artifacts.Artifact published = replica.find("PLUGIN", "FILE1");
+        assertEquals(Artifacts.InstallationState.INSTALLED, published.getState());
+        assertEquals(repo.find("PLUGIN", "FILE1").getInstallationTime(), published.getInstallationTime());
+        assertTrue(new File(replicaDir, "artifacts/PLUGIN/FILE1/VERSION/installed-file-1").exists());
+        assertTrue(replica.hasCachedInstallationScript("PLUGIN", "VERSION"));
+    }
+
+    @Test
+    public void testReplicateIsIncremental() throws IOException {
+        ArtifactRepo repo = new ArtifactRepo(repoDir);
+        repo.load();
+        repo.install("PLUGIN", "FILE1", "test-data/install-scripts/install-script1.sh");
+        repo.install("PLUGIN", "FILE2", "test-data/install-scripts/install-script1.sh");
+
+        LocalTargetRepository target = new LocalTargetRepository(replicaDir, 2);
+        assertEquals(2, target.replicate(repo));
+        final File marker = new File(replicaDir, "artifacts/PLUGIN/FILE1/VERSION/marker");
+        FileUtils.touch(marker);
+        // an artifact published from the same installation is not copied again:
+        assertEquals(2, target.replicate(repo));
+        assertTrue(marker.exists());
+        target.close();
+    }
+
+    @Test
+    public void testReinstallationDoesNotReplacePublication() throws IOException {
+        ArtifactRepo repo = new ArtifactRepo(repoDir);
+        repo.load();
+        repo.install("PLUGIN", "FILE1", "test-data/install-scripts/install-script1.sh");
+        LocalTargetRepository target = new LocalTargetRepository(replicaDir, 2);
+        assertEquals(1, target.replicate(repo));
+        final long publishedTime = target.getReplica().find("PLUGIN", "FILE1").getInstallationTime();
+        final File marker = new File(replicaDir, "artifacts/PLUGIN/FILE1/VERSION/marker");
+        FileUtils.touch(marker);
+
+        repo.remove("PLUGIN", "FILE1");
+        repo.install("PLUGIN", "FILE1", "test-data/install-scripts/install-script1.sh");
+        // the installation directory in the replica may be in use by other nodes, it is left as it is:
+        assertEquals(1, target.replicate(repo));
+        assertEquals(publishedTime, target.getReplica().find("PLUGIN", "FILE1").getInstallationTime());
+        assertTrue(marker.exists());
+        target.close();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.store;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.gobyweb.artifacts.Artifacts;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+public class KeyValueMetadataStoreTest {
+    private File directory = new File("test-results/kv-store");
+    private MappedMetadataIndex.KeyFunction keyFunction = new MappedMetadataIndex.KeyFunction() {
+        @Override
+        public String key(Artifacts.Artifact artifact) {
+            return artifact.getId();
+        }
+    };
+
+    @Test
+    public void testPointReadsAndWrites() throws IOException {
+        KeyValueMetadataStore store = open();
+        store.commit(puts("A", "B"));
+        store.commit(remove("A"));
+
+        KeyValueMetadataStore reader = open();
+        assertNull(reader.get("A"));
+        assertNotNull(reader.get("B"));
+        // a reader sees commits made after it first read the file:
+        store.commit(puts("C"));
+        assertNotNull(reader.get("C"));
+    }
+
+    @Test
+    public void testTornCommitIsDropped() throws IOException {
+        KeyValueMetadataStore store = open();
+        store.commit(puts("A"));
+        // simulate a crash in the middle of a commit:
+        FileOutputStream output = new FileOutputStream(store.getFile(), true);
+        output.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        output.close();
+
+        KeyValueMetadataStore reader = open();
+        assertEquals(1, count(reader));
+        // the torn commit is truncated when the next commit is written:
+        reader.commit(puts("B", "C"));
+        assertEquals(3, count(open()));
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        KeyValueMetadataStore store = open();
+        store.commit(puts("A", "B"));
+        store.commit(puts("A"));
+        store.commit(remove("B"));
+        final long length = store.getFile().length();
+        store.compact();
+
+        KeyValueMetadataStore reader = open();
+        assertEquals(1, count(reader));
+        assertNotNull(reader.get("A"));
+        assertEquals(true, store.getFile().length() < length);
+    }
+
+    @Test
+    public void testDeleteAndRecreate() throws IOException {
+        KeyValueMetadataStore store = open();
+        store.commit(puts("A", "B"));
+        KeyValueMetadataStore reader = open();
+        assertNotNull(reader.get("A"));
+
+        store.delete();
+        store.commit(puts("C"));
+        store.commit(puts("D", "E"));
+        // the reader does not reuse the offsets it read from the deleted file:
+        assertNull(reader.get("A"));
+        assertNotNull(reader.get("C"));
+        assertEquals(3, count(reader));
+    }
+
+    private KeyValueMetadataStore open() {
+        return new KeyValueMetadataStore(directory, keyFunction, new StoreLock(directory));
+    }
+
+    private int count(MetadataStore store) throws IOException {
+        final int[] count = new int[1];
+        store.refresh(new MetadataStore.Listener() {
+            @Override
+            public void reset(MetadataStore store) {
+                count[0] = 0;
+            }
+
+            @Override
+            public void apply(Artifacts.JournalEntry entry) {
+                count[0] += entry.getOperation() == Artifacts.JournalEntry.Operation.PUT ? 1 : -1;
+            }
+        });
+        return count[0];
+    }
+
+    private List<Artifacts.JournalEntry> puts(String... ids) {
+        List<Artifacts.JournalEntry> result = new ObjectArrayList<Artifacts.JournalEntry>();
+        for (String id : ids) {
+            result.add(Artifacts.JournalEntry.newBuilder().setOperation(Artifacts.JournalEntry.Operation.PUT)
+                    .setKey(id)
+                    .setArtifact(Artifacts.Artifact.newBuilder().setPluginId("PLUGIN").setId(id).setVersion("VERSION")
+                            .setState(Artifacts.InstallationState.INSTALLED).setRelativePath(id)
+                            .setInstallationTime(0).setRetention(Artifacts.RetentionPolicy.REMOVE_OLDEST)).build());
+        }
+        return result;
+    }
+
+    private List<Artifacts.JournalEntry> remove(String id) {
+        List<Artifacts.JournalEntry> result = new ObjectArrayList<Artifacts.JournalEntry>();
+        result.add(Artifacts.JournalEntry.newBuilder().setOperation(Artifacts.JournalEntry.Operation.REMOVE)
+                .setKey(id).build());
+        return result;
+    }
+
+    @Before
+    public void cleanStore() throws IOException {
+        FileUtils.deleteDirectory(directory);
+        directory.mkdirs();
+    }
+}
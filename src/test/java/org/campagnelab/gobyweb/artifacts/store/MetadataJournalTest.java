@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) [2012-2017] [Weill Cornell Medical College]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.campagnelab.gobyweb.artifacts.store;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.FileUtils;
+import org.campagnelab.gobyweb.artifacts.Artifacts;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+
+public class MetadataJournalTest {
+    private File journalFile = new File("test-results/journal/metadata.journal");
+
+    @Test
+    public void testAppendAndReplay() throws IOException {
+        MetadataJournal journal = new MetadataJournal(journalFile);
+        journal.append(entries("A", "B"));
+        journal.append(entries("C"));
+
+        MetadataJournal reader = new MetadataJournal(journalFile);
+        List<Artifacts.JournalEntry> replayed = reader.replay(0);
+        assertEquals(3, replayed.size());
+        assertEquals("A", replayed.get(0).getKey());
+        assertEquals("C", replayed.get(2).getKey());
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws IOException {
+        MetadataJournal journal = new MetadataJournal(journalFile);
+        journal.append(entries("A", "B"));
+        // simulate a crash in the middle of a record:
+        FileOutputStream output = new FileOutputStream(journalFile, true);
+        output.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        output.close();
+
+        MetadataJournal reader = new MetadataJournal(journalFile);
+        assertEquals(2, reader.replay(0).size());
+        // the torn record is truncated when the next record is appended:
+        reader.append(entries("C"));
+        assertEquals(3, new MetadataJournal(journalFile).replay(0).size());
+    }
+
+    @Test
+    public void testReset() throws IOException {
+        MetadataJournal journal = new MetadataJournal(journalFile);
+        journal.append(entries("A"));
+        journal.reset(journal.getGeneration() + 1);
+
+        MetadataJournal reader = new MetadataJournal(journalFile);
+        assertEquals(0, reader.replay(0).size());
+        assertEquals(1, reader.getGeneration());
+    }
+
+    private List<Artifacts.JournalEntry> entries(String... keys) {
+        List<Artifacts.JournalEntry> result = new ObjectArrayList<Artifacts.JournalEntry>();
+        for (String key : keys) {
+            result.add(Artifacts.JournalEntry.newBuilder().setOperation(Artifacts.JournalEntry.Operation.REMOVE)
+                    .setKey(key).build());
+        }
+        return result;
+    }
+
+    @Before
+    public void cleanJournal() throws IOException {
+        FileUtils.deleteDirectory(journalFile.getParentFile());
+        journalFile.getParentFile().mkdirs();
+    }
+}
@@ -0,0 +1,30 @@
+
+function plugin_install_artifact {
+    id=$1
+    installation_path=$2
+    echo Installing ID=${id}
+
+    case ${id} in
+
+            'ARTIFACT' )
+             # Resumes from the staging directory of an installation that was killed:
+             if [ -e ${installation_path}/partial ]; then
+                return 0
+             fi
+             touch ${installation_path}/partial
+             # Simulates a hung download: a child process in the background, and the script waiting for it.
+             sleep 600 &
+             wait
+
+                return 0
+                ;;
+
+
+            *)  echo "Resource artifact id not recognized: "${id}
+                return 99
+                ;;
+
+    esac
+
+    return 1
+}